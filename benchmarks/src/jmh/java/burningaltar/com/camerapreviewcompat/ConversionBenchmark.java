@@ -0,0 +1,103 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame work done on streamed frames: YUV to ARGB/RGB conversion and rotating frames upright, for frames from
+ * VGA to 4K, on one thread or striped across the shared pool
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversionBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080", "3840x2160"})
+    public String mFrameSize;
+
+    @Param({"false", "true"})
+    public boolean mIsParallel;
+
+    int mWidth;
+    int mHeight;
+    StripedExecutor mExecutor;
+
+    byte[] mNv21;
+    byte[] mI420;
+    int[] mArgb;
+    byte[] mRgb;
+    byte[] mRotated;
+
+    // camera2-style planes: direct buffers with interleaved chroma, like most devices' YUV_420_888
+    ByteBuffer mY;
+    ByteBuffer mU;
+    ByteBuffer mV;
+
+    @Setup
+    public void setUp() {
+        FrameSize size = FrameSize.parse(mFrameSize);
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        mExecutor = mIsParallel ? StripedExecutor.getShared() : null;
+
+        int lumaSize = mWidth * mHeight;
+        int frameSize = lumaSize * 3 / 2;
+
+        mNv21 = new byte[frameSize];
+        new Random(42).nextBytes(mNv21);
+        mI420 = mNv21.clone();
+
+        mArgb = new int[lumaSize];
+        mRgb = new byte[lumaSize * 3];
+        mRotated = new byte[frameSize];
+
+        ByteBuffer luma = ByteBuffer.allocateDirect(lumaSize);
+        luma.put(mNv21, 0, lumaSize).flip();
+        mY = luma;
+
+        ByteBuffer chroma = ByteBuffer.allocateDirect(frameSize - lumaSize);
+        chroma.put(mNv21, lumaSize, frameSize - lumaSize).flip();
+        mV = chroma.duplicate();
+        chroma.position(1);
+        mU = chroma.slice();
+    }
+
+    @Benchmark
+    public int[] nv21ToArgb() {
+        return YuvConverter.nv21ToArgb(mNv21, mWidth, mHeight, mArgb, mExecutor);
+    }
+
+    @Benchmark
+    public int[] i420ToArgb() {
+        return YuvConverter.i420ToArgb(mI420, mWidth, mHeight, mArgb, mExecutor);
+    }
+
+    @Benchmark
+    public byte[] nv21ToRgb() {
+        return YuvConverter.nv21ToRgb(mNv21, mWidth, mHeight, mRgb, mExecutor);
+    }
+
+    @Benchmark
+    public int[] planesToArgb() {
+        return YuvConverter.planesToArgb(mY, mWidth, mU, mV, mWidth, 2, mWidth, mHeight, mArgb, mExecutor);
+    }
+
+    @Benchmark
+    public byte[] rotateNv21By90() {
+        return YuvRotator.rotateNv21(mNv21, mWidth, mHeight, 90, false, mRotated, mExecutor);
+    }
+
+    @Benchmark
+    public byte[] rotateI420By270Mirrored() {
+        return YuvRotator.rotateI420(mI420, mWidth, mHeight, 270, true, mRotated, mExecutor);
+    }
+}
@@ -0,0 +1,83 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reading a 12MP photo's size from its header with {@link JpegHeaderParser}, against asking a decoder for just the
+ * bounds. BitmapFactory can't run on the JVM, so ImageIO's header-only read stands in for its inJustDecodeBounds pass.
+ * <p/>
+ * Also making the photo upright for saving: tagging its EXIF orientation with {@link ExifOrientationWriter}, against
+ * decoding, rotating and encoding it again with ImageIO.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JpegBenchmark {
+    byte[] mJpeg;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(4032, 3024, BufferedImage.TYPE_INT_RGB), "jpg", out);
+        mJpeg = out.toByteArray();
+    }
+
+    @Benchmark
+    public int parseHeader() {
+        return JpegHeaderParser.parse(mJpeg).getWidth();
+    }
+
+    @Benchmark
+    public int decodeBounds() throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(mJpeg));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        ImageReader reader = readers.next();
+
+        try {
+            reader.setInput(in);
+            return reader.getWidth(0);
+        } finally {
+            reader.dispose();
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] tagOrientation() {
+        return ExifOrientationWriter.setOrientation(mJpeg, ExifOrientationWriter.toOrientation(90, false));
+    }
+
+    @Benchmark
+    public byte[] rotateAndReencode() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(mJpeg));
+
+        AffineTransform rotate = new AffineTransform();
+        rotate.translate(image.getHeight(), 0);
+        rotate.quadrantRotate(1);
+        BufferedImage rotated = new AffineTransformOp(rotate, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(image,
+                null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(rotated, "jpg", out);
+        return out.toByteArray();
+    }
+}
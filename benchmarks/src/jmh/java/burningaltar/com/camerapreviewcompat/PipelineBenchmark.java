@@ -0,0 +1,74 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One frame through the delivery path the cameras use, fed by a synthetic source instead of a camera: stats, upright
+ * conversion of a sideways frame when enabled, full YUV or luma only, and a listener that releases the frame right
+ * away
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PipelineBenchmark {
+    @Param({"640x480", "1920x1080"})
+    public String mFrameSize;
+
+    @Param({"false", "true"})
+    public boolean mIsUpright;
+
+    @Param({"false", "true"})
+    public boolean mIsLumaOnly;
+
+    SyntheticFrameSource mSource;
+    FrameDispatcher mDispatcher;
+    CameraFrame mFrame;
+    long mFrameIndex = 0;
+
+    final FrameSource.Callback mListener = new FrameSource.Callback() {
+        @Override
+        public void onFrame(CameraFrame frame) {
+            frame.release();
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        FrameSize size = FrameSize.parse(mFrameSize);
+        mSource = new SyntheticFrameSource(size.getWidth(), size.getHeight(), CameraFrame.FORMAT_NV21,
+                PacedFrameSource.UNPACED, 1);
+
+        mDispatcher = new FrameDispatcher();
+        mDispatcher.setUprightFrames(mIsUpright);
+        mDispatcher.setLumaOnly(mIsLumaOnly);
+
+        byte[] buffer = new byte[SizeUtils.getPreviewBufferSize(size.getWidth(), size.getHeight())];
+        mFrame = CameraFrame.wrapNv21(buffer, size.getWidth(), size.getHeight(), null);
+    }
+
+    /**
+     * What producing a frame costs the source, so it can be subtracted from pipeline numbers
+     */
+    @Benchmark
+    public boolean syntheticFill() {
+        return mSource.fill(mFrame.getData(), mFrameIndex++);
+    }
+
+    @Benchmark
+    public CameraFrame deliver() {
+        long now = System.nanoTime();
+        mFrame.checkOut(90, now);
+        mDispatcher.getFrameStatsRecorder().onFrame(now);
+        mDispatcher.deliver(mFrame, false, mListener);
+        return mFrame;
+    }
+}
@@ -0,0 +1,106 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending a frame to a {@link FrameRecorder} file, and reading one back from a {@link FrameFileReader} with a pass
+ * over its luma, which is what replayed analysis pays per frame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecordingBenchmark {
+    // Start a new recording past this, so a long run doesn't fill the disk
+    static final long MAX_RECORDING_SIZE = 512L << 20;
+
+    static final int READ_FRAME_COUNT = 30;
+
+    @Param({"640x480", "1920x1080"})
+    public String mFrameSize;
+
+    int mWidth;
+    int mHeight;
+    byte[] mNv21;
+
+    File mRecordFile;
+    FrameRecorder mRecorder;
+    long mTimestamp = 0;
+
+    File mReadFile;
+    FrameFileReader mReader;
+    int mReadIdx = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        FrameSize size = FrameSize.parse(mFrameSize);
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        mNv21 = new byte[SizeUtils.getPreviewBufferSize(mWidth, mHeight)];
+
+        mRecordFile = File.createTempFile("record", ".frames");
+        mRecorder = new FrameRecorder(mRecordFile);
+
+        mReadFile = File.createTempFile("read", ".frames");
+        FrameRecorder recorder = new FrameRecorder(mReadFile);
+
+        for (int i = 0; i < READ_FRAME_COUNT; i++) {
+            recorder.record(mNv21, CameraFrame.FORMAT_NV21, mWidth, mHeight, 90, i);
+        }
+
+        recorder.close();
+        mReader = new FrameFileReader(mReadFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mRecorder.close();
+        mReader.close();
+
+        delete(mRecordFile);
+        delete(mReadFile);
+    }
+
+    static void delete(File file) {
+        file.delete();
+        FrameFileFormat.getIndexFile(file).delete();
+    }
+
+    @Benchmark
+    public long record() throws IOException {
+        if (mRecorder.getSize() > MAX_RECORDING_SIZE) {
+            mRecorder.close();
+            mRecorder = new FrameRecorder(mRecordFile);
+        }
+
+        mRecorder.record(mNv21, CameraFrame.FORMAT_NV21, mWidth, mHeight, 90, mTimestamp++);
+        return mRecorder.getSize();
+    }
+
+    @Benchmark
+    public int readFrame() throws IOException {
+        CameraFrame frame = mReader.getFrame(mReadIdx);
+        mReadIdx = (mReadIdx + 1) % READ_FRAME_COUNT;
+
+        ByteBuffer luma = frame.getPlane(0);
+        int sum = 0;
+
+        for (int i = 0, n = luma.limit(); i < n; i++) {
+            sum += luma.get(i);
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,99 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting a small ARGB frame for a model out of a full-size camera frame: converting the whole frame and then scaling
+ * the pixels down, as with a Bitmap and createScaledBitmap(), against scaling the YUV planes first with
+ * {@link YuvScaler} and converting only the small frame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScalingBenchmark {
+    // Model input sizes are around 224-320, so scale to fit a 320 box
+    static final int MAX_SIZE = 320;
+
+    @Param({"640x480", "1920x1080"})
+    public String mFrameSize;
+
+    int mWidth;
+    int mHeight;
+    int mScaledWidth;
+    int mScaledHeight;
+
+    CameraFrame mFrame;
+    int[] mFullArgb;
+    int[] mScaledArgb;
+    byte[] mScaledYuv;
+    byte[] mScaledLuma;
+
+    @Setup
+    public void setUp() {
+        FrameSize size = FrameSize.parse(mFrameSize);
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        mScaledWidth = YuvScaler.fitWidth(mWidth, mHeight, MAX_SIZE, MAX_SIZE);
+        mScaledHeight = YuvScaler.fitHeight(mWidth, mHeight, MAX_SIZE, MAX_SIZE);
+
+        byte[] nv21 = new byte[SizeUtils.getPreviewBufferSize(mWidth, mHeight)];
+        new Random(42).nextBytes(nv21);
+        mFrame = CameraFrame.wrapNv21(nv21, mWidth, mHeight, null);
+
+        mFullArgb = new int[mWidth * mHeight];
+        mScaledArgb = new int[mScaledWidth * mScaledHeight];
+        mScaledYuv = new byte[SizeUtils.getPreviewBufferSize(mScaledWidth, mScaledHeight)];
+        mScaledLuma = new byte[mScaledWidth * mScaledHeight];
+    }
+
+    @Benchmark
+    public int[] convertThenScale() {
+        YuvConverter.nv21ToArgb(mFrame.getData(), mWidth, mHeight, mFullArgb);
+
+        // Bilinear, like a filtered createScaledBitmap()
+        for (int dy = 0; dy < mScaledHeight; dy++) {
+            float sy = Math.max(0, (dy + 0.5f) * mHeight / mScaledHeight - 0.5f);
+            int y0 = Math.min((int) sy, mHeight - 2);
+            int fy = (int) ((sy - y0) * 256);
+
+            for (int dx = 0; dx < mScaledWidth; dx++) {
+                float sx = Math.max(0, (dx + 0.5f) * mWidth / mScaledWidth - 0.5f);
+                int x0 = Math.min((int) sx, mWidth - 2);
+                int fx = (int) ((sx - x0) * 256);
+
+                int i = y0 * mWidth + x0;
+                mScaledArgb[dy * mScaledWidth + dx] = lerp(lerp(mFullArgb[i], mFullArgb[i + 1], fx),
+                        lerp(mFullArgb[i + mWidth], mFullArgb[i + mWidth + 1], fx), fy);
+            }
+        }
+
+        return mScaledArgb;
+    }
+
+    static int lerp(int a, int b, int f) {
+        int rb = ((a & 0xff00ff) * (256 - f) + (b & 0xff00ff) * f) >>> 8 & 0xff00ff;
+        int g = ((a & 0xff00) * (256 - f) + (b & 0xff00) * f) >>> 8 & 0xff00;
+        return 0xff000000 | rb | g;
+    }
+
+    @Benchmark
+    public int[] scaleThenConvert() {
+        YuvScaler.scaleToI420(mFrame, mScaledWidth, mScaledHeight, mScaledYuv, null);
+        return YuvConverter.i420ToArgb(mScaledYuv, mScaledWidth, mScaledHeight, mScaledArgb);
+    }
+
+    @Benchmark
+    public byte[] scaleLuma() {
+        return YuvScaler.scaleLuma(mFrame, mScaledWidth, mScaledHeight, mScaledLuma, null);
+    }
+}
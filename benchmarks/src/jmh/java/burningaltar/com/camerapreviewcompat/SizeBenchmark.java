@@ -0,0 +1,72 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picking a preview size and a photo sample size, for views from VGA to 4K
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SizeBenchmark {
+    // YUV output sizes reported by a Pixel 2 rear camera, in the order the camera lists them
+    static final FrameSize[] CAMERA_SIZES = {
+            new FrameSize(4032, 3024), new FrameSize(4000, 3000), new FrameSize(3840, 2160),
+            new FrameSize(3264, 2448), new FrameSize(3200, 2400), new FrameSize(2976, 2976),
+            new FrameSize(2592, 1944), new FrameSize(2688, 1512), new FrameSize(2048, 1536),
+            new FrameSize(1920, 1080), new FrameSize(1600, 1200), new FrameSize(1440, 1080),
+            new FrameSize(1280, 960), new FrameSize(1280, 768), new FrameSize(1280, 720),
+            new FrameSize(1024, 768), new FrameSize(800, 600), new FrameSize(864, 480),
+            new FrameSize(800, 480), new FrameSize(720, 480), new FrameSize(640, 480),
+            new FrameSize(640, 360), new FrameSize(352, 288), new FrameSize(320, 240),
+            new FrameSize(176, 144)};
+
+    @Param({"640x480", "1280x720", "1920x1080", "3840x2160"})
+    public String mViewSize;
+
+    int mWidth;
+    int mHeight;
+
+    @Setup
+    public void setUp() {
+        FrameSize size = FrameSize.parse(mViewSize);
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+    }
+
+    @Benchmark
+    public int getBiggestSizeIdx() {
+        return SizeUtils.getBiggestSizeIdx(CAMERA_SIZES, mWidth, mHeight, false);
+    }
+
+    @Benchmark
+    public int getBiggestSizeIdxSideways() {
+        return SizeUtils.getBiggestSizeIdx(CAMERA_SIZES, mHeight, mWidth, true);
+    }
+
+    /**
+     * Scoring every size on aspect ratio and fit, without the remembered choice
+     */
+    @Benchmark
+    public FrameSize choosePreviewSize() {
+        return PreviewSizeSelector.choose(CAMERA_SIZES, null, mWidth, mHeight, PreviewSizeSelector.NO_LIMIT,
+                PreviewSizeSelector.NO_LIMIT);
+    }
+
+    /**
+     * Sampling a full-res 12MP photo down to the view
+     */
+    @Benchmark
+    public int calculateInSampleSize() {
+        return SizeUtils.calculateInSampleSize(4032, 3024, mWidth, mHeight);
+    }
+}
@@ -0,0 +1,112 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens a camera on a worker thread and hands the result back on another, usually the UI thread, so a slow open never
+ * blocks the caller.
+ * <p/>
+ * Every open() supersedes the ones before it: if the camera is switched or the surface goes away while an open is
+ * still running, the stale result is never delivered. The worker is expected to run tasks one at a time, in order,
+ * so a later open or cleanup always sees the camera an earlier open left behind.
+ */
+class AsyncCameraOpener {
+    interface Task<T> {
+        /**
+         * Runs on the worker thread. Returns null if the camera couldn't be set up.
+         */
+        T open();
+
+        /**
+         * Runs on the result executor, only if no newer open() or cancel() came along in the meantime
+         */
+        void onOpened(T result);
+    }
+
+    private final Executor mWorker;
+    private final Executor mResultExecutor;
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    AsyncCameraOpener(Executor worker, Executor resultExecutor) {
+        mWorker = worker;
+        mResultExecutor = resultExecutor;
+    }
+
+    /**
+     * Start opening on the worker and return right away
+     *
+     * @return the generation of this open, for {@link #isCurrent(int)}
+     */
+    <T> int open(final Task<T> task) {
+        final int generation = mGeneration.incrementAndGet();
+
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Already superseded before it started; skip the open entirely
+                if (!isCurrent(generation)) return;
+
+                final T result = task.open();
+
+                mResultExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isCurrent(generation)) task.onOpened(result);
+                    }
+                });
+            }
+        });
+
+        return generation;
+    }
+
+    /**
+     * Drop the result of any open still in flight
+     */
+    void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    boolean isCurrent(int generation) {
+        return mGeneration.get() == generation;
+    }
+
+    /**
+     * Run on the worker after anything already queued
+     */
+    void execute(Runnable runnable) {
+        mWorker.execute(runnable);
+    }
+
+    /**
+     * Run on the worker after anything already queued, and wait for it, e.g. to release the camera before its surface
+     * is destroyed
+     *
+     * @return false if it didn't finish in time
+     */
+    boolean executeAndWait(final Runnable runnable, long timeoutMs) {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        try {
+            return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
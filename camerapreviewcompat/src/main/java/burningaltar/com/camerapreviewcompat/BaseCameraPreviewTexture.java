@@ -2,8 +2,11 @@ package burningaltar.com.camerapreviewcompat;
 
 import android.content.Context;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.Nullable;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -13,6 +16,10 @@ import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.RelativeLayout;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /**
  * Created by bherbert on 1/23/16.
  */
@@ -41,12 +48,63 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
         }
     }
 
+    /**
+     * Runs listeners on the main thread; inline if we're already there, which is where the legacy camera calls back
+     */
+    static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                runnable.run();
+            } else {
+                mMainHandler.post(runnable);
+            }
+        }
+    };
+
+    // Where one-shot results and status callbacks are delivered. Streams are called on the camera thread instead.
+    Executor mCallbackExecutor = MAIN_THREAD_EXECUTOR;
+
     SimpleCameraPreview.PreviewBitmapListener mPreviewBitmapListener = null;
     SimpleCameraPreview.PhotoBitmapListener mPhotoBitmapListener = null;
 
+    SimpleCameraPreview.PreviewPixelsListener mPreviewPixelsListener = null;
+    int[] mPreviewPixels = null;
+
+    // Spreads frame conversions across cores when set, otherwise they run on the camera callback thread
+    StripedExecutor mConversionExecutor = null;
+
+    // Throughput of streamed frames; shared with SimpleCameraPreview so it carries across camera switches
+    FrameStatsRecorder mFrameStats = new FrameStatsRecorder();
+
+    // Makes streamed frames upright if asked to, and hands them to the frame listener
+    final FrameDispatcher mDispatcher = new FrameDispatcher(mFrameStats);
+
+    // Where streamed frames are recorded, if anywhere
+    volatile FrameRecorder mRecorder = null;
+
+    // Whether photos get an EXIF orientation tag for the rotation they still need
+    volatile boolean mIsExifOrientation = false;
+
+    // Region of interest as given, in the parent's coordinates, and as fractions of the upright preview
+    private Rect mViewRoi = null;
+    volatile RoiMapper mRoi = null;
+
+    // Where resizeToPreview() put the preview, in the parent's coordinates
+    private int mPreviewLeft = 0;
+    private int mPreviewTop = 0;
+    private int mPreviewWidth = 0;
+    private int mPreviewHeight = 0;
+
+    // Also shared, so its remembered choices outlive this view
+    PreviewSizeSelector mSizeSelector = new PreviewSizeSelector();
+
     int mDegreesToRotatePreview = 0;
 
     private SimpleCameraPreview.CameraPreviewStatusListener mListener;
+    SimpleCameraPreview.PreviewSizeListener mPreviewSizeListener = null;
 
     PreviewInfo mPreviewInfo = null;
 
@@ -58,6 +116,11 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
 
     Point screenSize = new Point();
 
+    // For startup metrics: when the view was created, and which phase the next drawn frame ends
+    final long mCreatedNanos = System.nanoTime();
+    private volatile String mFirstFramePhase = null;
+    private volatile long mFirstFrameStartNanos = 0;
+
     public BaseCameraPreviewTexture(Context context) {
         super(context);
     }
@@ -72,6 +135,12 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
 
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
+        CameraMetrics.report(SimpleCameraPreview.CameraMetricsListener.PHASE_SURFACE_AVAILABLE, mCreatedNanos);
+
+        if (mFirstFramePhase == null) {
+            awaitFirstFrame(SimpleCameraPreview.CameraMetricsListener.PHASE_FIRST_FRAME, mCreatedNanos);
+        }
+
         WindowManager wm = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
         Display display = wm.getDefaultDisplay();
 
@@ -96,7 +165,7 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
         if (mIsSurfaceAvailable && null != mIsFrontFacing) {
             PreviewInfo previewInfo = setCameraImpl(mIsFrontFacing);
             if (previewInfo == null) {
-                log("Failed to set camera!");
+                log("No preview info yet, camera failed or is still opening");
                 return;
             }
 
@@ -104,6 +173,18 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
         }
     }
 
+    /**
+     * For cameras that open asynchronously and returned null from setCameraImpl(). Call on the main thread.
+     */
+    final void onPreviewInfoReady(PreviewInfo previewInfo) {
+        if (previewInfo == null) {
+            log("Failed to set camera!");
+            return;
+        }
+
+        resizeToPreview(previewInfo);
+    }
+
     @Override
     public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
         // noop
@@ -111,7 +192,20 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
 
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-        // noop
+        String phase = mFirstFramePhase;
+
+        if (phase != null) {
+            mFirstFramePhase = null;
+            CameraMetrics.report(phase, mFirstFrameStartNanos);
+        }
+    }
+
+    /**
+     * End the given phase when the next camera frame is drawn
+     */
+    final void awaitFirstFrame(String phase, long startNanos) {
+        mFirstFrameStartNanos = startNanos;
+        mFirstFramePhase = phase;
     }
 
     @Override
@@ -149,7 +243,10 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
             origWidth = origWidth ^ origHeight;
         }
 
-        if (previewWidth == origWidth && previewHeight == origHeight) return;
+        if (previewWidth == origWidth && previewHeight == origHeight) {
+            setPreviewBounds(0, 0, getWidth(), getHeight());
+            return;
+        }
 
         double surfaceRatio = origWidth / (double) origHeight;
         double previewRatio = previewWidth / (double) previewHeight;
@@ -183,8 +280,10 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
 
         if (lp instanceof RelativeLayout.LayoutParams) {
             ((RelativeLayout.LayoutParams) lp).setMargins(marginHoriz, marginVert, marginHoriz, marginVert);
+            setPreviewBounds(marginHoriz, marginVert, lp.width, lp.height);
         } else {
             log("Preview isn't in a Relative or LinearLayout; we can't scale the image down!");
+            setPreviewBounds(0, 0, lp.width, lp.height);
         }
 
         log("margin horizontal " + marginHoriz + " vert " + marginVert);
@@ -196,18 +295,227 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
         }
     }
 
+    public final void setConversionExecutor(StripedExecutor executor) {
+        mConversionExecutor = executor;
+        mDispatcher.setConversionExecutor(executor);
+    }
+
+    public final void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor == null ? MAIN_THREAD_EXECUTOR : executor;
+    }
+
+    final void dispatchPreview(final SimpleCameraPreview.PreviewBitmapListener listener, final byte[] data,
+                               final int degreesToRotate) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPreview(data, degreesToRotate);
+            }
+        });
+    }
+
+    /**
+     * @param isMirrored whether the pixels also need flipping after rotating, which only goes into the EXIF tag
+     * @param width      the JPEG's size as the camera was asked for it, for listeners that take a
+     *                   {@link CapturedPhoto}
+     */
+    final void dispatchPhoto(final SimpleCameraPreview.PhotoBitmapListener listener, final byte[] data,
+                             final int degreesToRotate, boolean isMirrored, final long timestampNanos,
+                             final int width, final int height) {
+        final byte[] jpeg = tagOrientation(data, degreesToRotate, isMirrored);
+
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (listener instanceof CapturedPhotoAdapter) {
+                    ((CapturedPhotoAdapter) listener).mListener.onPhoto(
+                            new CapturedPhoto(jpeg, degreesToRotate, timestampNanos, width, height));
+                } else {
+                    listener.onPhoto(jpeg, degreesToRotate);
+                }
+            }
+        });
+    }
+
+    /**
+     * Passes a {@link SimpleCameraPreview.CapturedPhotoListener} through the photo paths, which all take a
+     * PhotoBitmapListener; dispatchPhoto() unwraps it to hand over the size as well
+     */
+    static final class CapturedPhotoAdapter implements SimpleCameraPreview.PhotoBitmapListener {
+        final SimpleCameraPreview.CapturedPhotoListener mListener;
+
+        CapturedPhotoAdapter(SimpleCameraPreview.CapturedPhotoListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onPhoto(byte[] photoData, int degreesToRotate) {
+            mListener.onPhoto(new CapturedPhoto(photoData, degreesToRotate, System.nanoTime(), 0, 0));
+        }
+    }
+
+    final void dispatchPhotos(final SimpleCameraPreview.PhotoBurstListener listener, final List<CapturedPhoto> photos) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPhotos(photos);
+            }
+        });
+    }
+
+    final void dispatchPreviewPixels(final SimpleCameraPreview.PreviewPixelsListener listener, final int[] argb,
+                                     final int width, final int height, final int degreesToRotate) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPreviewPixels(argb, width, height, degreesToRotate);
+            }
+        });
+    }
+
+    public final void setUprightFrames(boolean isUpright) {
+        mDispatcher.setUprightFrames(isUpright);
+    }
+
+    public final void setLumaOnlyFrames(boolean isLumaOnly) {
+        mDispatcher.setLumaOnly(isLumaOnly);
+    }
+
+    public final void setAnalysisSize(int maxWidth, int maxHeight) {
+        mDispatcher.setAnalysisSize(maxWidth, maxHeight);
+    }
+
+    public final void setExifOrientation(boolean isExifOrientation) {
+        mIsExifOrientation = isExifOrientation;
+    }
+
+    /**
+     * Tag a photo with the rotation its pixels still need, if asked to. The pixels aren't touched, so
+     * degreesToRotate still holds for anything that decodes it. A tag the camera wrote is kept if it already says
+     * as much, mirroring included, or if no rotation is needed.
+     */
+    final byte[] tagOrientation(byte[] jpeg, int degreesToRotate, boolean isMirrored) {
+        if (!mIsExifOrientation || jpeg == null) return jpeg;
+        return ExifOrientationWriter.updateOrientation(jpeg,
+                ExifOrientationWriter.toOrientation(degreesToRotate, isMirrored));
+    }
+
+    final void setFrameStatsRecorder(FrameStatsRecorder frameStats) {
+        mFrameStats = frameStats;
+        mDispatcher.setFrameStatsRecorder(frameStats);
+    }
+
+    /**
+     * Choose how the preview size is picked. Takes effect the next time a camera is opened.
+     */
+    public final void setPreviewSizeSelector(PreviewSizeSelector selector) {
+        mSizeSelector = selector;
+    }
+
+    /**
+     * Fill the snapshot with streaming throughput so far, without allocating
+     */
+    public final FrameStats getFrameStats(FrameStats into) {
+        return mFrameStats.snapshot(into);
+    }
+
+    public final void resetFrameStats() {
+        mFrameStats.reset();
+    }
+
+    private void setPreviewBounds(int left, int top, int width, int height) {
+        mPreviewLeft = left;
+        mPreviewTop = top;
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+
+        updateRoi();
+    }
+
+    /**
+     * Only analyze part of the preview. The region is in the parent's coordinates, and follows the preview through
+     * resizes and camera switches. Null for the whole frame.
+     */
+    public final void setRoi(Rect viewRoi) {
+        mViewRoi = viewRoi == null ? null : new Rect(viewRoi);
+        updateRoi();
+    }
+
+    private void updateRoi() {
+        Rect viewRoi = mViewRoi;
+
+        if (viewRoi == null) {
+            mRoi = null;
+        } else {
+            // Not laid out yet; assume the preview fills the parent
+            int width = mPreviewWidth > 0 ? mPreviewWidth : getWidth();
+            int height = mPreviewHeight > 0 ? mPreviewHeight : getHeight();
+
+            mRoi = RoiMapper.fromView(viewRoi.left, viewRoi.top, viewRoi.right, viewRoi.bottom, mPreviewLeft,
+                    mPreviewTop, width, height);
+        }
+
+        mDispatcher.setRoi(mRoi);
+    }
+
+    /**
+     * The region of interest in a frame with the given size and rotation
+     *
+     * @return null if there's no region of interest
+     */
+    final int[] getRoiRect(int frameWidth, int frameHeight, int rotation) {
+        RoiMapper roi = mRoi;
+        return roi == null ? null : roi.mapToFrame(frameWidth, frameHeight, rotation, isMirrored());
+    }
+
+    /**
+     * Hand a streamed frame to the listener, making it upright first if asked to
+     */
+    final void deliverFrame(CameraFrame frame, SimpleCameraPreview.FrameListener listener) {
+        mDispatcher.deliver(frame, isMirrored(), listener);
+    }
+
+    /**
+     * Whether upright frames should be flipped to match what's on screen, i.e. for the front camera
+     */
+    boolean isMirrored() {
+        return Boolean.TRUE.equals(mIsFrontFacing);
+    }
+
     public final void setListener(SimpleCameraPreview.CameraPreviewStatusListener listener) {
         mListener = listener;
     }
 
+    public final void setPreviewSizeListener(SimpleCameraPreview.PreviewSizeListener listener) {
+        mPreviewSizeListener = listener;
+    }
+
+    final void dispatchPreviewSizeSelected(final int width, final int height, final int retries,
+                                           final long elapsedNanos) {
+        final SimpleCameraPreview.PreviewSizeListener listener = mPreviewSizeListener;
+        if (listener == null) return;
+
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPreviewSizeSelected(width, height, retries, elapsedNanos);
+            }
+        });
+    }
+
     /**
      * Returns isFrontFacing
      */
     public boolean switchCameras() {
+        awaitFirstFrame(SimpleCameraPreview.CameraMetricsListener.PHASE_CAMERA_SWITCH, System.nanoTime());
         setCamera(null == mIsFrontFacing ? true : !mIsFrontFacing);
         return mIsFrontFacing;
     }
 
+    /**
+     * @return the preview info to resize to, or null if the camera failed or is opening asynchronously, in which case
+     * the implementation calls onPreviewInfoReady() later
+     */
     public abstract PreviewInfo setCameraImpl(boolean frontFacing);
 
     abstract boolean supportsScaling();
@@ -218,8 +526,100 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
 
     public abstract void getPhoto(SimpleCameraPreview.PhotoBitmapListener photoListener);
 
+    public abstract void getPhotos(int count, SimpleCameraPreview.PhotoBurstListener listener);
+
+    /**
+     * Append every streamed frame to the recorder, streaming even without a listener; null stops recording
+     */
+    public abstract void setFrameRecorder(FrameRecorder recorder);
+
+    /**
+     * Append a frame to the recorder, giving up on recording if it fails, e.g. because the disk is full
+     */
+    final void recordFrame(CameraFrame frame) {
+        FrameRecorder recorder = mRecorder;
+        if (recorder == null) return;
+
+        try {
+            recorder.record(frame);
+        } catch (IOException e) {
+            onRecordingFailed(recorder, e);
+        }
+    }
+
+    final void recordFrame(byte[] data, int format, int width, int height, int rotation, long timestampNanos) {
+        FrameRecorder recorder = mRecorder;
+        if (recorder == null) return;
+
+        try {
+            recorder.record(data, format, width, height, rotation, timestampNanos);
+        } catch (IOException e) {
+            onRecordingFailed(recorder, e);
+        }
+    }
+
+    private void onRecordingFailed(FrameRecorder recorder, IOException e) {
+        loge("Recording to " + recorder.getFile() + " failed, stopping", e);
+
+        // Unless a new recording already replaced it
+        if (mRecorder == recorder) setFrameRecorder(null);
+    }
+
+    /**
+     * Keep the last frameCount preview-sized frames so getPhoto() can return the one closest to when it was called,
+     * rather than waiting on a new capture. 0 turns it off.
+     */
+    public abstract void setZeroShutterLag(int frameCount);
+
     public abstract void getNextPreviewFrame(SimpleCameraPreview.PreviewBitmapListener previewBitmapListener);
 
+    /**
+     * Like getNextPreviewFrame(), but converts the frame straight to ARGB pixels, reusing argb if it's big enough
+     */
+    public abstract void getNextPreviewPixels(int[] argb, SimpleCameraPreview.PreviewPixelsListener listener);
+
+    /**
+     * Start delivering every preview frame to the listener, using a fixed pool of recycled buffers
+     */
+    public void startPreviewStream(SimpleCameraPreview.PreviewStreamListener listener, int bufferCount) {
+        log("Preview streaming isn't supported by " + getTag());
+    }
+
+    public void stopPreviewStream() {
+        // noop
+    }
+
+    /**
+     * Start delivering YUV_420_888 images alongside the preview
+     */
+    public void startImageStream(SimpleCameraPreview.ImageStreamListener listener, int maxImages, int frameInterval) {
+        log("Image streaming isn't supported by " + getTag());
+    }
+
+    public void stopImageStream() {
+        // noop
+    }
+
+    /**
+     * Start delivering zero-copy frames, each of which must be released by the listener
+     *
+     * @param maxFrames how many frames can be in flight at once
+     */
+    public void startFrameStream(SimpleCameraPreview.FrameListener listener, int maxFrames) {
+        log("Frame streaming isn't supported by " + getTag());
+    }
+
+    public void stopFrameStream() {
+        // noop
+    }
+
+    /**
+     * Return a buffer handed out by the preview stream so it can be filled again
+     */
+    public void releasePreviewBuffer(byte[] buffer) {
+        // noop
+    }
+
     public String getTag() {
         return TAG;
     }
@@ -232,7 +632,29 @@ abstract class BaseCameraPreviewTexture extends TextureView implements TextureVi
         Log.e(getTag(), msg, e);
     }
 
+    protected void onCameraFailed(final String message) {
+        loge(message, null);
+
+        final SimpleCameraPreview.CameraPreviewStatusListener listener = mListener;
+        if (listener == null) return;
+
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraFailed(message);
+            }
+        });
+    }
+
     protected void onCameraReady() {
-        if (mListener != null) mListener.onCameraReady();
+        final SimpleCameraPreview.CameraPreviewStatusListener listener = mListener;
+        if (listener == null) return;
+
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraReady();
+            }
+        });
     }
 }
@@ -0,0 +1,149 @@
+package burningaltar.com.camerapreviewcompat;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Mutable Bitmaps to decode into through BitmapFactory.Options.inBitmap, so decoding photos or preview frames over
+ * and over doesn't allocate a new multi-megabyte Bitmap each time. Pass one to
+ * {@link CameraUtils#decodeSampledBitmap(byte[], int, int, BitmapPool)}, and {@link #put(Bitmap)} each Bitmap back
+ * once nothing draws it anymore.
+ * <p/>
+ * The pool holds at most maxBytes of Bitmaps, recycling the least recently returned ones past that. Register it with
+ * Context.registerComponentCallbacks() and it empties itself when memory gets tight. From KitKat, any pooled Bitmap
+ * with enough bytes can be reused; before that, only one of exactly the same size.
+ */
+public final class BitmapPool implements ComponentCallbacks2 {
+    static final boolean IS_REUSE_BY_BYTES = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private final SizeClassPool<Bitmap> mPool;
+
+    public BitmapPool(long maxBytes) {
+        mPool = new SizeClassPool<Bitmap>(maxBytes) {
+            @Override
+            int sizeOf(Bitmap bitmap) {
+                return IS_REUSE_BY_BYTES ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+            }
+
+            @Override
+            boolean fits(Bitmap bitmap, int width, int height, int bytes) {
+                if (IS_REUSE_BY_BYTES) return bitmap.getAllocationByteCount() >= bytes;
+
+                // Same size and bytes means the same bytes per pixel, so the same config
+                return bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getByteCount() == bytes;
+            }
+
+            @Override
+            void onEvicted(Bitmap bitmap) {
+                bitmap.recycle();
+            }
+        };
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        if (config == Bitmap.Config.RGB_565) return 2;
+        return 4;
+    }
+
+    /**
+     * A pooled Bitmap reconfigured to the given size and config, with whatever pixels it had before
+     *
+     * @return the Bitmap, or null if none fit; create one then, and put() it back when done
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config);
+
+        if (bitmap != null && IS_REUSE_BY_BYTES && (bitmap.getWidth() != width || bitmap.getHeight() != height
+                || bitmap.getConfig() != config)) {
+            bitmap.reconfigure(width, height, config);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Like get(), but left as it was, for BitmapFactory to reconfigure itself while decoding into it
+     */
+    Bitmap take(int width, int height, Bitmap.Config config) {
+        return mPool.take(width, height, width * height * getBytesPerPixel(config));
+    }
+
+    /**
+     * Hand a Bitmap back for reuse. Don't touch it afterwards: it may be decoded into, or recycled.
+     *
+     * @return false if it can't be pooled, e.g. it's immutable or bigger than the whole pool; it's left as is then
+     */
+    public boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return false;
+        return mPool.put(bitmap);
+    }
+
+    /**
+     * Recycle the least recently returned Bitmaps until the pool holds at most maxBytes
+     */
+    public void trimToSize(long maxBytes) {
+        mPool.trimToSize(maxBytes);
+    }
+
+    public void clear() {
+        mPool.clear();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            // Next in line to be killed; give it all back
+            clear();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(mPool.getMaxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    public long getMaxSize() {
+        return mPool.getMaxSize();
+    }
+
+    /**
+     * Bytes of Bitmaps waiting in the pool
+     */
+    public long getSize() {
+        return mPool.getSize();
+    }
+
+    public int getCount() {
+        return mPool.getCount();
+    }
+
+    /**
+     * Requests that got a pooled Bitmap
+     */
+    public long getHitCount() {
+        return mPool.getHitCount();
+    }
+
+    /**
+     * Requests that found nothing to reuse, so a new Bitmap was allocated
+     */
+    public long getMissCount() {
+        return mPool.getMissCount();
+    }
+
+    /**
+     * Bitmaps recycled to keep under the limit or because memory was tight
+     */
+    public long getEvictionCount() {
+        return mPool.getEvictionCount();
+    }
+}
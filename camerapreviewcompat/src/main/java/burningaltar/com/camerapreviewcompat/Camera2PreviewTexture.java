@@ -1,31 +1,36 @@
 package burningaltar.com.camerapreviewcompat;
 
 import android.Manifest;
+import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import androidx.core.app.ActivityCompat;
 import android.util.AttributeSet;
-import android.util.Size;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -49,26 +54,78 @@ class Camera2PreviewTexture extends BaseCameraPreviewTexture {
     String mRearCameraId;
     String mCurrentCameraId;
 
-    CameraDevice mCamera;
+    volatile CameraDevice mCamera;
 
-    Handler mHandler = new Handler();
+    // Camera, session and image callbacks all run here, off the UI thread. Lives from setCamera() until the surface
+    // is destroyed.
+    HandlerThread mCameraThread;
+    Handler mHandler;
 
-    CameraCaptureSession mCaptureSession;
+    volatile CameraCaptureSession mCaptureSession;
     CaptureRequest.Builder mPreviewRequestBuilder;
 
-    // For capturing preview frames
+    // For capturing preview frames; only touched on the camera thread, which closes it with the session
     ImageReader mImageReader;
 
-    Size mPreviewSize;
-    Size mPhotoSize;
+    // How many JPEGs the reader can hold, grown to fit the biggest burst so far
+    int mPhotoReaderCapacity = 1;
+
+    // The burst being captured or waiting for a session with a big enough reader; only touched on the camera thread
+    PhotoBurst mBurst = null;
+
+    static final int DEFAULT_STREAM_MAX_IMAGES = 3;
+
+    // For streaming YUV frames alongside the preview, only attached while there's a stream listener
+    ImageReader mStreamReader;
+    SimpleCameraPreview.ImageStreamListener mImageStreamListener = null;
+    SimpleCameraPreview.FrameListener mFrameListener = null;
+    int mStreamMaxImages = DEFAULT_STREAM_MAX_IMAGES;
+    int mStreamFrameInterval = 1;
+    int mStreamFrameCount = 0;
+
+    // Zero shutter lag keeps the stream reader attached and copies every image into the ring, on the camera thread
+    volatile int mZslFrameCount = 0;
+    FrameRingBuffer mZslRing = null;
+
+    // Whether the ring goes by sensor timestamps, which only share a clock with the shutter press when they're
+    // realtime; otherwise by arrival time
+    volatile boolean mIsRealtimeTimestamp = false;
+
+    // Wrap stream images for the recorder and for preview pixels; only used on the camera thread
+    final CameraFrame mRecordFrame = new CameraFrame();
+    final CameraFrame mPixelsFrame = new CameraFrame();
+
+    // Released frame wrappers, reused for later images
+    final ArrayDeque<CameraFrame> mFramePool = new ArrayDeque<>();
+
+    FrameSize mPreviewSize;
+    FrameSize mPhotoSize;
 
     Surface mSurface;
 
     private int mDegreesToRotatePhoto = 0;
     private int mDegreesToRotatePreview = 0;
 
-    static Size[] sSupportedSizes = null;
-    Size mLastAttemptedSize = null;
+    // Preview sizes per camera, minus any that failed to configure
+    final SupportedSizeCache mSizeCache = SupportedSizeCache.getShared();
+    FrameSize mLastAttemptedSize = null;
+
+    // Start times for the open and session phases, for CameraMetrics
+    long mOpenStartNanos = 0;
+    long mSessionStartNanos = 0;
+
+    // Sizes to fall back on if the device rejects the preview size, tried on the open camera
+    SizeFallbackLadder mSizeLadder;
+    boolean mIsPreviewSizeReported = false;
+
+    // What the preview size was picked for, which the working size is remembered under
+    String mSizeSelection = null;
+
+    // The sizes and session fields above belong to the camera thread; callbacks of any other session are ignored
+    SessionCallback mSessionCallback = null;
+
+    // Loaded once per process, ideally ahead of time by SimpleCameraPreview.prewarm()
+    CameraCapabilities mCapabilities;
 
     public Camera2PreviewTexture(Context context) {
         super(context);
@@ -91,109 +148,432 @@ class Camera2PreviewTexture extends BaseCameraPreviewTexture {
 
         mCameraManager = (CameraManager) getContext().getSystemService(Context.CAMERA_SERVICE);
 
-        String[] camIds = null;
-
-        try {
-            camIds = mCameraManager.getCameraIdList();
+        mCapabilities = CameraCapabilities.get(getContext());
+        if (mCapabilities == null) return;
 
-            for (String id : camIds) {
-                if (mCameraManager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_FRONT) {
-                    mFrontCameraId = id;
-                } else {
-                    mRearCameraId = id;
-                }
-
-                if (mFrontCameraId != null && mRearCameraId != null) break;
-            }
-        } catch (CameraAccessException e) {
-            loge("Camera access exception ", e);
-        }
-
-        if (camIds == null) return;
+        mFrontCameraId = mCapabilities.getFrontCameraId();
+        mRearCameraId = mCapabilities.getRearCameraId();
     }
 
+    /**
+     * Opens the camera on the camera thread and returns null right away; the view is resized once the preview size
+     * is picked
+     */
     @Override
     public PreviewInfo setCameraImpl(boolean frontFacing) {
         log("Set camera " + (frontFacing ? "front" : "rear"));
         setCamera(frontFacing ? mFrontCameraId : mRearCameraId);
-        return mPreviewInfo;
+        return null;
     }
 
-    private boolean setCamera(String cameraId) {
+    private void setCamera(final String cameraId) {
         log("Set camera to id " + cameraId);
 
+        startCameraThread();
         cleanup();
 
-        mCurrentCameraId = cameraId;
+        if (ActivityCompat.checkSelfPermission(getContext(), Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
 
-        try {
-            if (ActivityCompat.checkSelfPermission(getContext(), Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
-                initCamera();
-                mCameraManager.openCamera(mCurrentCameraId, mCameraStateCallback, mHandler);
-                return true;
+        mOpenStartNanos = System.nanoTime();
+
+        // Layout is read and changed here on the main thread; everything else happens on the camera thread
+        final int viewWidth = getWidth();
+        final int viewHeight = getHeight();
+        final int degreesToRotatePreview = CameraUtils.getCamera2PreviewRotation((Activity) getContext());
+
+        if (YuvRotator.isSideways(degreesToRotatePreview)) {
+            setRotation(degreesToRotatePreview);
+        }
+
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                mCurrentCameraId = cameraId;
+                if (!initCamera(viewWidth, viewHeight, degreesToRotatePreview)) return;
+
+                final PreviewInfo previewInfo = mPreviewInfo;
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPreviewInfoReady(previewInfo);
+                    }
+                });
+
+                openCamera(cameraId);
             }
+        });
+    }
+
+    /**
+     * Call on the camera thread, after the cleanup() of the camera before. The permission was checked in
+     * setCamera().
+     */
+    @SuppressLint("MissingPermission")
+    private void openCamera(String cameraId) {
+        CameraMetrics.beginSection(SimpleCameraPreview.CameraMetricsListener.PHASE_CAMERA_OPEN);
+
+        try {
+            mCameraManager.openCamera(cameraId, mCameraStateCallback, mHandler);
         } catch (CameraAccessException e) {
             loge("Exception opening camera ", e);
+        } finally {
+            CameraMetrics.endSection();
         }
+    }
+
+    private void startCameraThread() {
+        if (mCameraThread != null) return;
 
-        return false;
+        mCameraThread = new HandlerThread("Camera2");
+        mCameraThread.start();
+        mHandler = new Handler(mCameraThread.getLooper());
     }
 
-    public void initCamera() throws CameraAccessException {
-        CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(mCurrentCameraId);
+    /**
+     * Let callbacks already queued finish, then end the thread. The camera must be closed first.
+     */
+    private void stopCameraThread() {
+        if (mCameraThread == null) return;
 
-        StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        mCameraThread.quitSafely();
 
-        mDegreesToRotatePhoto = CameraUtils.getRotationDegrees((Activity) getContext(), characteristics, mFrontCameraId == mCurrentCameraId);
-        mDegreesToRotatePreview = CameraUtils.getCamera2PreviewRotation((Activity) getContext());
+        try {
+            mCameraThread.join();
+        } catch (InterruptedException e) {
+            loge("Interrupted stopping camera thread", e);
+            Thread.currentThread().interrupt();
+        }
 
-        boolean isPhotoSideways = mDegreesToRotatePhoto == 90 || mDegreesToRotatePhoto == 270;
-        boolean isPreviewSideways = mDegreesToRotatePreview == 90 || mDegreesToRotatePreview == 270;
+        mCameraThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Run on the camera thread, or right away if it isn't running
+     */
+    private void runOnCameraThread(Runnable runnable) {
+        Handler handler = mHandler;
 
-        if (isPreviewSideways) {
-            setRotation(mDegreesToRotatePreview);
+        if (handler != null) {
+            handler.post(runnable);
+        } else {
+            runnable.run();
         }
+    }
+
+    /**
+     * Pick sizes and rotations from the cached capabilities, without querying the camera. Call on the camera thread,
+     * where the session callbacks read them.
+     */
+    boolean initCamera(int viewWidth, int viewHeight, int degreesToRotatePreview) {
+        CameraCapabilities.Info camera = mCapabilities == null ? null : mCapabilities.getCamera(mCurrentCameraId);
+
+        if (camera == null) {
+            loge("No capabilities for camera " + mCurrentCameraId, null);
+            return false;
+        }
+
+        mDegreesToRotatePhoto = CameraUtils.getRotationDegrees((Activity) getContext(), camera.sensorOrientation, camera.isFrontFacing);
+        mIsRealtimeTimestamp = camera.isRealtimeTimestamp;
+        mDegreesToRotatePreview = degreesToRotatePreview;
+
+        boolean isPhotoSideways = mDegreesToRotatePhoto == 90 || mDegreesToRotatePhoto == 270;
 
         log("Degrees to rotate photo " + mDegreesToRotatePhoto + " , preview " + mDegreesToRotatePreview);
 
-        log("finding camera2 sizes using configs.getOutputSizes ");
+        FrameSize[] sizes = mSizeCache.get(mCurrentCameraId, SurfaceHolder.class, camera.previewSizes);
 
-        if (sSupportedSizes == null) {
-            sSupportedSizes = configs.getOutputSizes(SurfaceHolder.class);
+        if (sizes.length == 0) {
+            // Every size has failed at some point; maybe it was something else, so start over
+            loge("No preview sizes left for camera " + mCurrentCameraId + ", resetting", null);
+            mSizeCache.invalidate(mCurrentCameraId);
+            sizes = mSizeCache.get(mCurrentCameraId, SurfaceHolder.class, camera.previewSizes);
         }
 
-        mPreviewSize = CameraUtils.getBiggestSize(sSupportedSizes, getWidth(), getHeight(), isPhotoSideways);
+        // Start with whatever worked last time for the same view size and limits, otherwise the usual pick
+        mSizeSelection = mSizeSelector.getKey(mCurrentCameraId, viewWidth, viewHeight, isPhotoSideways);
+        FrameSize first = mSizeCache.getWorkingSize(mCurrentCameraId, SurfaceHolder.class, mSizeSelection);
+        if (first == null) {
+            first = CameraUtils.selectPreviewSize(mSizeSelector, mCurrentCameraId, sizes, camera.previewFrameDurations,
+                    viewWidth, viewHeight, isPhotoSideways);
+        }
 
-        int width = mPreviewSize.getWidth();
-        int height = mPreviewSize.getHeight();
+        mSizeLadder = new SizeFallbackLadder(sizes, viewWidth, viewHeight, isPhotoSideways, first);
+        mIsPreviewSizeReported = false;
 
-        mPhotoSize = CameraUtils.getBiggestSize(configs.getOutputSizes(SurfaceHolder.class));
+        mPhotoSize = CameraUtils.getBiggestSize(camera.previewSizes);
 
-        mPreviewInfo = new PreviewInfo(width, height, true);
+        setPreviewSize(mSizeLadder.current());
+        return true;
+    }
+
+    private void setPreviewSize(FrameSize size) {
+        mPreviewSize = size;
+        mPreviewInfo = new PreviewInfo(size.getWidth(), size.getHeight(), true);
     }
 
     @Override
-    public void getPhoto(SimpleCameraPreview.PhotoBitmapListener photoListener) {
-        mPhotoBitmapListener = photoListener;
-        captureImage(false);
+    public void getPhoto(final SimpleCameraPreview.PhotoBitmapListener photoListener) {
+        final boolean isZsl = mZslFrameCount > 0;
+        final long pressNanos = mIsRealtimeTimestamp ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (isZsl && deliverZslPhoto(photoListener, pressNanos)) return;
+
+                // A new capture, also when zero shutter lag has nothing buffered yet, e.g. while the session is
+                // still being configured
+                mPhotoBitmapListener = photoListener;
+                captureImage(false);
+            }
+        });
+    }
+
+    /**
+     * Encode the buffered frame closest to the shutter press. Call on the camera thread.
+     *
+     * @return false if there's no frame to use
+     */
+    private boolean deliverZslPhoto(SimpleCameraPreview.PhotoBitmapListener photoListener, long pressNanos) {
+        FrameRingBuffer ring = mZslRing;
+        int slot = ring == null ? -1 : ring.findClosest(pressNanos);
+        if (slot < 0) return false;
+
+        log("ZSL frame " + (ring.getTimestampNanos(slot) - pressNanos) / 1000 + "us from shutter press");
+
+        // Stream images aren't touched by JPEG_ORIENTATION, so they need the full sensor rotation
+        byte[] jpeg = CameraUtils.fromPreviewData(ring.getData(slot), ring.getWidth(), ring.getHeight());
+        dispatchPhoto(photoListener, jpeg, mDegreesToRotatePhoto, false, ring.getTimestampNanos(slot),
+                ring.getWidth(), ring.getHeight());
+        return true;
+    }
+
+    @Override
+    public void setZeroShutterLag(int frameCount) {
+        mZslFrameCount = Math.max(0, frameCount);
+
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mZslFrameCount == 0) mZslRing = null;
+                updateStreamReader();
+            }
+        });
+    }
+
+    @Override
+    public void setFrameRecorder(FrameRecorder recorder) {
+        mRecorder = recorder;
+
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                updateStreamReader();
+            }
+        });
+    }
+
+    /**
+     * Whether the session needs a YUV output, for stream listeners, zero shutter lag or recording
+     */
+    private boolean needsStreamReader() {
+        return mImageStreamListener != null || mFrameListener != null || mZslFrameCount > 0 || mRecorder != null;
+    }
+
+    /**
+     * The stream reader is one of the session's outputs, so it comes and goes with a new session. Call on the camera
+     * thread.
+     */
+    private void updateStreamReader() {
+        if (mCamera != null && needsStreamReader() != (mStreamReader != null)) {
+            closeCaptureSession();
+            startCaptureSession();
+        }
+    }
+
+    /**
+     * Append a stream image to the recorder as is, planes and strides included
+     */
+    private void recordImage(Image image) {
+        if (mRecorder == null) return;
+
+        recordFrame(wrapImage(image, mRecordFrame, mDegreesToRotatePhoto));
+    }
+
+    /**
+     * Point a reusable frame at an image's planes, without taking ownership of the image
+     */
+    private static CameraFrame wrapImage(Image image, CameraFrame frame, int rotation) {
+        Image.Plane[] planes = image.getPlanes();
+
+        for (int i = 0; i < planes.length; i++) {
+            frame.setPlane(i, planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
+        }
+
+        frame.setPlaneCount(planes.length);
+        frame.setFormat(CameraFrame.FORMAT_YUV_420_888, image.getWidth(), image.getHeight());
+        frame.checkOut(rotation, image.getTimestamp());
+
+        return frame;
+    }
+
+    /**
+     * Copy a stream image into the ring, making a new ring only when the preview size or frame count changed
+     */
+    private void writeZslFrame(Image image, long timestampNanos) {
+        int frameCount = mZslFrameCount;
+        if (frameCount == 0) return;
+
+        if (mZslRing == null || !mZslRing.matches(frameCount, image.getWidth(), image.getHeight())) {
+            mZslRing = new FrameRingBuffer(frameCount, image.getWidth(), image.getHeight());
+        }
+
+        Image.Plane[] planes = image.getPlanes();
+        mZslRing.write(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride(), timestampNanos);
     }
 
     @Override
     public void getNextPreviewFrame(SimpleCameraPreview.PreviewBitmapListener previewBitmapListener) {
         log("Get next preview frame");
         mPreviewBitmapListener = previewBitmapListener;
-        captureImage(true);
+
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                captureImage(true);
+            }
+        });
     }
 
+    @Override
+    public void getNextPreviewPixels(int[] argb, SimpleCameraPreview.PreviewPixelsListener listener) {
+        mPreviewPixels = argb;
+        mPreviewPixelsListener = listener;
+
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                // The YUV stream converts its next frame directly; without one, we have to decode a JPEG capture
+                if (mStreamReader == null) {
+                    captureImage(true);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void getPhotos(final int count, final SimpleCameraPreview.PhotoBurstListener listener) {
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (count < 1 || mBurst != null) {
+                    if (mBurst != null) loge("A burst is already being captured", null);
+                    dispatchPhotos(listener, Collections.<CapturedPhoto>emptyList());
+                    return;
+                }
+
+                mBurst = new PhotoBurst(count, listener);
+
+                // The reader is one of the session's outputs, so a bigger one means a new session; onConfigured
+                // starts the burst once it's ready
+                if (mImageReader == null || mPhotoReaderCapacity < count) {
+                    mPhotoReaderCapacity = Math.max(mPhotoReaderCapacity, count);
+
+                    if (mCamera != null) {
+                        closeCaptureSession();
+                        startCaptureSession();
+                    }
+
+                    return;
+                }
+
+                captureBurst();
+            }
+        });
+    }
+
+    /**
+     * Submit the pending burst as one request list, alongside the repeating preview request so the preview keeps
+     * running. Call on the camera thread.
+     */
+    private void captureBurst() {
+        PhotoBurst burst = mBurst;
+        if (burst == null || burst.mIsCapturing || mCaptureSession == null || mImageReader == null) return;
+
+        try {
+            CaptureRequest.Builder builder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(mImageReader.getSurface());
+            builder.set(CaptureRequest.JPEG_ORIENTATION, mDegreesToRotatePhoto);
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+
+            // Tells our captures apart from one-shot photos taken meanwhile
+            builder.setTag(burst);
+
+            burst.mIsCapturing = true;
+            burst.mSequenceId = mCaptureSession.captureBurst(Collections.nCopies(burst.mCount, builder.build()),
+                    mBurstCaptureCallback, mHandler);
+        } catch (CameraAccessException e) {
+            loge("Unable to capture burst", e);
+            finishBurst();
+        }
+    }
+
+    /**
+     * Deliver whatever the burst got. Call on the camera thread.
+     */
+    private void finishBurst() {
+        PhotoBurst burst = mBurst;
+        if (burst == null) return;
+
+        mBurst = null;
+        dispatchPhotos(burst.mListener, burst.getPhotos());
+    }
+
+    private final CameraCaptureSession.CaptureCallback mBurstCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+            PhotoBurst burst = mBurst;
+            if (burst != null && request.getTag() == burst) burst.onStarted(timestamp);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            loge("Burst capture failed, reason " + failure.getReason(), null);
+
+            PhotoBurst burst = mBurst;
+            if (burst != null && request.getTag() == burst && burst.onFailed()) finishBurst();
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId) {
+            // None of the burst's images are coming. A late abort of a burst that was already finished, e.g. when its
+            // session closed, mustn't finish the next one.
+            PhotoBurst burst = mBurst;
+            if (burst != null && burst.mIsCapturing && burst.mSequenceId == sequenceId) finishBurst();
+        }
+    };
+
+    /**
+     * Capture one JPEG into the still reader. Call on the camera thread, where the session and its readers are torn
+     * down.
+     */
     private void captureImage(boolean forPreview) {
-        if (mCaptureSession == null) return;
+        CameraDevice camera = mCamera;
+        CameraCaptureSession session = mCaptureSession;
+        ImageReader reader = mImageReader;
+        if (camera == null || session == null || reader == null) return;
 
         try {
-            final CaptureRequest.Builder captureBuilder = mCamera.createCaptureRequest(forPreview ? CameraDevice.TEMPLATE_PREVIEW : CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(mImageReader.getSurface());
+            final CaptureRequest.Builder captureBuilder = camera.createCaptureRequest(forPreview ? CameraDevice.TEMPLATE_PREVIEW : CameraDevice.TEMPLATE_STILL_CAPTURE);
+            captureBuilder.addTarget(reader.getSurface());
             captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, mDegreesToRotatePhoto);
-            mCaptureSession.stopRepeating();
-            mCaptureSession.capture(captureBuilder.build(), null, null);
+            session.stopRepeating();
+            session.capture(captureBuilder.build(), null, mHandler);
         } catch (CameraAccessException e) {
             loge("Unable to get preview ", e);
         }
@@ -209,31 +589,11 @@ class Camera2PreviewTexture extends BaseCameraPreviewTexture {
             log("onOpened");
 
             mCamera = camera;
+            CameraMetrics.report(SimpleCameraPreview.CameraMetricsListener.PHASE_CAMERA_OPEN, mOpenStartNanos);
 
             log("Preview size " + mPreviewSize.getWidth() + ", " + mPreviewSize.getHeight() + " rotated size " + mPreviewInfo.rotatedWidth + ", " + mPreviewInfo.rotatedHeight + " rotate " + mDegreesToRotatePreview);
 
-            // We configure the size of default buffer to be the size of camera preview we want.
-            SurfaceTexture st = getSurfaceTexture();
-            st.setDefaultBufferSize(mPreviewInfo.w, mPreviewInfo.h);
-
-            // This is the output Surface we need to start preview.
-            mSurface = new Surface(st);
-
-            try {
-                log("createCaptureSession");
-                mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.JPEG, 1);
-                mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mHandler);
-
-                List<Surface> surfaces = new ArrayList<>();
-                surfaces.add(mSurface);
-                surfaces.add(mImageReader.getSurface());
-
-                mCamera.createCaptureSession(surfaces, mCaptureStateCallback, mHandler);
-
-            } catch (CameraAccessException e) {
-                loge("error creating capture session ", e);
-            }
-
+            startCaptureSession();
         }
 
         @Override
@@ -247,9 +607,164 @@ class Camera2PreviewTexture extends BaseCameraPreviewTexture {
         }
     };
 
+    /**
+     * Create a session on the open camera with the preview surface, the still/preview image reader, and the YUV stream
+     * reader if anyone is streaming
+     */
+    void startCaptureSession() {
+        if (mCamera == null) return;
+
+        mSessionStartNanos = System.nanoTime();
+        CameraMetrics.beginSection(SimpleCameraPreview.CameraMetricsListener.PHASE_SESSION_CONFIGURED);
+
+        try {
+            createCaptureSession();
+        } finally {
+            CameraMetrics.endSection();
+        }
+    }
+
+    private void createCaptureSession() {
+        // We configure the size of default buffer to be the size of camera preview we want.
+        SurfaceTexture st = getSurfaceTexture();
+        st.setDefaultBufferSize(mPreviewInfo.w, mPreviewInfo.h);
+
+        // This is the output Surface we need to start preview.
+        mSurface = new Surface(st);
+
+        try {
+            log("createCaptureSession");
+            mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.JPEG,
+                    mPhotoReaderCapacity);
+            mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mHandler);
+
+            List<Surface> surfaces = new ArrayList<>();
+            surfaces.add(mSurface);
+            surfaces.add(mImageReader.getSurface());
+
+            if (needsStreamReader()) {
+                log("Adding YUV stream with max images " + mStreamMaxImages);
+                mStreamReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.YUV_420_888, mStreamMaxImages);
+                mStreamReader.setOnImageAvailableListener(mOnStreamImageAvailableListener, mHandler);
+                surfaces.add(mStreamReader.getSurface());
+            }
+
+            mSessionCallback = new SessionCallback();
+            mCamera.createCaptureSession(surfaces, mSessionCallback, mHandler);
+
+        } catch (CameraAccessException e) {
+            loge("error creating capture session ", e);
+        }
+    }
+
+    /**
+     * Tear down the session and its readers, leaving the camera open
+     */
+    void closeCaptureSession() {
+        // Captures still in flight die with the session
+        if (mBurst != null && mBurst.mIsCapturing) finishBurst();
+
+        // A session still being configured reports to a callback that's no longer current
+        mSessionCallback = null;
+
+        if (mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+
+        if (mStreamReader != null) {
+            mStreamReader.close();
+            mStreamReader = null;
+        }
+
+        // Frames from this session are no use to the next one
+        if (mZslRing != null) mZslRing.clear();
+
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+    }
+
+    @Override
+    public void startImageStream(SimpleCameraPreview.ImageStreamListener listener, int maxImages, int frameInterval) {
+        mFrameListener = null;
+        mImageStreamListener = listener;
+        startStream(maxImages, frameInterval);
+    }
+
+    @Override
+    public void startFrameStream(SimpleCameraPreview.FrameListener listener, int maxFrames) {
+        mImageStreamListener = null;
+        mFrameListener = listener;
+        mDispatcher.setMaxFrames(maxFrames);
+        startStream(maxFrames, 1);
+    }
+
+    private void startStream(final int maxImages, final int frameInterval) {
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                int streamMaxImages = Math.max(2, maxImages);
+                boolean needsNewReader = mStreamReader == null || mStreamMaxImages != streamMaxImages;
+
+                mStreamMaxImages = streamMaxImages;
+                mStreamFrameInterval = Math.max(1, frameInterval);
+                mStreamFrameCount = 0;
+
+                // The stream reader is part of the session's outputs, so adding it means configuring a new session
+                if (needsNewReader && mCamera != null) {
+                    closeCaptureSession();
+                    startCaptureSession();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stopImageStream() {
+        stopStream();
+    }
+
+    @Override
+    public void stopFrameStream() {
+        stopStream();
+    }
+
+    private void stopStream() {
+        mImageStreamListener = null;
+        mFrameListener = null;
+
+        // Drop the YUV output so the camera stops producing frames nobody reads
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                updateStreamReader();
+            }
+        });
+    }
+
+    /**
+     * Close the camera, its session and readers on the camera thread, after any capture already posted there, so
+     * nothing is torn down while it's in use
+     */
     void cleanup() {
         log("cleanup");
 
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+            }
+        });
+    }
+
+    private void closeCamera() {
         try {
             if (mCamera != null) {
                 if (mCaptureSession != null) {
@@ -264,14 +779,25 @@ class Camera2PreviewTexture extends BaseCameraPreviewTexture {
             e.printStackTrace();
             // Fail silently
         }
+
+        closeCaptureSession();
+
+        // A burst still waiting for a session won't get one
+        finishBurst();
     }
 
-    CameraCaptureSession.StateCallback mCaptureStateCallback = new CameraCaptureSession.StateCallback() {
+    /**
+     * One per session, so a session closed or replaced before it finished configuring, e.g. by a camera switch, can't
+     * touch the sizes of the one after it
+     */
+    private class SessionCallback extends CameraCaptureSession.StateCallback {
         @Override
         public void onConfigured(CameraCaptureSession session) {
             log("onConfigured");
 
-            if (null == mCamera) {
+            if (this != mSessionCallback || null == mCamera) {
+                log("Session is stale, closing it");
+                session.close();
                 return;
             }
 
@@ -285,41 +811,71 @@ class Camera2PreviewTexture extends BaseCameraPreviewTexture {
                 // Finally, we start displaying the camera preview.
                 mPreviewRequestBuilder.addTarget(mSurface);
 
+                // Stream frames ride along with the repeating preview request, so they never interrupt it
+                if (mStreamReader != null) {
+                    mPreviewRequestBuilder.addTarget(mStreamReader.getSurface());
+                }
+
                 mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(), null, mHandler);
             } catch (CameraAccessException e) {
                 e.printStackTrace();
+                return;
+            }
+
+            CameraMetrics.report(SimpleCameraPreview.CameraMetricsListener.PHASE_SESSION_CONFIGURED, mSessionStartNanos);
+
+            if (!mIsPreviewSizeReported && mSizeLadder != null) {
+                mIsPreviewSizeReported = true;
+                mSizeCache.setWorkingSize(mCurrentCameraId, SurfaceHolder.class, mSizeSelection, mPreviewSize);
+
+                log("Preview size " + mPreviewSize + " after " + mSizeLadder.getRetries() + " retries");
+                dispatchPreviewSizeSelected(mPreviewSize.getWidth(), mPreviewSize.getHeight(),
+                        mSizeLadder.getRetries(), mSizeLadder.getElapsedNanos());
+            }
+
+            if (!mIsCameraReady) {
+                mIsCameraReady = true;
+                onCameraReady();
+            }
+
+            // A burst that was waiting for a bigger reader
+            if (mBurst != null && !mBurst.mIsCapturing) {
+                captureBurst();
             }
         }
 
         @Override
         public void onConfigureFailed(CameraCaptureSession session) {
+            if (this != mSessionCallback) return;
+
             log("onConfigureFailed with size " + mPreviewSize + ", trying another");
-            int sizeIdx = -1;
 
-            for (int i = 0; i < sSupportedSizes.length; i++) {
-                if (sSupportedSizes[i].equals(mPreviewSize)) {
-                    sizeIdx = i;
-                    break;
-                }
+            // Only this camera loses the size
+            mSizeCache.remove(mCurrentCameraId, SurfaceHolder.class, mPreviewSize);
+
+            FrameSize next = mSizeLadder == null ? null : mSizeLadder.next();
+
+            if (next == null || mCamera == null) {
+                onCameraFailed("Unable to configure a preview session at any size");
+                return;
             }
 
-            if (sizeIdx > -1) {
-                Size[] newSizes = new Size[sSupportedSizes.length - 1];
+            // The camera stays open; only the session is rebuilt, here on the camera thread
+            setPreviewSize(next);
+            closeCaptureSession();
+            startCaptureSession();
 
-                int j = 0;
-                for (int i = 0; i < sSupportedSizes.length; i++) {
-                    if (i == sizeIdx) {
-                        continue;
-                    }
+            // The view resizes on the main thread
+            final PreviewInfo previewInfo = mPreviewInfo;
 
-                    newSizes[j++] = sSupportedSizes[i];
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onPreviewInfoReady(previewInfo);
                 }
-
-                sSupportedSizes = newSizes;
-                setCamera(mIsFrontFacing);
-            }
+            });
         }
-    };
+    }
 
     CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
         @Override
@@ -334,39 +890,265 @@ class Camera2PreviewTexture extends BaseCameraPreviewTexture {
         @Override
         public void onImageAvailable(ImageReader reader) {
             log("Image available for " + Build.MODEL + ", " + Build.DEVICE + ", " + Build.PRODUCT);
-            if (mPreviewBitmapListener != null || mPhotoBitmapListener != null) {
+
+            // Burst images must be taken one at a time; acquireLatestImage would throw away all but the last
+            if (mBurst != null && mBurst.mIsCapturing) {
+                onBurstImageAvailable(reader);
+                return;
+            }
+
+            if (mPreviewBitmapListener != null || mPreviewPixelsListener != null || mPhotoBitmapListener != null) {
                 Image image = reader.acquireLatestImage();
-                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                onStillImage(image);
+            }
 
-                buffer.rewind();
-                byte[] b = new byte[buffer.remaining()];
-                buffer.get(b);
+            restartRepeatingRequest();
+        }
+    };
 
-                int rotation = 0;
+    /**
+     * One-shot captures stop the preview's repeating request; start it again
+     */
+    private void restartRepeatingRequest() {
+        // The session may have been closed from the main thread while the capture was in flight
+        CameraCaptureSession session = mCaptureSession;
+        if (session == null) return;
 
-                // Galaxy S7
-                if (Build.MODEL != null && Build.MODEL.contains("SAMSUNG-SM-G930")) {
-                    rotation = mDegreesToRotatePhoto;
-                }
+        try {
+            session.setRepeatingRequest(mPreviewRequestBuilder.build(), null, mHandler);
+        } catch (CameraAccessException e) {
+            loge("Unable to restart repeating request", e);
+        }
+    }
 
-                // Rotation was already set captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, mDegreesToRotatePhoto);
-                if (mPreviewBitmapListener != null) {
-                    // A preview was requested
-                    mPreviewBitmapListener.onPreview(b, rotation);
-                    mPreviewBitmapListener = null;
-                } else {
-                    // A photo was requested
-                    mPhotoBitmapListener.onPhoto(b, rotation);
-                    mPhotoBitmapListener = null;
-                }
+    private void onBurstImageAvailable(ImageReader reader) {
+        PhotoBurst burst = mBurst;
+        Image image = reader.acquireNextImage();
+        if (image == null) return;
+
+        boolean isOneShotPending = mPreviewBitmapListener != null || mPreviewPixelsListener != null
+                || mPhotoBitmapListener != null;
+
+        // A one-shot photo taken during the burst shares the reader; its timestamp isn't one of the burst's
+        if (isOneShotPending && !burst.isFromBurst(image.getTimestamp())) {
+            onStillImage(image);
+            restartRepeatingRequest();
+            return;
+        }
+
+        byte[] jpeg = getJpegBytes(image);
+        int orientation = getJpegOrientation(jpeg, image);
+        int rotation = JpegHeaderParser.getDegreesToRotate(orientation);
+        byte[] tagged = tagOrientation(jpeg, rotation, JpegHeaderParser.isMirrored(orientation));
+        CapturedPhoto photo = new CapturedPhoto(tagged, rotation, image.getTimestamp(), image.getWidth(),
+                image.getHeight());
+        image.close();
+
+        if (burst.add(photo)) finishBurst();
+    }
+
+    private byte[] getJpegBytes(Image image) {
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+
+        buffer.rewind();
+        byte[] b = new byte[buffer.remaining()];
+        buffer.get(b);
 
-                image.close();
+        return b;
+    }
+
+    /**
+     * The EXIF orientation the JPEG's pixels still need. JPEG_ORIENTATION was set on the request, which cameras honor
+     * either by rotating the pixels or by only tagging the EXIF orientation, and some ignore it. Which one happened
+     * shows in the JPEG itself, on every device rather than a list of models.
+     * <p/>
+     * A camera that ignores a 180 degree JPEG_ORIENTATION can't be told apart this way: the sides come out the same
+     * whether or not it rotated, so its photos are taken as already upright.
+     */
+    private int getJpegOrientation(byte[] jpeg, Image image) {
+        JpegHeaderParser.Header header = JpegHeaderParser.parse(jpeg);
+        if (header == null) return JpegHeaderParser.ORIENTATION_NORMAL;
+
+        // Tagged, pixels as the sensor sees them, and maybe mirrored
+        if (header.getOrientation() > JpegHeaderParser.ORIENTATION_NORMAL) return header.getOrientation();
+
+        // Neither tagged nor rotated: a sideways rotation would have swapped the sides from what was captured
+        if (YuvRotator.isSideways(mDegreesToRotatePhoto) && image.getWidth() != image.getHeight()
+                && header.getWidth() == image.getWidth() && header.getHeight() == image.getHeight()) {
+            return ExifOrientationWriter.toOrientation(mDegreesToRotatePhoto, false);
+        }
+
+        return JpegHeaderParser.ORIENTATION_NORMAL;
+    }
+
+    /**
+     * Hand a still to whichever one-shot listener asked for it, then close it
+     */
+    private void onStillImage(Image image) {
+        byte[] b = getJpegBytes(image);
+        int orientation = getJpegOrientation(b, image);
+        int rotation = JpegHeaderParser.getDegreesToRotate(orientation);
+
+        // Rotation was already set captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, mDegreesToRotatePhoto);
+        if (mPreviewBitmapListener != null || mPreviewPixelsListener != null) {
+            // A preview was requested
+            if (mPreviewBitmapListener != null) {
+                dispatchPreview(mPreviewBitmapListener, b, rotation);
+                mPreviewBitmapListener = null;
+            }
+
+            if (mPreviewPixelsListener != null) {
+                deliverPreviewPixels(b, rotation);
             }
+        } else {
+            // A photo was requested
+            dispatchPhoto(mPhotoBitmapListener, b, rotation, JpegHeaderParser.isMirrored(orientation),
+                    image.getTimestamp(), image.getWidth(), image.getHeight());
+            mPhotoBitmapListener = null;
+        }
+
+        image.close();
+    }
+
+    /**
+     * Always takes the latest image so a slow listener skips frames rather than stalling the preview, which shares
+     * the repeating request with this reader
+     */
+    private final ImageReader.OnImageAvailableListener mOnStreamImageAvailableListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image;
 
             try {
-                mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(), null, mHandler);
-            } catch (CameraAccessException e) {
-                loge("Unable to restart repeating request", e);
+                image = reader.acquireLatestImage();
+            } catch (IllegalStateException e) {
+                // The frame listener is holding every image; skip until it releases one
+                mFrameStats.onStarved();
+                return;
+            }
+
+            if (image == null) return;
+
+            mFrameStats.onFrame(image.getTimestamp());
+
+            // A realtime sensor timestamp is when the frame was exposed, which arrival time lags by the pipeline
+            // delay; an unknown source can't be compared with the shutter press at all
+            writeZslFrame(image, mIsRealtimeTimestamp ? image.getTimestamp() : System.nanoTime());
+            recordImage(image);
+
+            if (mPreviewPixelsListener != null) {
+                deliverPreviewPixels(image);
+            }
+
+            boolean isSampled = mStreamFrameCount++ % mStreamFrameInterval == 0;
+
+            SimpleCameraPreview.FrameListener frameListener = mFrameListener;
+            SimpleCameraPreview.ImageStreamListener listener = mImageStreamListener;
+
+            // Stream images aren't touched by JPEG_ORIENTATION, so they need the full sensor rotation
+            if (frameListener != null && isSampled) {
+                CameraFrame frame = obtainFrame(image);
+                frame.checkOut(mDegreesToRotatePhoto, image.getTimestamp());
+
+                // The image stays open until the frame is released
+                deliverFrame(frame, frameListener);
+                return;
+            }
+
+            if (listener != null && isSampled) {
+                long start = System.nanoTime();
+                listener.onImage(image, mDegreesToRotatePhoto);
+                mFrameStats.recordListener(System.nanoTime() - start);
+            }
+
+            image.close();
+        }
+    };
+
+    private void deliverPreviewPixels(Image image) {
+        SimpleCameraPreview.PreviewPixelsListener listener = mPreviewPixelsListener;
+        mPreviewPixelsListener = null;
+
+        long start = System.nanoTime();
+
+        CameraFrame frame = wrapImage(image, mPixelsFrame, mDegreesToRotatePhoto);
+        int[] roi = getRoiRect(frame.getWidth(), frame.getHeight(), mDegreesToRotatePhoto);
+        if (roi != null) frame.setCrop(roi[0], roi[1], roi[2], roi[3]);
+
+        mPreviewPixels = YuvConverter.toArgb(frame, mPreviewPixels, mConversionExecutor);
+        mFrameStats.recordConversion(System.nanoTime() - start);
+
+        dispatchPreviewPixels(listener, mPreviewPixels, frame.getWidth(), frame.getHeight(), mDegreesToRotatePhoto);
+
+        // The image is closed by the caller; don't hold on to its planes
+        frame.release();
+        frame.clearPlanes();
+    }
+
+    /**
+     * Fallback for when there's no YUV stream to convert from
+     */
+    private void deliverPreviewPixels(byte[] jpeg, int rotation) {
+        SimpleCameraPreview.PreviewPixelsListener listener = mPreviewPixelsListener;
+        mPreviewPixelsListener = null;
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        if (bitmap == null) {
+            loge("Unable to decode preview", null);
+            return;
+        }
+
+        int[] roi = getRoiRect(bitmap.getWidth(), bitmap.getHeight(), rotation);
+        int left = roi == null ? 0 : roi[0];
+        int top = roi == null ? 0 : roi[1];
+        int width = roi == null ? bitmap.getWidth() : roi[2] - roi[0];
+        int height = roi == null ? bitmap.getHeight() : roi[3] - roi[1];
+
+        mPreviewPixels = YuvConverter.ensureCapacity(mPreviewPixels, width * height);
+        bitmap.getPixels(mPreviewPixels, 0, width, left, top, width, height);
+        bitmap.recycle();
+
+        dispatchPreviewPixels(listener, mPreviewPixels, width, height, rotation);
+    }
+
+    private CameraFrame obtainFrame(Image image) {
+        CameraFrame frame;
+
+        synchronized (mFramePool) {
+            frame = mFramePool.pollFirst();
+        }
+
+        if (frame == null) {
+            frame = new CameraFrame();
+            frame.setReleaser(mImageReleaser);
+        }
+
+        Image.Plane[] planes = image.getPlanes();
+
+        for (int i = 0; i < planes.length; i++) {
+            frame.setPlane(i, planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
+        }
+
+        frame.setPlaneCount(planes.length);
+        frame.setFormat(CameraFrame.FORMAT_YUV_420_888, image.getWidth(), image.getHeight());
+        frame.mOwner = image;
+
+        return frame;
+    }
+
+    final CameraFrame.Releaser mImageReleaser = new CameraFrame.Releaser() {
+        @Override
+        public void release(CameraFrame frame) {
+            Image image = (Image) frame.mOwner;
+            frame.mOwner = null;
+
+            // Drop the plane buffers too, they're invalid once the image is closed
+            frame.clearPlanes();
+
+            if (image != null) image.close();
+
+            synchronized (mFramePool) {
+                mFramePool.addFirst(frame);
             }
         }
     };
@@ -374,6 +1156,7 @@ class Camera2PreviewTexture extends BaseCameraPreviewTexture {
     @Override
     public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
         cleanup();
+        stopCameraThread();
         return super.onSurfaceTextureDestroyed(surface);
     }
 
@@ -0,0 +1,227 @@
+package burningaltar.com.camerapreviewcompat;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+import android.util.Size;
+import android.view.SurfaceHolder;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What each camera2 camera can do, read from its CameraCharacteristics once per process. Looking these up takes tens
+ * of milliseconds per camera on some devices, so {@link #prewarm(Context)} can do it in the background at app start
+ * and the preview never has to on its critical path.
+ */
+@TargetApi(21)
+class CameraCapabilities {
+    private static final String TAG = CameraCapabilities.class.getSimpleName();
+
+    private static final Object sLoadLock = new Object();
+
+    private static CameraCapabilities sInstance = null;
+    private static Thread sPrewarmThread = null;
+
+    /**
+     * One camera's characteristics, copied out so they can be read from any thread
+     */
+    static class Info {
+        final String id;
+        final boolean isFrontFacing;
+        final int sensorOrientation;
+
+        // Image timestamps are SystemClock.elapsedRealtimeNanos(), rather than some clock of the camera's own
+        final boolean isRealtimeTimestamp;
+
+        // Sizes for the preview surface, JPEG captures and YUV streams
+        final FrameSize[] previewSizes;
+        final FrameSize[] jpegSizes;
+        final FrameSize[] yuvSizes;
+
+        // Fastest frame duration for each preview size, in nanos
+        final Map<FrameSize, Long> previewFrameDurations;
+
+        final int[] afModes;
+
+        Info(String id, boolean isFrontFacing, int sensorOrientation, boolean isRealtimeTimestamp,
+             FrameSize[] previewSizes, Map<FrameSize, Long> previewFrameDurations, FrameSize[] jpegSizes,
+             FrameSize[] yuvSizes, int[] afModes) {
+            this.id = id;
+            this.isFrontFacing = isFrontFacing;
+            this.sensorOrientation = sensorOrientation;
+            this.isRealtimeTimestamp = isRealtimeTimestamp;
+            this.previewSizes = previewSizes;
+            this.previewFrameDurations = previewFrameDurations;
+            this.jpegSizes = jpegSizes;
+            this.yuvSizes = yuvSizes;
+            this.afModes = afModes;
+        }
+
+        boolean supportsAfMode(int mode) {
+            for (int afMode : afModes) {
+                if (afMode == mode) return true;
+            }
+
+            return false;
+        }
+    }
+
+    private final Map<String, Info> mCameras;
+    private final String mFrontCameraId;
+    private final String mRearCameraId;
+
+    private CameraCapabilities(Map<String, Info> cameras, String frontCameraId, String rearCameraId) {
+        mCameras = Collections.unmodifiableMap(cameras);
+        mFrontCameraId = frontCameraId;
+        mRearCameraId = rearCameraId;
+    }
+
+    /**
+     * Start loading capabilities on a background thread, if they aren't loaded or loading already
+     */
+    static synchronized void prewarm(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+        if (sInstance != null || sPrewarmThread != null) return;
+
+        final Context appContext = context.getApplicationContext();
+
+        sPrewarmThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                get(appContext);
+            }
+        }, "CameraPrewarm");
+
+        sPrewarmThread.start();
+    }
+
+    /**
+     * The cached capabilities, loading them first if nobody has yet. If a prewarm is in progress this waits for it
+     * rather than doing the same lookups twice.
+     *
+     * @return null if the cameras couldn't be read
+     */
+    static CameraCapabilities get(Context context) {
+        synchronized (CameraCapabilities.class) {
+            if (sInstance != null) return sInstance;
+        }
+
+        // Only one thread loads; anyone else arriving meanwhile waits here and then finds sInstance set
+        synchronized (sLoadLock) {
+            synchronized (CameraCapabilities.class) {
+                if (sInstance != null) return sInstance;
+            }
+
+            long start = System.nanoTime();
+            CameraCapabilities capabilities = load((CameraManager) context.getSystemService(Context.CAMERA_SERVICE));
+            Log.v(TAG, "Loaded camera capabilities in " + (System.nanoTime() - start) / 1000 + "us");
+
+            synchronized (CameraCapabilities.class) {
+                sInstance = capabilities;
+                sPrewarmThread = null;
+            }
+
+            return capabilities;
+        }
+    }
+
+    /**
+     * Forget the cached capabilities, e.g. for tests or if an external camera was plugged in
+     */
+    static synchronized void invalidate() {
+        sInstance = null;
+    }
+
+    private static CameraCapabilities load(CameraManager cameraManager) {
+        if (cameraManager == null) return null;
+
+        Map<String, Info> cameras = new LinkedHashMap<>();
+        String frontCameraId = null;
+        String rearCameraId = null;
+
+        try {
+            for (String id : cameraManager.getCameraIdList()) {
+                CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(id);
+
+                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                boolean isFront = facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT;
+
+                Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+                Integer timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+
+                Size[] previewSizes = configs == null ? null : configs.getOutputSizes(SurfaceHolder.class);
+
+                Info camera = new Info(id, isFront, orientation == null ? 0 : orientation,
+                        timestampSource != null
+                                && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME,
+                        toFrameSizes(previewSizes), getFrameDurations(configs, previewSizes),
+                        toFrameSizes(configs == null ? null : configs.getOutputSizes(ImageFormat.JPEG)),
+                        toFrameSizes(configs == null ? null : configs.getOutputSizes(ImageFormat.YUV_420_888)),
+                        afModes == null ? new int[0] : afModes);
+
+                cameras.put(id, camera);
+
+                // Same as before: the first front and first rear camera win
+                if (isFront) {
+                    if (frontCameraId == null) frontCameraId = id;
+                } else if (rearCameraId == null) {
+                    rearCameraId = id;
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Camera access exception ", e);
+            return null;
+        }
+
+        return new CameraCapabilities(cameras, frontCameraId, rearCameraId);
+    }
+
+    static FrameSize[] toFrameSizes(Size[] sizes) {
+        if (sizes == null) return new FrameSize[0];
+
+        FrameSize[] frameSizes = new FrameSize[sizes.length];
+
+        for (int i = 0; i < sizes.length; i++) {
+            frameSizes[i] = new FrameSize(sizes[i].getWidth(), sizes[i].getHeight());
+        }
+
+        return frameSizes;
+    }
+
+    private static Map<FrameSize, Long> getFrameDurations(StreamConfigurationMap configs, Size[] sizes) {
+        Map<FrameSize, Long> durations = new HashMap<>();
+        if (sizes == null) return durations;
+
+        for (Size size : sizes) {
+            durations.put(new FrameSize(size.getWidth(), size.getHeight()),
+                    configs.getOutputMinFrameDuration(SurfaceHolder.class, size));
+        }
+
+        return durations;
+    }
+
+    Info getCamera(String id) {
+        return id == null ? null : mCameras.get(id);
+    }
+
+    String getFrontCameraId() {
+        return mFrontCameraId;
+    }
+
+    String getRearCameraId() {
+        return mRearCameraId;
+    }
+}
@@ -0,0 +1,285 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single YUV frame straight from the camera, without copying. Planes are exposed as Y, U, V buffers with their
+ * row and pixel strides, same as android.media.Image, so both camera APIs look alike: legacy NV21 frames show up as
+ * a Y plane plus two interleaved chroma planes with a pixel stride of 2.
+ * <p/>
+ * The buffers belong to the camera. Call {@link #release()} as soon as you're done, from any thread, and don't touch
+ * the frame afterwards; it'll be reused for a later frame.
+ */
+public class CameraFrame {
+    // Same values as android.graphics.ImageFormat, so they can be compared directly
+    public static final int FORMAT_NV21 = 0x11;
+    public static final int FORMAT_YUV_420_888 = 0x23;
+    // Luma only: a single Y plane, see FrameDispatcher.setLumaOnly()
+    public static final int FORMAT_Y8 = 0x20203859;
+
+    interface Releaser {
+        void release(CameraFrame frame);
+    }
+
+    private int mWidth;
+    private int mHeight;
+    private int mFormat;
+    private int mRotation;
+    private long mTimestampNanos;
+
+    // Set per delivery; hides the chroma planes without touching them
+    private boolean mIsLumaOnly = false;
+
+    // Set per delivery; a region of interest shown through views of the planes, see setCrop()
+    private boolean mIsCropped = false;
+    private int mCropLeft;
+    private int mCropTop;
+    private int mCropWidth;
+    private int mCropHeight;
+    private final ByteBuffer[] mCropPlanes = new ByteBuffer[3];
+
+    // The plane buffers the crop views were made from, so they're only remade when the planes or region change
+    private final ByteBuffer[] mCropSources = new ByteBuffer[3];
+
+    private int mPlaneCount;
+    private final ByteBuffer[] mPlanes = new ByteBuffer[3];
+    private final int[] mRowStrides = new int[3];
+    private final int[] mPixelStrides = new int[3];
+
+    // Backing array for packed frames, null when the planes come from an Image
+    private byte[] mData;
+
+    // Whatever the releaser needs to give the frame back, e.g. the Image to close
+    Object mOwner;
+
+    private Releaser mReleaser;
+    private final AtomicBoolean mReleased = new AtomicBoolean(true);
+
+    CameraFrame() {
+    }
+
+    /**
+     * Wrap an NV21 buffer. The plane buffers are created once here, so a frame can be kept with its buffer and reused
+     * for every frame that buffer carries.
+     */
+    static CameraFrame wrapNv21(byte[] data, int width, int height, Releaser releaser) {
+        CameraFrame frame = new CameraFrame();
+        frame.mData = data;
+        frame.mFormat = FORMAT_NV21;
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mReleaser = releaser;
+
+        int lumaSize = width * height;
+
+        // NV21 chroma is interleaved V, U
+        frame.setPlane(0, ByteBuffer.wrap(data, 0, lumaSize).slice(), width, 1);
+        frame.setPlane(1, ByteBuffer.wrap(data, lumaSize + 1, data.length - lumaSize - 1).slice(), width, 2);
+        frame.setPlane(2, ByteBuffer.wrap(data, lumaSize, data.length - lumaSize).slice(), width, 2);
+        frame.mPlaneCount = 3;
+
+        return frame;
+    }
+
+    /**
+     * Wrap a packed I420 buffer: full Y plane, then quarter-size U and V planes
+     */
+    static CameraFrame wrapI420(byte[] data, int width, int height, Releaser releaser) {
+        CameraFrame frame = new CameraFrame();
+        frame.mData = data;
+        frame.mFormat = FORMAT_YUV_420_888;
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mReleaser = releaser;
+
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 4;
+
+        frame.setPlane(0, ByteBuffer.wrap(data, 0, lumaSize).slice(), width, 1);
+        frame.setPlane(1, ByteBuffer.wrap(data, lumaSize, chromaSize).slice(), width / 2, 1);
+        frame.setPlane(2, ByteBuffer.wrap(data, lumaSize + chromaSize, chromaSize).slice(), width / 2, 1);
+        frame.mPlaneCount = 3;
+
+        return frame;
+    }
+
+    /**
+     * Wrap a packed luma-only buffer of width * height bytes
+     */
+    static CameraFrame wrapY8(byte[] data, int width, int height, Releaser releaser) {
+        CameraFrame frame = new CameraFrame();
+        frame.mData = data;
+        frame.mFormat = FORMAT_Y8;
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mReleaser = releaser;
+
+        frame.setPlane(0, ByteBuffer.wrap(data, 0, width * height).slice(), width, 1);
+        frame.mPlaneCount = 1;
+
+        return frame;
+    }
+
+    void setPlane(int idx, ByteBuffer buffer, int rowStride, int pixelStride) {
+        mPlanes[idx] = buffer;
+        mRowStrides[idx] = rowStride;
+        mPixelStrides[idx] = pixelStride;
+    }
+
+    void setPlaneCount(int planeCount) {
+        mPlaneCount = planeCount;
+    }
+
+    /**
+     * Drop every plane buffer, e.g. once the Image behind them is closed
+     */
+    void clearPlanes() {
+        for (int i = 0; i < mPlanes.length; i++) {
+            setPlane(i, null, 0, 0);
+        }
+    }
+
+    void setFormat(int format, int width, int height) {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    void setReleaser(Releaser releaser) {
+        mReleaser = releaser;
+    }
+
+    /**
+     * Mark the frame as handed out for a new delivery
+     */
+    void checkOut(int rotation, long timestampNanos) {
+        mRotation = rotation;
+        mTimestampNanos = timestampNanos;
+        mIsLumaOnly = false;
+        mIsCropped = false;
+        mReleased.set(false);
+    }
+
+    /**
+     * Show only the rectangle [left, right) x [top, bottom) for this delivery, by pointing each plane at the region's
+     * first pixel and keeping its strides; nothing is copied. Edges are rounded out to even numbers so the region
+     * starts and ends on a whole chroma sample.
+     */
+    void setCrop(int left, int top, int right, int bottom) {
+        left = Math.max(0, left & ~1);
+        top = Math.max(0, top & ~1);
+        right = Math.min(mWidth, (right + 1) & ~1);
+        bottom = Math.min(mHeight, (bottom + 1) & ~1);
+
+        if (right <= left || bottom <= top) return;
+
+        if (left != mCropLeft || top != mCropTop || right - left != mCropWidth || bottom - top != mCropHeight) {
+            mCropLeft = left;
+            mCropTop = top;
+            mCropWidth = right - left;
+            mCropHeight = bottom - top;
+
+            for (int i = 0; i < mCropSources.length; i++) {
+                mCropSources[i] = null;
+            }
+        }
+
+        for (int i = 0; i < mPlaneCount; i++) {
+            if (mCropSources[i] == mPlanes[i]) continue;
+
+            // Chroma planes are subsampled by 2 both ways
+            int shift = i == 0 ? 0 : 1;
+            int width = mCropWidth >> shift;
+            int height = mCropHeight >> shift;
+            int offset = (mCropTop >> shift) * mRowStrides[i] + (mCropLeft >> shift) * mPixelStrides[i];
+            int length = (height - 1) * mRowStrides[i] + (width - 1) * mPixelStrides[i] + 1;
+
+            ByteBuffer view = mPlanes[i].duplicate();
+            view.limit(offset + length);
+            view.position(offset);
+
+            mCropPlanes[i] = view.slice();
+            mCropSources[i] = mPlanes[i];
+        }
+
+        mIsCropped = true;
+    }
+
+    /**
+     * Show only the Y plane for this delivery, as {@link #FORMAT_Y8}. The chroma stays in the buffers, just hidden, so
+     * this costs nothing.
+     */
+    void setLumaOnly() {
+        mIsLumaOnly = true;
+    }
+
+    public int getWidth() {
+        return mIsCropped ? mCropWidth : mWidth;
+    }
+
+    public int getHeight() {
+        return mIsCropped ? mCropHeight : mHeight;
+    }
+
+    /**
+     * @return {@link #FORMAT_NV21}, {@link #FORMAT_YUV_420_888} or {@link #FORMAT_Y8}
+     */
+    public int getFormat() {
+        return mIsLumaOnly ? FORMAT_Y8 : mFormat;
+    }
+
+    /**
+     * Degrees to rotate the frame clockwise to make it upright
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    public int getPlaneCount() {
+        return mIsLumaOnly ? 1 : mPlaneCount;
+    }
+
+    /**
+     * The buffer is shared with the camera, so use absolute gets or {@link ByteBuffer#duplicate()} rather than
+     * moving its position
+     */
+    public ByteBuffer getPlane(int idx) {
+        return mIsCropped ? mCropPlanes[idx] : mPlanes[idx];
+    }
+
+    public int getRowStride(int idx) {
+        return mRowStrides[idx];
+    }
+
+    public int getPixelStride(int idx) {
+        return mPixelStrides[idx];
+    }
+
+    /**
+     * @return the backing array of a packed frame such as NV21, or null if the planes aren't array-backed. For a
+     * {@link #FORMAT_Y8} frame the luma is the first width * height bytes; anything after that isn't part of it.
+     * Also null for a frame cropped to a region of interest, since it's no longer packed.
+     */
+    public byte[] getData() {
+        return mIsCropped ? null : mData;
+    }
+
+    public boolean isReleased() {
+        return mReleased.get();
+    }
+
+    /**
+     * Give the underlying buffer back to the camera. Safe to call more than once.
+     */
+    public void release() {
+        if (mReleased.compareAndSet(false, true)) {
+            mIsCropped = false;
+            if (mReleaser != null) mReleaser.release(this);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package burningaltar.com.camerapreviewcompat;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Times startup phases for the {@link SimpleCameraPreview.CameraMetricsListener}, and marks the work done in each
+ * phase as a systrace section.
+ * <p/>
+ * A phase's duration can span threads, e.g. from asking for the camera on the UI thread to the camera thread hearing
+ * it's open, while trace sections have to begin and end on one thread. So durations come from timestamps, and trace
+ * sections only wrap the synchronous work inside a phase.
+ */
+final class CameraMetrics {
+    private static volatile SimpleCameraPreview.CameraMetricsListener sListener = null;
+
+    private CameraMetrics() {
+    }
+
+    static void setListener(SimpleCameraPreview.CameraMetricsListener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Report a phase that started at startNanos (from System.nanoTime()) and ends now
+     */
+    static void report(String phase, long startNanos) {
+        SimpleCameraPreview.CameraMetricsListener listener = sListener;
+        if (listener != null && startNanos > 0) listener.onPhase(phase, System.nanoTime() - startNanos);
+    }
+
+    static void beginSection(String phase) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(phase);
+        }
+    }
+
+    static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
@@ -5,9 +5,17 @@ import android.app.Activity;
 import android.content.Context;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.AttributeSet;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A camera preview view that bakes in all the camera setup and resizing, and allows for easily taking photos
@@ -20,7 +28,10 @@ import java.io.IOException;
 class CameraPreviewTexture extends BaseCameraPreviewTexture {
     private static final String TAG = CameraPreviewTexture.class.getSimpleName();
 
-    private Camera mCamera;
+    // Longest we'll hold up surface destruction waiting for the camera to let go of it
+    static final long RELEASE_TIMEOUT_MS = 2000;
+
+    private volatile Camera mCamera;
     private Camera.CameraInfo mInfo = new Camera.CameraInfo();
 
     int mCurrentCamIdx = 0;
@@ -29,6 +40,57 @@ class CameraPreviewTexture extends BaseCameraPreviewTexture {
 
     boolean mIsCameraReady = false;
 
+    static final int DEFAULT_STREAM_BUFFER_COUNT = 3;
+
+    SimpleCameraPreview.PreviewStreamListener mPreviewStreamListener = null;
+    SimpleCameraPreview.FrameListener mFrameListener = null;
+    int mStreamBufferCount = DEFAULT_STREAM_BUFFER_COUNT;
+
+    // One frame wrapper per pooled buffer, so frame delivery doesn't allocate
+    final IdentityHashMap<byte[], CameraFrame> mStreamFrames = new IdentityHashMap<>();
+
+    // Recycled NV21 buffers for streaming; while streaming, the camera owns whatever the consumer isn't holding. Only
+    // touched on the camera thread.
+    FrameBufferPool mBufferPool = null;
+    volatile boolean mIsStreaming = false;
+
+    // The buffers handed to the camera by the current startStreaming(). One still held from an earlier stream isn't
+    // among them, so releasing it refills the pool instead of giving the camera more than its share.
+    final Set<byte[]> mStreamBuffers = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+
+    // Stream buffers the consumer hasn't released yet; once it has them all, the camera starts skipping frames
+    final AtomicInteger mHeldBuffers = new AtomicInteger();
+
+    // The camera is opened, configured and released on this thread, so its callbacks arrive here too
+    // Camera1 has no burst, so a burst is sequential takePicture calls; only touched on the camera thread
+    PhotoBurst mBurst = null;
+
+    // Zero shutter lag keeps streaming into this ring even without a stream listener; only touched on the camera thread
+    volatile int mZslFrameCount = 0;
+    FrameRingBuffer mZslRing = null;
+
+    // What takePicture() JPEGs come out as, so photos can say their size without being parsed
+    Camera.Size mPictureSize = null;
+
+    // Every camera call runs here, through mOpener. Started by the first open, and not again once the surface is
+    // destroyed until the next open.
+    HandlerThread mCameraThread;
+    Handler mCameraHandler;
+    boolean mIsCameraThreadStopped = false;
+
+    final AsyncCameraOpener mOpener = new AsyncCameraOpener(new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            Handler handler = startCameraThread();
+
+            if (handler != null) {
+                handler.post(runnable);
+            } else {
+                log("No camera thread, dropping camera call");
+            }
+        }
+    }, MAIN_THREAD_EXECUTOR);
+
     public CameraPreviewTexture(Context context) {
         super(context);
         init();
@@ -71,32 +133,124 @@ class CameraPreviewTexture extends BaseCameraPreviewTexture {
         return setCamera(frontFacing ? mFrontFacingIdx : mRearFacingIdx);
     }
 
-    private PreviewInfo setCamera(int cameraIdx) {
+    /**
+     * Opens the camera on the camera thread and returns null right away; the view is resized once the preview size
+     * is known
+     */
+    private PreviewInfo setCamera(final int cameraIdx) {
         log("Set camera to idx: " + cameraIdx);
 
-        cleanup();
-
         mCurrentCamIdx = cameraIdx;
 
-        SurfaceTexture st = getSurfaceTexture();
+        final SurfaceTexture st = getSurfaceTexture();
 
         // setCamera() can be called before the holder is set, in which case the camera will use the given index when the surface is created
-        if (st != null && initCamera()) {
+        if (st == null) return null;
+
+        // Read on the UI thread, since the view may be laid out again while the camera opens
+        final int viewWidth = getWidth();
+        final int viewHeight = getHeight();
+        final long requestNanos = System.nanoTime();
+
+        synchronized (this) {
+            mIsCameraThreadStopped = false;
+        }
+
+        mOpener.open(new AsyncCameraOpener.Task<PreviewInfo>() {
+            @Override
+            public PreviewInfo open() {
+                return openCamera(cameraIdx, st, viewWidth, viewHeight, requestNanos);
+            }
+
+            @Override
+            public void onOpened(PreviewInfo previewInfo) {
+                onPreviewInfoReady(previewInfo);
+            }
+        });
+
+        return null;
+    }
+
+    /**
+     * Runs on the camera thread
+     */
+    private PreviewInfo openCamera(int cameraIdx, SurfaceTexture st, int viewWidth, int viewHeight, long requestNanos) {
+        try {
+            boolean isOpen;
+            CameraMetrics.beginSection(SimpleCameraPreview.CameraMetricsListener.PHASE_CAMERA_OPEN);
+
+            try {
+                isOpen = initCamera(viewWidth, viewHeight);
+            } finally {
+                CameraMetrics.endSection();
+            }
+
+            if (!isOpen) return null;
+
+            CameraMetrics.report(SimpleCameraPreview.CameraMetricsListener.PHASE_CAMERA_OPEN, requestNanos);
+
+            // The legacy camera has no session; this covers hooking up the surface and starting the preview
+            long sessionStart = System.nanoTime();
+            CameraMetrics.beginSection(SimpleCameraPreview.CameraMetricsListener.PHASE_SESSION_CONFIGURED);
+
             try {
                 st.setDefaultBufferSize(mPreviewInfo.rotatedWidth, mPreviewInfo.rotatedHeight);
 
                 mCamera.setPreviewTexture(st);
-                mCamera.setOneShotPreviewCallback(mPreviewCallback);
+
+                if (mPreviewStreamListener != null || mFrameListener != null || isStreamingForSelf()) {
+                    startStreaming();
+                } else {
+                    mCamera.setOneShotPreviewCallback(mPreviewCallback);
+                }
+
                 mCamera.startPreview();
-            } catch (IOException e) {
-                loge("Error setting camera preview: ", e);
+            } finally {
+                CameraMetrics.endSection();
             }
+
+            CameraMetrics.report(SimpleCameraPreview.CameraMetricsListener.PHASE_SESSION_CONFIGURED, sessionStart);
+        } catch (IOException e) {
+            loge("Error setting camera preview: ", e);
+        } catch (RuntimeException e) {
+            // Camera.open() throws if the camera is in use or disabled
+            loge("Unable to open camera " + cameraIdx, e);
+            cleanup();
+            return null;
         }
 
         return mPreviewInfo;
     }
 
-    boolean initCamera() {
+    /**
+     * @return the camera thread's handler, or null if the surface was destroyed and nothing has opened a camera since
+     */
+    private synchronized Handler startCameraThread() {
+        if (mCameraThread == null && !mIsCameraThreadStopped) {
+            mCameraThread = new HandlerThread("Camera1");
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+        }
+
+        return mCameraHandler;
+    }
+
+    private synchronized void stopCameraThread() {
+        mIsCameraThreadStopped = true;
+        if (mCameraThread == null) return;
+
+        // The camera was released through executeAndWait(), so nothing is left queued for quit() to drop
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            mCameraThread.quitSafely();
+        } else {
+            mCameraThread.quit();
+        }
+
+        mCameraThread = null;
+        mCameraHandler = null;
+    }
+
+    boolean initCamera(int viewWidth, int viewHeight) {
         log("initCamera idx: " + mCurrentCamIdx);
         if (mCurrentCamIdx < 0) return false;
 
@@ -129,12 +283,14 @@ class CameraPreviewTexture extends BaseCameraPreviewTexture {
         log("Degrees to rotate " + mDegreesToRotatePreview);
 
         // Get and set params
-        Camera.Parameters params = CameraUtils.getCameraParams(mCamera.getParameters(), getWidth(), getHeight(), isSideways);
+        Camera.Parameters params = CameraUtils.getCameraParams(mCamera.getParameters(), viewWidth, viewHeight, isSideways,
+                mSizeSelector, String.valueOf(mCurrentCamIdx));
 
         // We want to fit the entire preview in the view's initial bounds, so we'll account for rotation and scale down
         if (params != null) {
             Camera.Size previewSize = params.getPreviewSize();
             mPreviewInfo = new PreviewInfo(previewSize.width, previewSize.height, isSideways);
+            mPictureSize = params.getPictureSize();
 
             mCamera.setParameters(params);
 
@@ -154,26 +310,312 @@ class CameraPreviewTexture extends BaseCameraPreviewTexture {
     @Override
     public void getNextPreviewFrame(SimpleCameraPreview.PreviewBitmapListener previewBitmapListener) {
         mPreviewBitmapListener = previewBitmapListener;
-        if (mCamera == null) return;
+        requestPreviewCallback();
+    }
 
-        mCamera.setOneShotPreviewCallback(mPreviewCallback);
+    @Override
+    public void getNextPreviewPixels(int[] argb, SimpleCameraPreview.PreviewPixelsListener listener) {
+        mPreviewPixels = argb;
+        mPreviewPixelsListener = listener;
+        requestPreviewCallback();
+    }
+
+    private void requestPreviewCallback() {
+        mOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                // While streaming, the buffer callback serves the request; a one-shot callback would replace it
+                if (mCamera != null && !mIsStreaming) {
+                    mCamera.setOneShotPreviewCallback(mPreviewCallback);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void startPreviewStream(SimpleCameraPreview.PreviewStreamListener listener, int bufferCount) {
+        mFrameListener = null;
+        mPreviewStreamListener = listener;
+        mStreamBufferCount = Math.max(1, bufferCount);
+        startStreamingOnCameraThread();
+    }
+
+    @Override
+    public void stopPreviewStream() {
+        stopStreamingOnCameraThread();
+    }
+
+    @Override
+    public void startFrameStream(SimpleCameraPreview.FrameListener listener, int maxFrames) {
+        mPreviewStreamListener = null;
+        mFrameListener = listener;
+        mStreamBufferCount = Math.max(1, maxFrames);
+        mDispatcher.setMaxFrames(mStreamBufferCount);
+        startStreamingOnCameraThread();
+    }
+
+    @Override
+    public void stopFrameStream() {
+        stopStreamingOnCameraThread();
+    }
+
+    private void stopStreamingOnCameraThread() {
+        mPreviewStreamListener = null;
+        mFrameListener = null;
+
+        mOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopStreaming();
+            }
+        });
+    }
+
+    /**
+     * Call on the camera thread
+     */
+    private void stopStreaming() {
+        // Frames still feed a listener that came along since, the ring or the recorder
+        if (mPreviewStreamListener != null || mFrameListener != null || isStreamingForSelf()) return;
+
+        if (mCamera != null && mIsStreaming) {
+            // Also drops whatever buffers the camera was holding
+            mCamera.setPreviewCallbackWithBuffer(null);
+        }
+
+        mIsStreaming = false;
+    }
+
+    @Override
+    public void releasePreviewBuffer(final byte[] buffer) {
+        if (buffer == null) return;
+
+        // Consumers release on their own threads; the camera and the pool are only touched on the camera thread
+        mOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                recycleStreamBuffer(buffer);
+            }
+        });
+    }
+
+    /**
+     * Give a released buffer back to the camera while streaming, otherwise to the pool. Call on the camera thread.
+     */
+    private void recycleStreamBuffer(byte[] buffer) {
+        FrameBufferPool pool = mBufferPool;
+        if (pool == null || !pool.accepts(buffer)) return;
+
+        // From an earlier stream, which the held count was reset for
+        if (!mStreamBuffers.contains(buffer)) {
+            pool.release(buffer);
+            return;
+        }
+
+        int held;
+
+        do {
+            held = mHeldBuffers.get();
+        } while (held > 0 && !mHeldBuffers.compareAndSet(held, held - 1));
+
+        if (mCamera != null && mIsStreaming) {
+            mCamera.addCallbackBuffer(buffer);
+        } else {
+            pool.release(buffer);
+        }
+    }
+
+    private void startStreamingOnCameraThread() {
+        mOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera != null && !mIsStreaming) startStreaming();
+            }
+        });
+    }
+
+    /**
+     * Prime the camera with pooled buffers sized for the current preview, and switch to the buffered callback
+     */
+    private void startStreaming() {
+        if (mCamera == null || mPreviewInfo == null) return;
+
+        int bufferSize = CameraUtils.getPreviewBufferSize(mPreviewInfo.w, mPreviewInfo.h);
+
+        // Keep the old pool when the size hasn't changed, e.g. switching between cameras with the same preview size
+        if (mBufferPool == null || mBufferPool.getBufferSize() != bufferSize || mBufferPool.getCapacity() != mStreamBufferCount) {
+            mBufferPool = new FrameBufferPool(bufferSize, mStreamBufferCount);
+        }
+
+        // Buffers the last camera held are gone, don't keep their frames around
+        mStreamFrames.clear();
+        mStreamBuffers.clear();
+        mHeldBuffers.set(0);
+
+        log("Start streaming with " + mStreamBufferCount + " buffers of " + bufferSize + " bytes");
+
+        for (int i = 0; i < mStreamBufferCount; i++) {
+            byte[] buffer = mBufferPool.acquire();
+            mStreamBuffers.add(buffer);
+            mCamera.addCallbackBuffer(buffer);
+        }
+
+        mCamera.setPreviewCallbackWithBuffer(mStreamCallback);
+        mIsStreaming = true;
     }
 
     @Override
-    public void getPhoto(SimpleCameraPreview.PhotoBitmapListener photoListener) {
+    public void getPhoto(final SimpleCameraPreview.PhotoBitmapListener photoListener) {
+        final boolean isZsl = mZslFrameCount > 0;
+        final long pressNanos = System.nanoTime();
+
+        mOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Zero shutter lag may have nothing buffered yet, e.g. right after the camera opened
+                if (!isZsl || !deliverZslPhoto(photoListener, pressNanos)) takePicture(photoListener);
+            }
+        });
+    }
+
+    /**
+     * Call on the camera thread
+     */
+    private void takePicture(SimpleCameraPreview.PhotoBitmapListener photoListener) {
         mPhotoBitmapListener = photoListener;
         if (mCamera == null) return;
 
         mCamera.takePicture(null, null, null, mPictureCallback);
     }
 
+    /**
+     * Encode the buffered frame closest to the shutter press. Call on the camera thread.
+     *
+     * @return false if there's no frame to use
+     */
+    private boolean deliverZslPhoto(SimpleCameraPreview.PhotoBitmapListener photoListener, long pressNanos) {
+        FrameRingBuffer ring = mZslRing;
+        int slot = ring == null ? -1 : ring.findClosest(pressNanos);
+        if (slot < 0) return false;
+
+        log("ZSL frame " + (ring.getTimestampNanos(slot) - pressNanos) / 1000 + "us from shutter press");
+
+        byte[] jpeg = CameraUtils.fromPreviewData(ring.getData(slot), ring.getWidth(), ring.getHeight());
+        dispatchPhoto(photoListener, jpeg, mDegreesToRotatePreview, false, ring.getTimestampNanos(slot),
+                ring.getWidth(), ring.getHeight());
+        return true;
+    }
+
+    @Override
+    public void setZeroShutterLag(final int frameCount) {
+        mZslFrameCount = Math.max(0, frameCount);
+
+        mOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mZslFrameCount == 0) {
+                    // Let the buffers go
+                    mZslRing = null;
+
+                    stopStreaming();
+                } else if (mCamera != null && !mIsStreaming) {
+                    startStreaming();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setFrameRecorder(FrameRecorder recorder) {
+        mRecorder = recorder;
+
+        mOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mRecorder == null) {
+                    stopStreaming();
+                } else if (mCamera != null && !mIsStreaming) {
+                    startStreaming();
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether the library itself needs every preview frame, with or without a stream listener
+     */
+    private boolean isStreamingForSelf() {
+        return mZslFrameCount > 0 || mRecorder != null;
+    }
+
+    /**
+     * Copy a streamed frame into the ring, making a new ring only when the preview size or frame count changed
+     */
+    private void writeZslFrame(byte[] data, long timestampNanos) {
+        int frameCount = mZslFrameCount;
+        PreviewInfo info = mPreviewInfo;
+        if (frameCount == 0 || info == null) return;
+
+        if (mZslRing == null || !mZslRing.matches(frameCount, info.w, info.h)) {
+            mZslRing = new FrameRingBuffer(frameCount, info.w, info.h);
+        }
+
+        mZslRing.write(data, timestampNanos);
+    }
+
+    @Override
+    public void getPhotos(final int count, final SimpleCameraPreview.PhotoBurstListener listener) {
+        mOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera == null || count < 1 || mBurst != null) {
+                    if (mBurst != null) loge("A burst is already being captured", null);
+                    dispatchPhotos(listener, Collections.<CapturedPhoto>emptyList());
+                    return;
+                }
+
+                mBurst = new PhotoBurst(count, listener);
+                takeBurstPicture();
+            }
+        });
+    }
+
+    private void takeBurstPicture() {
+        try {
+            mCamera.takePicture(null, null, null, mBurstPictureCallback);
+        } catch (RuntimeException e) {
+            loge("Unable to take burst picture", e);
+            finishBurst();
+        }
+    }
+
+    private void finishBurst() {
+        PhotoBurst burst = mBurst;
+        if (burst == null) return;
+
+        mBurst = null;
+        dispatchPhotos(burst.mListener, burst.getPhotos());
+    }
+
     public boolean isCameraReady() {
         return mIsCameraReady;
     }
 
     @Override
     public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-        cleanup();
+        mOpener.cancel();
+
+        // The camera has to let go of the surface before it's released
+        boolean isReleased = mOpener.executeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                cleanup();
+            }
+        }, RELEASE_TIMEOUT_MS);
+
+        if (!isReleased) loge("Timed out releasing camera", null);
+
+        stopCameraThread();
         return super.onSurfaceTextureDestroyed(surface);
     }
 
@@ -183,6 +625,14 @@ class CameraPreviewTexture extends BaseCameraPreviewTexture {
             mCamera.release();
             mCamera = null;
         }
+
+        mIsStreaming = false;
+
+        // Frames from this camera are no use to the next one
+        if (mZslRing != null) mZslRing.clear();
+
+        // The rest of the burst won't be taken
+        finishBurst();
     }
 
     /**
@@ -202,18 +652,121 @@ class CameraPreviewTexture extends BaseCameraPreviewTexture {
                 return;
             }
 
-            if (mPreviewBitmapListener != null) {
-                mPreviewBitmapListener.onPreview(CameraUtils.fromPreviewData(data, camera.getParameters().getPreviewSize()), mDegreesToRotatePreview);
-                mPreviewBitmapListener = null;
+            deliverPreviewRequests(data);
+        }
+    };
+
+    /**
+     * Gets every preview frame while streaming. Each buffer comes from mBufferPool and goes back to the camera via
+     * releasePreviewBuffer(); if the consumer holds all of them, the camera drops frames until one is released.
+     */
+    final Camera.PreviewCallback mStreamCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (data == null) return;
+
+            if (mCamera == null) {
+                if (mBufferPool != null) mBufferPool.release(data);
+                return;
+            }
+
+            if (!mIsCameraReady) {
+                mIsCameraReady = true;
+                onCameraReady();
+            }
+
+            // No timestamps from this API, so arrival time it is
+            long now = System.nanoTime();
+            mFrameStats.onFrame(now);
+
+            writeZslFrame(data, now);
+            recordFrame(data, CameraFrame.FORMAT_NV21, mPreviewInfo.w, mPreviewInfo.h, mDegreesToRotatePreview, now);
+
+            deliverPreviewRequests(data);
+
+            SimpleCameraPreview.FrameListener frameListener = mFrameListener;
+            SimpleCameraPreview.PreviewStreamListener listener = mPreviewStreamListener;
+
+            if (frameListener != null) {
+                mHeldBuffers.incrementAndGet();
+
+                CameraFrame frame = getStreamFrame(data);
+                frame.checkOut(mDegreesToRotatePreview, now);
+                deliverFrame(frame, frameListener);
+            } else if (listener != null) {
+                mHeldBuffers.incrementAndGet();
+
+                long start = System.nanoTime();
+                listener.onPreviewFrame(data, mPreviewInfo.w, mPreviewInfo.h, mDegreesToRotatePreview);
+                mFrameStats.recordListener(System.nanoTime() - start);
+            } else {
+                camera.addCallbackBuffer(data);
             }
+
+            if (mHeldBuffers.get() >= mStreamBufferCount) mFrameStats.onStarved();
+        }
+    };
+
+    /**
+     * Serve any pending one-shot preview requests from this frame
+     */
+    private void deliverPreviewRequests(byte[] data) {
+        if (mPreviewBitmapListener == null && mPreviewPixelsListener == null) return;
+
+        int[] roi = getRoiRect(mPreviewInfo.w, mPreviewInfo.h, mDegreesToRotatePreview);
+
+        if (mPreviewBitmapListener != null) {
+            dispatchPreview(mPreviewBitmapListener, CameraUtils.fromPreviewData(data, mPreviewInfo.w, mPreviewInfo.h, roi), mDegreesToRotatePreview);
+            mPreviewBitmapListener = null;
+        }
+
+        if (mPreviewPixelsListener != null) {
+            SimpleCameraPreview.PreviewPixelsListener listener = mPreviewPixelsListener;
+            mPreviewPixelsListener = null;
+
+            long start = System.nanoTime();
+
+            CameraFrame frame = CameraFrame.wrapNv21(data, mPreviewInfo.w, mPreviewInfo.h, null);
+            if (roi != null) frame.setCrop(roi[0], roi[1], roi[2], roi[3]);
+
+            mPreviewPixels = YuvConverter.toArgb(frame, mPreviewPixels, mConversionExecutor);
+            mFrameStats.recordConversion(System.nanoTime() - start);
+            dispatchPreviewPixels(listener, mPreviewPixels, frame.getWidth(), frame.getHeight(), mDegreesToRotatePreview);
+        }
+    }
+
+    private CameraFrame getStreamFrame(byte[] data) {
+        CameraFrame frame = mStreamFrames.get(data);
+
+        if (frame == null || frame.getWidth() != mPreviewInfo.w || frame.getHeight() != mPreviewInfo.h) {
+            frame = CameraFrame.wrapNv21(data, mPreviewInfo.w, mPreviewInfo.h, mFrameReleaser);
+            mStreamFrames.put(data, frame);
+        }
+
+        return frame;
+    }
+
+    final CameraFrame.Releaser mFrameReleaser = new CameraFrame.Releaser() {
+        @Override
+        public void release(CameraFrame frame) {
+            releasePreviewBuffer(frame.getData());
         }
     };
 
+    private int getPictureWidth() {
+        return mPictureSize == null ? 0 : mPictureSize.width;
+    }
+
+    private int getPictureHeight() {
+        return mPictureSize == null ? 0 : mPictureSize.height;
+    }
+
     final Camera.PictureCallback mPictureCallback = new Camera.PictureCallback() {
         @Override
         public void onPictureTaken(byte[] data, Camera camera) {
             if (mPhotoBitmapListener != null && data != null) {
-                mPhotoBitmapListener.onPhoto(data, mDegreesToRotatePreview);
+                dispatchPhoto(mPhotoBitmapListener, data, mDegreesToRotatePreview, false, System.nanoTime(),
+                        getPictureWidth(), getPictureHeight());
                 mPhotoBitmapListener = null;
             }
 
@@ -221,6 +774,35 @@ class CameraPreviewTexture extends BaseCameraPreviewTexture {
         }
     };
 
+    /**
+     * Each shot stops the preview, so restart it and go straight on to the next
+     */
+    final Camera.PictureCallback mBurstPictureCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            PhotoBurst burst = mBurst;
+            if (burst == null) return;
+
+            // Camera1 doesn't give the sensor timestamp of a picture, so this is when it arrived
+            boolean isComplete = data == null ? burst.onFailed()
+                    : burst.add(new CapturedPhoto(tagOrientation(data, mDegreesToRotatePreview, false),
+                    mDegreesToRotatePreview, System.nanoTime(), getPictureWidth(), getPictureHeight()));
+
+            if (mCamera == null) {
+                finishBurst();
+                return;
+            }
+
+            mCamera.startPreview();
+
+            if (isComplete) {
+                finishBurst();
+            } else {
+                takeBurstPicture();
+            }
+        }
+    };
+
     public boolean supportsScaling() {
         return true;
     }
@@ -19,6 +19,7 @@ import android.view.Surface;
 
 import java.io.ByteArrayOutputStream;
 import java.util.List;
+import java.util.Map;
 
 public class CameraUtils {
     public static final String TAG = "CameraUtils";
@@ -27,13 +28,22 @@ public class CameraUtils {
      * Set camera parameters such as preview size, picture size, focus mode, etc.
      */
     public static Camera.Parameters getCameraParams(Camera.Parameters params, int width, int height, boolean isSideways) {
+        return getCameraParams(params, width, height, isSideways, new PreviewSizeSelector(), "");
+    }
+
+    /**
+     * @param selector picks the preview size, and remembers it for next time with the same cameraId
+     */
+    public static Camera.Parameters getCameraParams(Camera.Parameters params, int width, int height, boolean isSideways,
+                                                    PreviewSizeSelector selector, String cameraId) {
         if (params == null) return null;
 
         // Preview size
         log("getting best preview size for size " + width + ", " + height);
-        Camera.Size mBestPreviewSize = getBiggestSize(params.getSupportedPreviewSizes(), width, height, isSideways);
-        log("Best preview size is " + mBestPreviewSize.width + " , " + mBestPreviewSize.height);
-        params.setPreviewSize(mBestPreviewSize.width, mBestPreviewSize.height);
+        FrameSize bestPreviewSize = selectPreviewSize(selector, cameraId, toFrameSizes(params.getSupportedPreviewSizes()),
+                null, width, height, isSideways);
+        log("Best preview size is " + bestPreviewSize);
+        params.setPreviewSize(bestPreviewSize.getWidth(), bestPreviewSize.getHeight());
 
         // Picture size
         Camera.Size mBestPicSize = getBiggestSize(params.getSupportedPictureSizes());
@@ -50,6 +60,23 @@ public class CameraUtils {
         return params;
     }
 
+    /**
+     * Pick the preview size for a view, matching its aspect ratio where possible
+     *
+     * @param minFrameDurations each size's minimum frame duration in nanos, or null if the camera doesn't say
+     */
+    public static FrameSize selectPreviewSize(PreviewSizeSelector selector, String cameraId, FrameSize[] sizes,
+                                              Map<FrameSize, Long> minFrameDurations, int width, int height,
+                                              boolean isSideways) {
+        String model = Build.MODEL;
+        if (model != null && model.equals("Nexus 4")) {
+            log("Nexus 4; using max size for preview");
+            return getBiggestSize(sizes);
+        }
+
+        return selector.select(cameraId, sizes, minFrameDurations, width, height, isSideways);
+    }
+
     public static int getBiggestSizeIdx(@NonNull Point[] sizes, int width, int height, boolean isSideways) {
         if (sizes == null || width <= 0 || height <= 0) {
             return 0;
@@ -77,7 +104,6 @@ public class CameraUtils {
         int biggestIdx = 0;
 
         for (int i = 0; i < sizes.length; i++) {
-            log("Found size " + sizes[i].x + ", " + sizes[i].y);
             int score = sizes[i].x * sizes[i].y;
             if (sizes[i].x <= width && sizes[i].y <= height &&
                     score > biggestScore) {
@@ -98,13 +124,7 @@ public class CameraUtils {
             return null;
         }
 
-        Point[] points = new Point[sizes.size()];
-
-        for (int i = 0; i < points.length; i++) {
-            points[i] = new Point(sizes.get(i).width, sizes.get(i).height);
-        }
-
-        return sizes.get(getBiggestSizeIdx(points, width, height, isSideways));
+        return sizes.get(getBiggestSizeIdx(toFrameSizes(sizes), width, height, isSideways));
     }
 
     public static Camera.Size getBiggestSize(List<Camera.Size> sizes) {
@@ -120,17 +140,48 @@ public class CameraUtils {
             return null;
         }
 
-        Point[] points = new Point[sizes.length];
+        return sizes[getBiggestSizeIdx(CameraCapabilities.toFrameSizes(sizes), width, height, isSideways)];
+    }
+
+    @TargetApi(21)
+    public static Size getBiggestSize(Size[] sizes) {
+        return getBiggestSize(sizes, Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+    }
+
+    public static FrameSize getBiggestSize(FrameSize[] sizes, int width, int height, boolean isSideways) {
+        if (sizes == null || sizes.length == 0 || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        FrameSize biggest = sizes[getBiggestSizeIdx(sizes, width, height, isSideways)];
+        log("Best size is " + biggest);
+        return biggest;
+    }
+
+    /**
+     * Same as {@link SizeUtils#getBiggestSizeIdx}, except on devices that need their biggest size regardless
+     */
+    private static int getBiggestSizeIdx(FrameSize[] sizes, int width, int height, boolean isSideways) {
+        String model = Build.MODEL;
+        if (model != null && model.equals("Nexus 4")) {
+            log("Nexus 4; using max size for preview and photo");
+            width = height = Integer.MAX_VALUE;
+        }
+
+        return SizeUtils.getBiggestSizeIdx(sizes, width, height, isSideways);
+    }
+
+    static FrameSize[] toFrameSizes(List<Camera.Size> sizes) {
+        FrameSize[] frameSizes = new FrameSize[sizes == null ? 0 : sizes.size()];
 
-        for (int i = 0; i < points.length; i++) {
-            points[i] = new Point(sizes[i].getWidth(), sizes[i].getHeight());
+        for (int i = 0; i < frameSizes.length; i++) {
+            frameSizes[i] = new FrameSize(sizes.get(i).width, sizes.get(i).height);
         }
 
-        return sizes[getBiggestSizeIdx(points, width, height, isSideways)];
+        return frameSizes;
     }
 
-    @TargetApi(21)
-    public static Size getBiggestSize(Size[] sizes) {
+    public static FrameSize getBiggestSize(FrameSize[] sizes) {
         return getBiggestSize(sizes, Integer.MAX_VALUE, Integer.MAX_VALUE, false);
     }
 
@@ -162,9 +213,13 @@ public class CameraUtils {
 
     @TargetApi(21)
     public static int getRotationDegrees(Activity activity, CameraCharacteristics characteristics, boolean isFront) {
-        // The camera's orientation, in ordinal direction degrees
-        int cameraOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        return getRotationDegrees(activity, characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION), isFront);
+    }
 
+    /**
+     * Same as above, given the camera's orientation (CameraCharacteristics.SENSOR_ORIENTATION) in ordinal direction degrees
+     */
+    public static int getRotationDegrees(Activity activity, int cameraOrientation, boolean isFront) {
         int screenOrientation = activity.getWindowManager().getDefaultDisplay().getRotation();
 
         // Translate rotation constants into degrees
@@ -262,53 +317,123 @@ public class CameraUtils {
     }
 
     static byte[] fromPreviewData(byte[] bytes, Camera.Size previewSize) {
-        int width = previewSize.width;
-        int height = previewSize.height;
+        return fromPreviewData(bytes, previewSize.width, previewSize.height);
+    }
+
+    static byte[] fromPreviewData(byte[] bytes, int width, int height) {
+        return fromPreviewData(bytes, width, height, null);
+    }
 
+    /**
+     * @param roi {left, top, right, bottom} to encode only that part of the frame, or null for all of it
+     */
+    static byte[] fromPreviewData(byte[] bytes, int width, int height, int[] roi) {
         log("Converting preview data from size " + width + ", " + height);
 
-        // Convert bytes first to YUV image, then to RGB
+        Rect rect = roi == null ? new Rect(0, 0, width, height) : new Rect(roi[0], roi[1], roi[2], roi[3]);
+
+        // Convert bytes first to YUV image, then to RGB. The encoder only reads the rect.
         YuvImage yuvImage = new YuvImage(bytes, ImageFormat.NV21, width, height, null);
         ByteArrayOutputStream jpegOutput = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0, width, height), 90, jpegOutput);
+        yuvImage.compressToJpeg(rect, 90, jpegOutput);
         return jpegOutput.toByteArray();
     }
 
+    /**
+     * Size of an NV21 preview buffer, the Camera1 default preview format: a full-res luma plane plus interleaved,
+     * quarter-res chroma. This is the size Camera.addCallbackBuffer() expects.
+     */
+    public static int getPreviewBufferSize(int width, int height) {
+        return SizeUtils.getPreviewBufferSize(width, height);
+    }
+
     public static Bitmap decodeSampledBitmap(byte[] bytes, int reqWidth, int reqHeight) {
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        final BitmapFactory.Options options = getSampledOptions(bytes, reqWidth, reqHeight);
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+    /**
+     * Like {@link #decodeSampledBitmap(byte[], int, int)}, but decodes into a Bitmap from the pool when one fits, and
+     * always returns a mutable Bitmap. Put it back in the pool when you're done with it.
+     */
+    public static Bitmap decodeSampledBitmap(byte[] bytes, int reqWidth, int reqHeight, BitmapPool pool) {
+        final BitmapFactory.Options options = getSampledOptions(bytes, reqWidth, reqHeight);
+        return decodeIntoPool(bytes, options, options.outWidth, options.outHeight, pool);
+    }
 
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    /**
+     * Decode a photo from {@link SimpleCameraPreview#getPhoto(SimpleCameraPreview.CapturedPhotoListener)} or a burst.
+     * The camera already said how big it is, so not even the header needs reading.
+     *
+     * @param pool to decode into a pooled Bitmap, or null
+     */
+    public static Bitmap decodeSampledBitmap(CapturedPhoto photo, int reqWidth, int reqHeight, BitmapPool pool) {
+        byte[] bytes = photo.getJpeg();
+        if (photo.getWidth() <= 0 || photo.getHeight() <= 0) {
+            return decodeSampledBitmap(bytes, reqWidth, reqHeight, pool);
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = SizeUtils.calculateInSampleSize(photo.getWidth(), photo.getHeight(), reqWidth,
+                reqHeight);
+
+        return decodeIntoPool(bytes, options, photo.getWidth(), photo.getHeight(), pool);
     }
 
+    /**
+     * Options to decode with, inSampleSize set for the requested size and outWidth/outHeight set to the full size. The
+     * size comes from the JPEG header when it can be parsed, saving a bounds decode.
+     */
+    static BitmapFactory.Options getSampledOptions(byte[] bytes, int reqWidth, int reqHeight) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        JpegHeaderParser.Header header = JpegHeaderParser.parse(bytes);
 
-    public static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
+        if (header != null) {
+            options.outWidth = header.getWidth();
+            options.outHeight = header.getHeight();
+        } else {
+            // Not a JPEG we can read; decode with inJustDecodeBounds=true to check dimensions
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            options.inJustDecodeBounds = false;
+        }
 
-        if (height > reqHeight || width > reqWidth) {
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        return options;
+    }
 
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
+    /**
+     * Decode with options.inSampleSize already set, for an image of the given full size
+     */
+    static Bitmap decodeIntoPool(byte[] bytes, BitmapFactory.Options options, int width, int height, BitmapPool pool) {
+        options.inMutable = true;
+
+        // Before KitKat, inBitmap only works unsampled
+        if (pool != null && (BitmapPool.IS_REUSE_BY_BYTES || options.inSampleSize <= 1)) {
+            int sampleSize = Math.max(1, options.inSampleSize);
+
+            // Rounded up, so the Bitmap is big enough whichever way the decoder rounds
+            options.inBitmap = pool.take((width + sampleSize - 1) / sampleSize, (height + sampleSize - 1) / sampleSize,
+                    Bitmap.Config.ARGB_8888);
+        }
 
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / inSampleSize) > reqHeight
-                    && (halfWidth / inSampleSize) > reqWidth) {
-                inSampleSize *= 2;
+        if (options.inBitmap != null) {
+            try {
+                return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder couldn't reuse it after all; it's untouched, so keep it pooled
+                log("Couldn't decode into a pooled bitmap: " + e.getMessage());
+                pool.put(options.inBitmap);
+                options.inBitmap = null;
             }
         }
 
-        return inSampleSize;
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+
+    public static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        return SizeUtils.calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
     }
 
     public static void log(String msg) {
@@ -0,0 +1,48 @@
+package burningaltar.com.camerapreviewcompat;
+
+/**
+ * One JPEG from the camera, with its size and when it was captured
+ */
+public final class CapturedPhoto {
+    private final byte[] mJpeg;
+    private final int mDegreesToRotate;
+    private final long mTimestampNanos;
+    private final int mWidth;
+    private final int mHeight;
+
+    CapturedPhoto(byte[] jpeg, int degreesToRotate, long timestampNanos, int width, int height) {
+        mJpeg = jpeg;
+        mDegreesToRotate = degreesToRotate;
+        mTimestampNanos = timestampNanos;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public byte[] getJpeg() {
+        return mJpeg;
+    }
+
+    public int getDegreesToRotate() {
+        return mDegreesToRotate;
+    }
+
+    /**
+     * The sensor timestamp with camera2. The legacy camera has none, so there it's System.nanoTime() when the JPEG
+     * arrived; the same goes for a camera2 zero shutter lag photo if the camera's timestamps aren't realtime.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * The size the camera captured at, so the JPEG can be decoded without reading its header, or 0 if unknown. If
+     * the camera rotated the pixels itself, width and height may be swapped.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+}
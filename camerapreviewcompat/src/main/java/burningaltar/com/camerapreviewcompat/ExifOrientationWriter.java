@@ -0,0 +1,214 @@
+package burningaltar.com.camerapreviewcompat;
+
+/**
+ * Sets a JPEG's EXIF orientation tag, so viewers and galleries show it upright without its pixels being decoded,
+ * rotated and encoded again. Only the APP1 segment changes; the compressed image data is copied as is.
+ * <p/>
+ * An existing tag is overwritten in place. Without one, IFD0 is rewritten with the tag added at the end of the EXIF
+ * data, so nothing the other tags point to moves. A JPEG with no EXIF at all gets a minimal APP1 segment.
+ */
+public final class ExifOrientationWriter {
+    static final int MARKER_APP0 = 0xe0;
+
+    // Everything after the marker of an APP1 holding just the orientation: length, "Exif\0\0", TIFF header and IFD0
+    static final int MINIMAL_EXIF_LENGTH = 2 + 6 + 8 + 2 + 12 + 4;
+
+    private ExifOrientationWriter() {
+    }
+
+    /**
+     * The EXIF orientation for an image that needs rotating clockwise by degreesToRotate, then flipping left to right
+     * if it's mirrored, to be upright
+     */
+    public static int toOrientation(int degreesToRotate, boolean isMirrored) {
+        switch ((degreesToRotate % 360 + 360) % 360) {
+            case 90:
+                return isMirrored ? 7 : 6;
+            case 180:
+                return isMirrored ? 4 : 3;
+            case 270:
+                return isMirrored ? 5 : 8;
+            default:
+                return isMirrored ? 2 : JpegHeaderParser.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * @param orientation 1 to 8, as from {@link #toOrientation(int, boolean)}
+     * @return jpeg itself if the tag was overwritten in place, otherwise a new array with the tag added. Bytes that
+     * aren't a JPEG, or whose EXIF can't grow any more, come back untouched.
+     */
+    public static byte[] setOrientation(byte[] jpeg, int orientation) {
+        if (orientation < 1 || orientation > 8) {
+            throw new IllegalArgumentException("Invalid orientation " + orientation);
+        }
+
+        if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != JpegHeaderParser.MARKER_SOI) {
+            return jpeg;
+        }
+
+        // A new EXIF segment goes after a leading JFIF APP0, which is meant to come first
+        int insertAt = 2;
+        int pos = 2;
+
+        while (pos + 4 <= jpeg.length) {
+            if ((jpeg[pos] & 0xff) != 0xff) return jpeg;
+
+            int marker = jpeg[pos + 1] & 0xff;
+
+            if (marker == 0xff) {
+                pos++;
+                continue;
+            }
+
+            // EXIF has to come before the frame header
+            if (marker == JpegHeaderParser.MARKER_SOS || marker == JpegHeaderParser.MARKER_EOI
+                    || JpegHeaderParser.isStartOfFrame(marker)) {
+                break;
+            }
+
+            int segmentLength = JpegHeaderParser.readUnsignedShort(jpeg, pos + 2, false);
+            int dataEnd = pos + 2 + segmentLength;
+            if (segmentLength < 2 || dataEnd > jpeg.length) return jpeg;
+
+            if (marker == MARKER_APP0 && pos == 2) insertAt = dataEnd;
+
+            if (marker == JpegHeaderParser.MARKER_APP1 && JpegHeaderParser.isExif(jpeg, pos + 4, dataEnd)) {
+                return setOrientation(jpeg, pos, dataEnd, orientation);
+            }
+
+            pos = dataEnd;
+        }
+
+        return insertExif(jpeg, insertAt, orientation);
+    }
+
+    /**
+     * Like {@link #setOrientation(byte[], int)}, but the JPEG is left alone if it's already tagged with orientation,
+     * or if orientation is {@link JpegHeaderParser#ORIENTATION_NORMAL}: nothing is left to do then, and a tag the
+     * camera wrote stands.
+     */
+    static byte[] updateOrientation(byte[] jpeg, int orientation) {
+        if (orientation == JpegHeaderParser.ORIENTATION_NORMAL) return jpeg;
+
+        JpegHeaderParser.Header header = JpegHeaderParser.parse(jpeg);
+        if (header != null && header.getOrientation() == orientation) return jpeg;
+
+        return setOrientation(jpeg, orientation);
+    }
+
+    /**
+     * Set the tag in the EXIF APP1 segment whose marker is at segment
+     */
+    private static byte[] setOrientation(byte[] jpeg, int segment, int dataEnd, int orientation) {
+        int data = segment + 4;
+        int tiff = data + JpegHeaderParser.EXIF_HEADER.length;
+        boolean isLittleEndian = JpegHeaderParser.isLittleEndian(jpeg, tiff);
+
+        int valueOffset = JpegHeaderParser.findOrientation(jpeg, data, dataEnd);
+        if (valueOffset >= 0) {
+            writeShort(jpeg, valueOffset, orientation, isLittleEndian);
+            return jpeg;
+        }
+
+        int ifd0 = tiff + JpegHeaderParser.readInt(jpeg, tiff + 4, isLittleEndian);
+        if (ifd0 < tiff || ifd0 + 2 > dataEnd) return jpeg;
+
+        int entryCount = JpegHeaderParser.readUnsignedShort(jpeg, ifd0, isLittleEndian);
+        int entries = ifd0 + 2;
+        if (entries + entryCount * 12 + 4 > dataEnd) return jpeg;
+
+        // The new IFD0 is appended, on a word boundary as TIFF offsets should be
+        int padding = (dataEnd - tiff) & 1;
+        int newIfd = dataEnd + padding;
+        int newIfdLength = 2 + (entryCount + 1) * 12 + 4;
+        int newSegmentLength = newIfd + newIfdLength - (segment + 2);
+        if (newSegmentLength > 0xffff) return jpeg;
+
+        byte[] out = new byte[jpeg.length + padding + newIfdLength];
+        System.arraycopy(jpeg, 0, out, 0, dataEnd);
+        System.arraycopy(jpeg, dataEnd, out, newIfd + newIfdLength, jpeg.length - dataEnd);
+
+        writeShort(out, segment + 2, newSegmentLength, false);
+        writeInt(out, tiff + 4, newIfd - tiff, isLittleEndian);
+
+        // Entries have to stay sorted by tag, so the orientation goes in before the first higher one
+        writeShort(out, newIfd, entryCount + 1, isLittleEndian);
+        int dst = newIfd + 2;
+        boolean isWritten = false;
+
+        for (int i = 0; i < entryCount; i++) {
+            int entry = entries + i * 12;
+
+            if (!isWritten && JpegHeaderParser.readUnsignedShort(jpeg, entry, isLittleEndian)
+                    > JpegHeaderParser.TAG_ORIENTATION) {
+                writeOrientationEntry(out, dst, orientation, isLittleEndian);
+                dst += 12;
+                isWritten = true;
+            }
+
+            System.arraycopy(jpeg, entry, out, dst, 12);
+            dst += 12;
+        }
+
+        if (!isWritten) {
+            writeOrientationEntry(out, dst, orientation, isLittleEndian);
+            dst += 12;
+        }
+
+        // The offset of IFD1, the thumbnail's, hasn't moved
+        System.arraycopy(jpeg, entries + entryCount * 12, out, dst, 4);
+        return out;
+    }
+
+    private static byte[] insertExif(byte[] jpeg, int insertAt, int orientation) {
+        byte[] out = new byte[jpeg.length + 2 + MINIMAL_EXIF_LENGTH];
+        System.arraycopy(jpeg, 0, out, 0, insertAt);
+        System.arraycopy(jpeg, insertAt, out, insertAt + 2 + MINIMAL_EXIF_LENGTH, jpeg.length - insertAt);
+
+        int pos = insertAt;
+        out[pos++] = (byte) 0xff;
+        out[pos++] = (byte) JpegHeaderParser.MARKER_APP1;
+        writeShort(out, pos, MINIMAL_EXIF_LENGTH, false);
+        pos += 2;
+
+        System.arraycopy(JpegHeaderParser.EXIF_HEADER, 0, out, pos, JpegHeaderParser.EXIF_HEADER.length);
+        pos += JpegHeaderParser.EXIF_HEADER.length;
+
+        // Big endian TIFF header, IFD0 straight after it with one entry and no IFD1
+        out[pos++] = 'M';
+        out[pos++] = 'M';
+        writeShort(out, pos, 42, false);
+        writeInt(out, pos + 2, 8, false);
+        writeShort(out, pos + 6, 1, false);
+        writeOrientationEntry(out, pos + 8, orientation, false);
+        writeInt(out, pos + 20, 0, false);
+
+        return out;
+    }
+
+    private static void writeOrientationEntry(byte[] bytes, int offset, int orientation, boolean isLittleEndian) {
+        writeShort(bytes, offset, JpegHeaderParser.TAG_ORIENTATION, isLittleEndian);
+        writeShort(bytes, offset + 2, JpegHeaderParser.TYPE_SHORT, isLittleEndian);
+        writeInt(bytes, offset + 4, 1, isLittleEndian);
+
+        // A SHORT value sits in the first 2 of the 4 value bytes
+        writeShort(bytes, offset + 8, orientation, isLittleEndian);
+        writeShort(bytes, offset + 10, 0, isLittleEndian);
+    }
+
+    static void writeShort(byte[] bytes, int offset, int value, boolean isLittleEndian) {
+        bytes[offset] = (byte) (isLittleEndian ? value : value >> 8);
+        bytes[offset + 1] = (byte) (isLittleEndian ? value >> 8 : value);
+    }
+
+    static void writeInt(byte[] bytes, int offset, int value, boolean isLittleEndian) {
+        if (isLittleEndian) {
+            writeShort(bytes, offset, value & 0xffff, true);
+            writeShort(bytes, offset + 2, value >>> 16, true);
+        } else {
+            writeShort(bytes, offset, value >>> 16, false);
+            writeShort(bytes, offset + 2, value & 0xffff, false);
+        }
+    }
+}
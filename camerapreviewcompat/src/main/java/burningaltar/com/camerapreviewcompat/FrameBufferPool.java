@@ -0,0 +1,86 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.ArrayDeque;
+
+/**
+ * A fixed-size pool of same-length byte arrays, used to recycle frame buffers instead of allocating one per frame.
+ * <p/>
+ * Buffers are allocated lazily on {@link #acquire()} when the pool is empty, so after warm-up a session that
+ * releases every buffer it acquires won't allocate at all. Buffers of the wrong length are never taken back.
+ */
+class FrameBufferPool {
+    private final int mBufferSize;
+    private final int mCapacity;
+
+    private final ArrayDeque<byte[]> mFree;
+
+    private int mAllocations = 0;
+
+    FrameBufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Invalid pool, buffer size " + bufferSize + " capacity " + capacity);
+        }
+
+        mBufferSize = bufferSize;
+        mCapacity = capacity;
+        mFree = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * @return a free buffer, allocating a new one if none are waiting in the pool
+     */
+    synchronized byte[] acquire() {
+        byte[] buffer = mFree.pollFirst();
+
+        if (buffer == null) {
+            mAllocations++;
+            buffer = new byte[mBufferSize];
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Like acquire(), but never allocates past the pool's capacity: returns null while every buffer is checked out.
+     * Only for pools whose buffers always come back, since lost buffers still count against the capacity.
+     */
+    synchronized byte[] tryAcquire() {
+        if (mFree.isEmpty() && mAllocations >= mCapacity) return null;
+        return acquire();
+    }
+
+    /**
+     * Hand a buffer back to the pool
+     *
+     * @return false if the buffer doesn't belong in this pool or the pool is already full
+     */
+    synchronized boolean release(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize || mFree.size() >= mCapacity) return false;
+
+        mFree.addFirst(buffer);
+        return true;
+    }
+
+    boolean accepts(byte[] buffer) {
+        return buffer != null && buffer.length == mBufferSize;
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Total number of buffers this pool has ever allocated; this should stop growing once a session warms up
+     */
+    synchronized int getAllocationCount() {
+        return mAllocations;
+    }
+
+    synchronized int getFreeCount() {
+        return mFree.size();
+    }
+}
@@ -0,0 +1,309 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.IdentityHashMap;
+
+/**
+ * The delivery path every streamed frame takes on its way to a listener: optionally cropped, scaled down and made
+ * upright, then handed over, with the conversions and the listener timed in the frame stats. Free of Android types, so the
+ * path can be driven by a camera-less {@link FrameSource} and load tested on a plain JVM.
+ */
+public class FrameDispatcher {
+    // Spreads upright conversions across cores when set, otherwise they run on the delivering thread
+    private volatile StripedExecutor mConversionExecutor = null;
+
+    // Rotate (and mirror, for the front camera) frames before delivering them
+    private volatile boolean mIsUprightFrames = false;
+
+    // Deliver only the Y plane, for consumers that work in grayscale
+    private volatile boolean mIsLumaOnly = false;
+    private volatile int mMaxFrames = 3;
+
+    private volatile FrameStatsRecorder mFrameStats;
+
+    // Crop frames to this region before anything else, null for whole frames
+    private volatile RoiMapper mRoi = null;
+
+    // Only touched by the delivering thread
+    private final int[] mRoiRect = new int[4];
+
+    // Shrink frames to fit this box, 0 for full size
+    private volatile int mAnalysisWidth = 0;
+    private volatile int mAnalysisHeight = 0;
+
+    private final PooledFrames mScaledFrames = new PooledFrames();
+    private final PooledFrames mUprightFrames = new PooledFrames();
+
+    public FrameDispatcher() {
+        this(new FrameStatsRecorder());
+    }
+
+    FrameDispatcher(FrameStatsRecorder frameStats) {
+        mFrameStats = frameStats;
+    }
+
+    public void setConversionExecutor(StripedExecutor executor) {
+        mConversionExecutor = executor;
+    }
+
+    public void setUprightFrames(boolean isUpright) {
+        mIsUprightFrames = isUpright;
+    }
+
+    /**
+     * Deliver frames as {@link CameraFrame#FORMAT_Y8}: just the Y plane with its row stride, as a view over the
+     * camera's buffer. Chroma is never read, so upright conversion only rotates the luma and costs two thirds less.
+     */
+    public void setLumaOnly(boolean isLumaOnly) {
+        mIsLumaOnly = isLumaOnly;
+    }
+
+    /**
+     * Deliver only a region of each frame, cropped in place: the planes are pointed at the region, with the chroma
+     * kept aligned, and nothing is copied. Scaling and upright conversion then only touch the region. Pass null for
+     * whole frames again.
+     */
+    public void setRoi(RoiMapper roi) {
+        mRoi = roi;
+    }
+
+    /**
+     * Downscale frames to fit within maxWidth x maxHeight, keeping their aspect ratio, before they're delivered. The
+     * box is for the upright frame, so it needn't be swapped for a sideways sensor. Scaling reads the YUV planes once
+     * with a box filter and writes a pooled I420 frame (Y8 if luma only), so nothing else touches the full-size frame.
+     * Pass 0s to deliver full size frames again.
+     */
+    public void setAnalysisSize(int maxWidth, int maxHeight) {
+        mAnalysisWidth = maxWidth;
+        mAnalysisHeight = maxHeight;
+    }
+
+    /**
+     * How many upright or scaled frames can be checked out at once
+     */
+    public void setMaxFrames(int maxFrames) {
+        mMaxFrames = Math.max(1, maxFrames);
+    }
+
+    void setFrameStatsRecorder(FrameStatsRecorder frameStats) {
+        mFrameStats = frameStats;
+    }
+
+    FrameStatsRecorder getFrameStatsRecorder() {
+        return mFrameStats;
+    }
+
+    /**
+     * Fill the snapshot with throughput so far, without allocating
+     */
+    public FrameStats getFrameStats(FrameStats into) {
+        return mFrameStats.snapshot(into);
+    }
+
+    /**
+     * Deliver every frame the source produces to the listener, counting each one in the frame stats the way the
+     * cameras do
+     */
+    public void start(FrameSource source, final FrameSource.Callback listener) {
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(CameraFrame frame) {
+                mFrameStats.onFrame(frame.getTimestampNanos());
+                deliver(frame, false, listener);
+            }
+        });
+    }
+
+    /**
+     * Hand a frame to the listener, cropping, scaling it down and making it upright first if asked to
+     *
+     * @param isMirrored whether upright frames should also be flipped, i.e. for the front camera
+     */
+    public void deliver(CameraFrame frame, boolean isMirrored, FrameSource.Callback listener) {
+        FrameStatsRecorder frameStats = mFrameStats;
+        boolean isLumaOnly = mIsLumaOnly;
+        int analysisWidth = mAnalysisWidth;
+        int analysisHeight = mAnalysisHeight;
+        boolean isConverted = false;
+        long conversionNanos = 0;
+
+        RoiMapper roi = mRoi;
+
+        if (roi != null) {
+            roi.mapToFrame(frame.getWidth(), frame.getHeight(), frame.getRotation(), isMirrored, mRoiRect);
+            frame.setCrop(mRoiRect[0], mRoiRect[1], mRoiRect[2], mRoiRect[3]);
+        }
+
+        if (analysisWidth > 0 && analysisHeight > 0) {
+            long start = System.nanoTime();
+            frame = scaledFrame(frame, analysisWidth, analysisHeight, isLumaOnly);
+            isConverted = true;
+
+            // Every scaled buffer is still checked out; drop the frame
+            if (frame == null) {
+                frameStats.onDropped();
+                return;
+            }
+
+            conversionNanos = System.nanoTime() - start;
+        }
+
+        if (mIsUprightFrames && (frame.getRotation() != 0 || isMirrored)) {
+            long start = System.nanoTime();
+            frame = uprightFrame(frame, isMirrored, isLumaOnly);
+
+            // Every upright buffer is still checked out; drop the frame
+            if (frame == null) {
+                frameStats.onDropped();
+                return;
+            }
+
+            conversionNanos += System.nanoTime() - start;
+            isConverted = true;
+        } else if (isLumaOnly) {
+            frame.setLumaOnly();
+        }
+
+        if (isConverted) {
+            frameStats.recordConversion(conversionNanos);
+        }
+
+        long start = System.nanoTime();
+        listener.onFrame(frame);
+        frameStats.recordListener(System.nanoTime() - start);
+    }
+
+    /**
+     * Shrink the frame into a pooled buffer and release the original right away, as packed I420 or, for luma-only
+     * frames, packed Y8
+     */
+    private CameraFrame scaledFrame(CameraFrame src, int maxWidth, int maxHeight, boolean isLumaOnly) {
+        // The box is for the upright frame, so turn it to match a sideways one
+        if (YuvRotator.isSideways(src.getRotation())) {
+            int swap = maxWidth;
+            maxWidth = maxHeight;
+            maxHeight = swap;
+        }
+
+        int width = YuvScaler.fitWidth(src.getWidth(), src.getHeight(), maxWidth, maxHeight);
+        int height = YuvScaler.fitHeight(src.getWidth(), src.getHeight(), maxWidth, maxHeight);
+
+        // Already small enough
+        if (width == src.getWidth() && height == src.getHeight()) return src;
+
+        byte[] buffer = mScaledFrames.tryAcquire(isLumaOnly ? width * height :
+                SizeUtils.getPreviewBufferSize(width, height), mMaxFrames);
+
+        if (buffer == null) {
+            src.release();
+            return null;
+        }
+
+        int format;
+
+        if (isLumaOnly) {
+            YuvScaler.scaleLuma(src, width, height, buffer, mConversionExecutor);
+            format = CameraFrame.FORMAT_Y8;
+        } else {
+            YuvScaler.scaleToI420(src, width, height, buffer, mConversionExecutor);
+            format = CameraFrame.FORMAT_YUV_420_888;
+        }
+
+        int rotation = src.getRotation();
+        long timestamp = src.getTimestampNanos();
+        src.release();
+
+        return mScaledFrames.checkOut(buffer, format, width, height, rotation, timestamp);
+    }
+
+    /**
+     * Rotate the frame into a pooled buffer and release the original right away, so the source gets its buffer back
+     * no matter how long the consumer holds on to the upright copy
+     */
+    private CameraFrame uprightFrame(CameraFrame src, boolean isMirrored, boolean isLumaOnly) {
+        int rotation = src.getRotation();
+        boolean isSideways = YuvRotator.isSideways(rotation);
+        int width = isSideways ? src.getHeight() : src.getWidth();
+        int height = isSideways ? src.getWidth() : src.getHeight();
+
+        byte[] buffer = mUprightFrames.tryAcquire(isLumaOnly ? width * height :
+                SizeUtils.getPreviewBufferSize(width, height), mMaxFrames);
+
+        if (buffer == null) {
+            src.release();
+            return null;
+        }
+
+        int format;
+
+        if (isLumaOnly) {
+            YuvRotator.rotateLuma(src, rotation, isMirrored, buffer, mConversionExecutor);
+            format = CameraFrame.FORMAT_Y8;
+        } else {
+            YuvRotator.rotate(src, rotation, isMirrored, buffer, mConversionExecutor);
+            boolean isNv21 = src.getFormat() == CameraFrame.FORMAT_NV21 && src.getData() != null;
+            format = isNv21 ? CameraFrame.FORMAT_NV21 : CameraFrame.FORMAT_YUV_420_888;
+        }
+
+        long timestamp = src.getTimestampNanos();
+        src.release();
+
+        return mUprightFrames.checkOut(buffer, format, width, height, 0, timestamp);
+    }
+
+    /**
+     * Pooled buffers for converted frames, each with a frame wrapper that's made once and reused
+     */
+    private static class PooledFrames implements CameraFrame.Releaser {
+        private volatile FrameBufferPool mPool = null;
+        private final IdentityHashMap<byte[], CameraFrame> mFrames = new IdentityHashMap<>();
+
+        /**
+         * @return a free buffer, or null while all of them are checked out. A new size starts a new pool.
+         */
+        byte[] tryAcquire(int bufferSize, int maxFrames) {
+            if (mPool == null || mPool.getBufferSize() != bufferSize) {
+                mPool = new FrameBufferPool(bufferSize, maxFrames);
+
+                synchronized (mFrames) {
+                    mFrames.clear();
+                }
+            }
+
+            return mPool.tryAcquire();
+        }
+
+        CameraFrame checkOut(byte[] buffer, int format, int width, int height, int rotation, long timestamp) {
+            CameraFrame frame;
+
+            synchronized (mFrames) {
+                frame = mFrames.get(buffer);
+
+                if (frame == null || frame.getWidth() != width || frame.getHeight() != height
+                        || frame.getFormat() != format) {
+                    frame = wrap(buffer, format, width, height);
+                    mFrames.put(buffer, frame);
+                }
+            }
+
+            frame.checkOut(rotation, timestamp);
+            return frame;
+        }
+
+        private CameraFrame wrap(byte[] buffer, int format, int width, int height) {
+            switch (format) {
+                case CameraFrame.FORMAT_Y8:
+                    return CameraFrame.wrapY8(buffer, width, height, this);
+                case CameraFrame.FORMAT_NV21:
+                    return CameraFrame.wrapNv21(buffer, width, height, this);
+                default:
+                    return CameraFrame.wrapI420(buffer, width, height, this);
+            }
+        }
+
+        @Override
+        public void release(CameraFrame frame) {
+            FrameBufferPool pool = mPool;
+            if (pool != null) pool.release(frame.getData());
+        }
+    }
+}
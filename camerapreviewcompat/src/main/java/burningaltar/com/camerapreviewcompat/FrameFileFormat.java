@@ -0,0 +1,53 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.io.File;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the raw frame files written by {@link FrameRecorder} and read by {@link FrameFileReader}. Everything is
+ * little endian, which is what both ARM and x86 use, so neither side has to swap bytes.
+ * <p/>
+ * <pre>
+ * file:   magic, version, then frames back to back
+ * frame:  FRAME_HEADER_SIZE bytes of header, then each plane's bytes in order
+ * header: magic, format, width, height, rotation, timestamp (long), plane count,
+ *         then row stride, pixel stride and length for each of MAX_PLANES planes, zero padded
+ * index:  magic, version, frame count, then each frame's file offset and timestamp (longs)
+ * </pre>
+ * A frame with one plane is packed NV21 or I420, as its format says, or a strided Y8 plane. Three planes are stored as the camera gave them,
+ * strides and all, so the reader can hand them out without repacking.
+ */
+class FrameFileFormat {
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    static final int FILE_MAGIC = 0x46504353; // "SCPF"
+    static final int INDEX_MAGIC = 0x58504353; // "SCPX"
+    static final int FRAME_MAGIC = 0x454d5246; // "FRME"
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER_SIZE = 8;
+    static final int INDEX_HEADER_SIZE = 12;
+    static final int INDEX_ENTRY_SIZE = 16;
+
+    static final int MAX_PLANES = 3;
+
+    // 32 bytes of fields plus 12 per plane, padded so plane data stays 8-byte aligned
+    static final int FRAME_HEADER_SIZE = 72;
+
+    // Offsets within a frame header
+    static final int OFFSET_FORMAT = 4;
+    static final int OFFSET_WIDTH = 8;
+    static final int OFFSET_HEIGHT = 12;
+    static final int OFFSET_ROTATION = 16;
+    static final int OFFSET_TIMESTAMP = 20;
+    static final int OFFSET_PLANE_COUNT = 28;
+    static final int OFFSET_PLANES = 32;
+    static final int PLANE_ENTRY_SIZE = 12;
+
+    /**
+     * The index that goes with a frame file
+     */
+    static File getIndexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+}
@@ -0,0 +1,289 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a file written by {@link FrameRecorder}. The file is memory mapped and frames wrap the mapping directly, so
+ * reading one doesn't copy its pixels; the OS pages them in as they're touched.
+ * <p/>
+ * Frame positions come from the index next to the file. If it's missing, e.g. because the recording app died before
+ * closing the recorder, the frame headers are scanned instead, up to the last complete frame.
+ */
+public class FrameFileReader implements Closeable {
+    // Files are mapped in segments of this size, each extended by the biggest frame so no frame straddles two
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final long mFileSize;
+
+    private long[] mOffsets;
+    private long[] mTimestamps;
+    private int mFrameCount;
+    private long mMaxFrameSize = 0;
+
+    private final MappedByteBuffer[] mSegments;
+
+    public FrameFileReader(File file) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        mFileSize = mChannel.size();
+
+        try {
+            ByteBuffer header = read(0, FrameFileFormat.FILE_HEADER_SIZE);
+
+            if (header == null || header.getInt(0) != FrameFileFormat.FILE_MAGIC) {
+                throw new IOException(file + " isn't a frame file");
+            }
+
+            if (header.getInt(4) != FrameFileFormat.VERSION) {
+                throw new IOException("Unsupported frame file version " + header.getInt(4));
+            }
+
+            if (!readIndex(FrameFileFormat.getIndexFile(file))) {
+                scanFrames();
+            }
+
+            for (int i = 0; i < mFrameCount; i++) {
+                long end = i + 1 < mFrameCount ? mOffsets[i + 1] : frameEnd(mOffsets[i]);
+                mMaxFrameSize = Math.max(mMaxFrameSize, end - mOffsets[i]);
+            }
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+
+        mSegments = new MappedByteBuffer[(int) ((mFileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+    }
+
+    /**
+     * @return false if there's no usable index
+     */
+    private boolean readIndex(File indexFile) throws IOException {
+        if (!indexFile.isFile()) return false;
+
+        RandomAccessFile input = new RandomAccessFile(indexFile, "r");
+
+        try {
+            ByteBuffer index = ByteBuffer.allocate((int) input.length());
+            index.order(FrameFileFormat.BYTE_ORDER);
+            input.getChannel().read(index, 0);
+            index.flip();
+
+            if (index.remaining() < FrameFileFormat.INDEX_HEADER_SIZE
+                    || index.getInt() != FrameFileFormat.INDEX_MAGIC
+                    || index.getInt() != FrameFileFormat.VERSION) {
+                return false;
+            }
+
+            int count = index.getInt();
+            if (count < 0 || index.remaining() < (long) count * FrameFileFormat.INDEX_ENTRY_SIZE) return false;
+
+            mOffsets = new long[count];
+            mTimestamps = new long[count];
+
+            for (int i = 0; i < count; i++) {
+                mOffsets[i] = index.getLong();
+                mTimestamps[i] = index.getLong();
+
+                long previous = i == 0 ? FrameFileFormat.FILE_HEADER_SIZE - 1 : mOffsets[i - 1];
+                if (mOffsets[i] <= previous) return false;
+            }
+
+            // The index is for some other version of the file
+            if (count > 0 && frameEnd(mOffsets[count - 1]) < 0) return false;
+
+            mFrameCount = count;
+            return true;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Walk the frame headers from the start, stopping at the first one that's missing or cut off
+     */
+    private void scanFrames() throws IOException {
+        mOffsets = new long[256];
+        mTimestamps = new long[256];
+        mFrameCount = 0;
+
+        long offset = FrameFileFormat.FILE_HEADER_SIZE;
+        long end;
+
+        while ((end = frameEnd(offset)) > 0) {
+            if (mFrameCount == mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, mFrameCount * 2);
+                mTimestamps = Arrays.copyOf(mTimestamps, mFrameCount * 2);
+            }
+
+            mOffsets[mFrameCount] = offset;
+            mTimestamps[mFrameCount] = read(offset, FrameFileFormat.FRAME_HEADER_SIZE)
+                    .getLong(FrameFileFormat.OFFSET_TIMESTAMP);
+            mFrameCount++;
+
+            offset = end;
+        }
+    }
+
+    /**
+     * Where the frame at offset ends, or -1 if there's no complete frame there
+     */
+    private long frameEnd(long offset) throws IOException {
+        ByteBuffer header = read(offset, FrameFileFormat.FRAME_HEADER_SIZE);
+        if (header == null || header.getInt(0) != FrameFileFormat.FRAME_MAGIC) return -1;
+
+        int planeCount = header.getInt(FrameFileFormat.OFFSET_PLANE_COUNT);
+        if (planeCount < 1 || planeCount > FrameFileFormat.MAX_PLANES) return -1;
+
+        long end = offset + FrameFileFormat.FRAME_HEADER_SIZE;
+
+        for (int i = 0; i < planeCount; i++) {
+            int length = header.getInt(FrameFileFormat.OFFSET_PLANES + i * FrameFileFormat.PLANE_ENTRY_SIZE + 8);
+            if (length < 0) return -1;
+            end += length;
+        }
+
+        return end <= mFileSize ? end : -1;
+    }
+
+    /**
+     * Read a small region with a plain read, for headers while the file isn't mapped yet
+     */
+    private ByteBuffer read(long offset, int size) throws IOException {
+        if (offset + size > mFileSize) return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(FrameFileFormat.BYTE_ORDER);
+
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, offset + buffer.position()) < 0) return null;
+        }
+
+        return buffer;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getTimestampNanos(int idx) {
+        return mTimestamps[idx];
+    }
+
+    /**
+     * The last frame at or before the timestamp, or the first frame if they're all later. Assumes timestamps only go
+     * up, as they do in a recording.
+     *
+     * @return -1 if there are no frames
+     */
+    public int findFrame(long timestampNanos) {
+        if (mFrameCount == 0) return -1;
+
+        int idx = Arrays.binarySearch(mTimestamps, 0, mFrameCount, timestampNanos);
+        if (idx >= 0) return idx;
+
+        return Math.max(0, -idx - 2);
+    }
+
+    /**
+     * A frame backed by the mapped file, checked out with its recorded rotation and timestamp. Releasing it does
+     * nothing; it stays valid until the reader is closed.
+     */
+    public CameraFrame getFrame(int idx) throws IOException {
+        ByteBuffer frameBuffer = mapFrame(mOffsets[idx]);
+
+        int format = frameBuffer.getInt(FrameFileFormat.OFFSET_FORMAT);
+        int width = frameBuffer.getInt(FrameFileFormat.OFFSET_WIDTH);
+        int height = frameBuffer.getInt(FrameFileFormat.OFFSET_HEIGHT);
+        int rotation = frameBuffer.getInt(FrameFileFormat.OFFSET_ROTATION);
+        long timestamp = frameBuffer.getLong(FrameFileFormat.OFFSET_TIMESTAMP);
+        int planeCount = frameBuffer.getInt(FrameFileFormat.OFFSET_PLANE_COUNT);
+
+        CameraFrame frame = new CameraFrame();
+        frame.setFormat(format, width, height);
+
+        int position = FrameFileFormat.FRAME_HEADER_SIZE;
+
+        if (planeCount == 1 && format != CameraFrame.FORMAT_Y8) {
+            wrapPacked(frame, slice(frameBuffer, position, SizeUtils.getPreviewBufferSize(width, height)));
+        } else {
+            for (int i = 0; i < planeCount; i++) {
+                int entry = FrameFileFormat.OFFSET_PLANES + i * FrameFileFormat.PLANE_ENTRY_SIZE;
+                int length = frameBuffer.getInt(entry + 8);
+
+                frame.setPlane(i, slice(frameBuffer, position, length), frameBuffer.getInt(entry),
+                        frameBuffer.getInt(entry + 4));
+                position += length;
+            }
+
+            frame.setPlaneCount(planeCount);
+        }
+
+        frame.checkOut(rotation, timestamp);
+        return frame;
+    }
+
+    /**
+     * Lay out a packed frame's planes the same way CameraFrame.wrapNv21() and wrapI420() do for arrays
+     */
+    private static void wrapPacked(CameraFrame frame, ByteBuffer data) {
+        int width = frame.getWidth();
+        int lumaSize = width * frame.getHeight();
+
+        frame.setPlane(0, slice(data, 0, lumaSize), width, 1);
+
+        if (frame.getFormat() == CameraFrame.FORMAT_NV21) {
+            // NV21 chroma is interleaved V, U
+            frame.setPlane(1, slice(data, lumaSize + 1, data.capacity() - lumaSize - 1), width, 2);
+            frame.setPlane(2, slice(data, lumaSize, data.capacity() - lumaSize), width, 2);
+        } else {
+            int chromaSize = lumaSize / 4;
+            frame.setPlane(1, slice(data, lumaSize, chromaSize), width / 2, 1);
+            frame.setPlane(2, slice(data, lumaSize + chromaSize, chromaSize), width / 2, 1);
+        }
+
+        frame.setPlaneCount(3);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * The mapped region holding the frame at offset, starting at the frame
+     */
+    private synchronized ByteBuffer mapFrame(long offset) throws IOException {
+        int segment = (int) (offset / SEGMENT_SIZE);
+        long segmentStart = segment * SEGMENT_SIZE;
+
+        if (mSegments[segment] == null) {
+            long size = Math.min(SEGMENT_SIZE + mMaxFrameSize, mFileSize - segmentStart);
+            mSegments[segment] = mChannel.map(FileChannel.MapMode.READ_ONLY, segmentStart, size);
+        }
+
+        ByteBuffer buffer = mSegments[segment].duplicate();
+        buffer.position((int) (offset - segmentStart));
+        buffer = buffer.slice();
+        buffer.order(FrameFileFormat.BYTE_ORDER);
+        return buffer;
+    }
+
+    /**
+     * Close the file. Frames from this reader may still point at the mapping, so stop using them first.
+     */
+    @Override
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+}
@@ -0,0 +1,241 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Appends raw frames to a file through a memory-mapped channel, so recording is a copy into the page cache with no
+ * write calls per frame. The file is mapped a chunk at a time; frames are never split across chunks. Each frame gets
+ * a fixed header with its size, format, strides, rotation and timestamp, see {@link FrameFileFormat}.
+ * <p/>
+ * {@link #close()} trims the file to what was written and saves the index next to it, for random access. If the app
+ * dies first, {@link FrameFileReader} rebuilds the index from the frame headers.
+ */
+public class FrameRecorder implements Closeable {
+    // Big enough that remapping is rare, small enough not to reserve much past the end of a short recording
+    static final int MAP_CHUNK_SIZE = 32 << 20;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+
+    private MappedByteBuffer mMap;
+    private long mMapStart = 0;
+
+    // Where the next frame goes
+    private long mPosition;
+
+    private long[] mOffsets = new long[256];
+    private long[] mTimestamps = new long[256];
+    private int mFrameCount = 0;
+
+    private boolean mIsClosed = false;
+
+    public FrameRecorder(File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mChannel.truncate(0);
+
+        ByteBuffer header = map(FrameFileFormat.FILE_HEADER_SIZE);
+        header.putInt(FrameFileFormat.FILE_MAGIC);
+        header.putInt(FrameFileFormat.VERSION);
+        mPosition = FrameFileFormat.FILE_HEADER_SIZE;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Append a frame as the camera gave it. Packed frames, like the legacy camera's NV21 buffers, are stored as one
+     * plane; anything else, luma-only frames included, keeps its planes and strides.
+     */
+    public synchronized void record(CameraFrame frame) throws IOException {
+        byte[] data = frame.getData();
+
+        if (data != null && frame.getFormat() != CameraFrame.FORMAT_Y8) {
+            record(data, frame.getFormat(), frame.getWidth(), frame.getHeight(), frame.getRotation(),
+                    frame.getTimestampNanos());
+            return;
+        }
+
+        int planeCount = Math.min(frame.getPlaneCount(), FrameFileFormat.MAX_PLANES);
+        int dataSize = 0;
+
+        for (int i = 0; i < planeCount; i++) {
+            dataSize += frame.getPlane(i).limit();
+        }
+
+        ByteBuffer out = beginFrame(frame.getFormat(), frame.getWidth(), frame.getHeight(), frame.getRotation(),
+                frame.getTimestampNanos(), planeCount, dataSize);
+
+        for (int i = 0; i < planeCount; i++) {
+            ByteBuffer plane = frame.getPlane(i);
+            putPlaneEntry(out, i, frame.getRowStride(i), frame.getPixelStride(i), plane.limit());
+        }
+
+        out.position(FrameFileFormat.FRAME_HEADER_SIZE);
+
+        for (int i = 0; i < planeCount; i++) {
+            // The plane is shared with the camera; copy it from the start without leaving its position moved
+            ByteBuffer plane = frame.getPlane(i);
+            int position = plane.position();
+            plane.position(0);
+            out.put(plane);
+            plane.position(position);
+        }
+
+        endFrame(dataSize);
+    }
+
+    /**
+     * Append a packed NV21 or I420 frame, e.g. a legacy camera preview buffer
+     *
+     * @param format {@link CameraFrame#FORMAT_NV21} or {@link CameraFrame#FORMAT_YUV_420_888} for I420
+     */
+    public synchronized void record(byte[] data, int format, int width, int height, int rotation,
+                                    long timestampNanos) throws IOException {
+        int dataSize = SizeUtils.getPreviewBufferSize(width, height);
+
+        ByteBuffer out = beginFrame(format, width, height, rotation, timestampNanos, 1, dataSize);
+        putPlaneEntry(out, 0, width, 1, dataSize);
+
+        out.position(FrameFileFormat.FRAME_HEADER_SIZE);
+        out.put(data, 0, dataSize);
+
+        endFrame(dataSize);
+    }
+
+    /**
+     * @return a buffer positioned at the start of the new frame, with everything but the plane entries written
+     */
+    private ByteBuffer beginFrame(int format, int width, int height, int rotation, long timestampNanos,
+                                  int planeCount, int dataSize) throws IOException {
+        if (mIsClosed) throw new IOException("Recorder is closed");
+
+        ByteBuffer out = map(FrameFileFormat.FRAME_HEADER_SIZE + dataSize);
+
+        // Zero the whole header so unused plane entries and padding read as 0
+        for (int i = 0; i < FrameFileFormat.FRAME_HEADER_SIZE; i += 4) {
+            out.putInt(i, 0);
+        }
+
+        out.putInt(0, FrameFileFormat.FRAME_MAGIC);
+        out.putInt(FrameFileFormat.OFFSET_FORMAT, format);
+        out.putInt(FrameFileFormat.OFFSET_WIDTH, width);
+        out.putInt(FrameFileFormat.OFFSET_HEIGHT, height);
+        out.putInt(FrameFileFormat.OFFSET_ROTATION, rotation);
+        out.putLong(FrameFileFormat.OFFSET_TIMESTAMP, timestampNanos);
+        out.putInt(FrameFileFormat.OFFSET_PLANE_COUNT, planeCount);
+
+        if (mFrameCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mFrameCount * 2);
+            mTimestamps = Arrays.copyOf(mTimestamps, mFrameCount * 2);
+        }
+
+        mOffsets[mFrameCount] = mPosition;
+        mTimestamps[mFrameCount] = timestampNanos;
+
+        return out;
+    }
+
+    private static void putPlaneEntry(ByteBuffer out, int plane, int rowStride, int pixelStride, int length) {
+        int offset = FrameFileFormat.OFFSET_PLANES + plane * FrameFileFormat.PLANE_ENTRY_SIZE;
+        out.putInt(offset, rowStride);
+        out.putInt(offset + 4, pixelStride);
+        out.putInt(offset + 8, length);
+    }
+
+    private void endFrame(int dataSize) {
+        mPosition += FrameFileFormat.FRAME_HEADER_SIZE + dataSize;
+        mFrameCount++;
+    }
+
+    /**
+     * A buffer for the next size bytes, starting at mPosition, mapping a new chunk if the current one is too small
+     */
+    private ByteBuffer map(int size) throws IOException {
+        if (mMap == null || mPosition + size > mMapStart + mMap.capacity()) {
+            // No force() here: the OS writes finished chunks back on its own, and syncing each one would stall the
+            // camera thread on disk I/O. close() forces the last one.
+            mMapStart = mPosition;
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, mMapStart, Math.max(MAP_CHUNK_SIZE, size));
+            mMap.order(FrameFileFormat.BYTE_ORDER);
+        }
+
+        mMap.limit(mMap.capacity());
+        mMap.position((int) (mPosition - mMapStart));
+
+        ByteBuffer out = mMap.slice();
+        out.order(FrameFileFormat.BYTE_ORDER);
+        out.limit(size);
+        return out;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Bytes written so far, headers included
+     */
+    public synchronized long getSize() {
+        return mPosition;
+    }
+
+    /**
+     * Flush, trim the unused end of the last chunk and write the index. Safe to call more than once.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mIsClosed) return;
+        mIsClosed = true;
+
+        try {
+            if (mMap != null) mMap.force();
+            mMap = null;
+
+            mChannel.truncate(mPosition);
+            writeIndex();
+        } finally {
+            mRandomAccessFile.close();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(FrameFileFormat.INDEX_HEADER_SIZE
+                + mFrameCount * FrameFileFormat.INDEX_ENTRY_SIZE);
+        index.order(FrameFileFormat.BYTE_ORDER);
+
+        index.putInt(FrameFileFormat.INDEX_MAGIC);
+        index.putInt(FrameFileFormat.VERSION);
+        index.putInt(mFrameCount);
+
+        for (int i = 0; i < mFrameCount; i++) {
+            index.putLong(mOffsets[i]);
+            index.putLong(mTimestamps[i]);
+        }
+
+        index.flip();
+
+        RandomAccessFile indexFile = new RandomAccessFile(FrameFileFormat.getIndexFile(mFile), "rw");
+
+        try {
+            FileChannel channel = indexFile.getChannel();
+            channel.truncate(0);
+
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+        } finally {
+            indexFile.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last few preview frames, packed as NV21, for zero shutter lag: a photo can be taken from a frame that was
+ * already captured instead of waiting on a new capture.
+ * <p/>
+ * Every slot is allocated up front, so memory is bounded at capacity * width * height * 1.5 bytes and writing a
+ * frame never allocates; the oldest frame is simply overwritten. Not thread safe, it's meant to be used from the
+ * camera thread only.
+ */
+class FrameRingBuffer {
+    private final int mWidth;
+    private final int mHeight;
+
+    private final byte[][] mSlots;
+    private final long[] mTimestamps;
+
+    // Where the next frame goes, and how many slots hold a frame
+    private int mNext = 0;
+    private int mSize = 0;
+
+    FrameRingBuffer(int capacity, int width, int height) {
+        if (capacity <= 0 || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid ring, capacity " + capacity + " size " + width + "x" + height);
+        }
+
+        mWidth = width;
+        mHeight = height;
+        mSlots = new byte[capacity][SizeUtils.getPreviewBufferSize(width, height)];
+        mTimestamps = new long[capacity];
+    }
+
+    /**
+     * Whether this ring can be reused for frames of the given size and count
+     */
+    boolean matches(int capacity, int width, int height) {
+        return mSlots.length == capacity && mWidth == width && mHeight == height;
+    }
+
+    /**
+     * Copy in a packed NV21 frame
+     */
+    void write(byte[] nv21, long timestampNanos) {
+        byte[] slot = mSlots[mNext];
+        System.arraycopy(nv21, 0, slot, 0, Math.min(nv21.length, slot.length));
+        advance(timestampNanos);
+    }
+
+    /**
+     * Pack a YUV_420_888 frame's planes into NV21. Call before anyone else gets the planes: luma rows are bulk copied
+     * by moving the Y plane's position, which is put back afterwards.
+     */
+    void write(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+               long timestampNanos) {
+        byte[] slot = mSlots[mNext];
+        int position = y.position();
+
+        for (int row = 0; row < mHeight; row++) {
+            y.position(row * yRowStride);
+            y.get(slot, row * mWidth, mWidth);
+        }
+
+        y.position(position);
+
+        int chromaWidth = mWidth / 2;
+        int chromaHeight = mHeight / 2;
+        int dst = mWidth * mHeight;
+
+        // NV21 chroma is interleaved V, U
+        for (int row = 0; row < chromaHeight; row++) {
+            int src = row * uvRowStride;
+
+            for (int col = 0; col < chromaWidth; col++, src += uvPixelStride) {
+                slot[dst++] = v.get(src);
+                slot[dst++] = u.get(src);
+            }
+        }
+
+        advance(timestampNanos);
+    }
+
+    private void advance(long timestampNanos) {
+        mTimestamps[mNext] = timestampNanos;
+        mNext = (mNext + 1) % mSlots.length;
+        mSize = Math.min(mSize + 1, mSlots.length);
+    }
+
+    /**
+     * Slot of the frame closest in time to the given timestamp, or -1 if the ring is empty. The slot's data is only
+     * good until the ring wraps around to it again.
+     */
+    int findClosest(long timestampNanos) {
+        int closest = -1;
+        long closestDiff = Long.MAX_VALUE;
+
+        for (int i = 0; i < mSize; i++) {
+            long diff = Math.abs(mTimestamps[i] - timestampNanos);
+
+            if (diff < closestDiff) {
+                closestDiff = diff;
+                closest = i;
+            }
+        }
+
+        return closest;
+    }
+
+    byte[] getData(int slot) {
+        return mSlots[slot];
+    }
+
+    long getTimestampNanos(int slot) {
+        return mTimestamps[slot];
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getCapacity() {
+        return mSlots.length;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Forget every frame, e.g. when the camera changes, keeping the buffers
+     */
+    void clear() {
+        mNext = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,57 @@
+package burningaltar.com.camerapreviewcompat;
+
+/**
+ * A width and height, like android.util.Size but available on every API level and in plain JVM tests
+ */
+public final class FrameSize {
+    private final int mWidth;
+    private final int mHeight;
+
+    public FrameSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getArea() {
+        return (long) mWidth * mHeight;
+    }
+
+    /**
+     * Parse the "WxH" form produced by {@link #toString()}
+     *
+     * @throws NumberFormatException if the string isn't a size
+     */
+    public static FrameSize parse(String string) {
+        int x = string.indexOf('x');
+        if (x < 0) throw new NumberFormatException("Not a size: " + string);
+
+        return new FrameSize(Integer.parseInt(string.substring(0, x)), Integer.parseInt(string.substring(x + 1)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FrameSize)) return false;
+
+        FrameSize other = (FrameSize) o;
+        return mWidth == other.mWidth && mHeight == other.mHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHeight ^ ((mWidth << (Integer.SIZE / 2)) | (mWidth >>> (Integer.SIZE / 2)));
+    }
+
+    @Override
+    public String toString() {
+        return mWidth + "x" + mHeight;
+    }
+}
@@ -0,0 +1,33 @@
+package burningaltar.com.camerapreviewcompat;
+
+/**
+ * Something that produces {@link CameraFrame}s on its own thread. The cameras feed frames to their listeners
+ * directly; sources that don't need a camera, like {@link SyntheticFrameSource} and {@link ReplayFrameSource}, can
+ * drive the same delivery path through a {@link FrameDispatcher} on a plain JVM, e.g. to load test it in CI.
+ */
+public interface FrameSource {
+    interface Callback {
+        // Called on the source's thread; call frame.release() when done, from any thread
+        void onFrame(CameraFrame frame);
+    }
+
+    /**
+     * Start producing frames. Frames that come due while every buffer is checked out are dropped.
+     */
+    void start(Callback callback);
+
+    /**
+     * Stop producing frames and wait for the source's thread to finish. Frames already handed out stay valid until
+     * released.
+     */
+    void stop();
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @return {@link CameraFrame#FORMAT_NV21} or {@link CameraFrame#FORMAT_YUV_420_888}
+     */
+    int getFormat();
+}
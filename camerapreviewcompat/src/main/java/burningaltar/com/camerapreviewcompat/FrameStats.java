@@ -0,0 +1,143 @@
+package burningaltar.com.camerapreviewcompat;
+
+/**
+ * A snapshot of streaming throughput: how fast frames arrive, how many were dropped because the consumer was busy,
+ * and where the time per frame goes. Fill one with {@link SimpleCameraPreview#getFrameStats(FrameStats)}; the same
+ * instance can be reused for every poll, so polling never allocates.
+ * <p/>
+ * Conversion covers work the library does on a frame before the listener sees it, e.g. rotating frames upright or
+ * converting to ARGB. Listener covers time spent inside stream listener callbacks. If the camera's fps is fine but
+ * frames are dropped, compare the two to see which one is slow.
+ */
+public final class FrameStats {
+    /**
+     * Durations bucketed by powers of two microseconds: bucket 0 is under 1us, bucket i is [2^(i-1), 2^i) us, and
+     * the last bucket takes everything longer
+     */
+    public static final class Histogram {
+        public static final int BUCKET_COUNT = 22;
+
+        final long[] mBuckets = new long[BUCKET_COUNT];
+        long mCount;
+        long mTotalNanos;
+        long mMaxNanos;
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMeanNanos() {
+            return mCount == 0 ? 0 : mTotalNanos / mCount;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        public long getBucket(int idx) {
+            return mBuckets[idx];
+        }
+
+        /**
+         * Exclusive upper bound of a bucket, or Long.MAX_VALUE for the last one
+         */
+        public static long getBucketUpperNanos(int idx) {
+            return idx == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << idx) * 1000;
+        }
+
+        /**
+         * The upper bound of the bucket the given percentile falls in, so an overestimate by up to 2x; capped at the
+         * max seen
+         *
+         * @param percentile from 0 to 100
+         */
+        public long getPercentileNanos(double percentile) {
+            if (mCount == 0) return 0;
+
+            long rank = (long) Math.ceil(mCount * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) return Math.min(getBucketUpperNanos(i), mMaxNanos);
+            }
+
+            return mMaxNanos;
+        }
+
+        static int bucketFor(long nanos) {
+            long micros = nanos / 1000;
+            int idx = 64 - Long.numberOfLeadingZeros(micros);
+            return idx < BUCKET_COUNT ? idx : BUCKET_COUNT - 1;
+        }
+    }
+
+    long mFrameCount;
+    long mDroppedFrameCount;
+    long mElapsedNanos;
+    long mFrameIntervalNanos;
+
+    final Histogram mConversion = new Histogram();
+    final Histogram mListener = new Histogram();
+
+    /**
+     * Frames that came from the camera, including dropped ones
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Frames that never reached the listener because it was still busy with earlier ones. Includes frames the camera
+     * skipped on its own while every buffer was checked out, which only show up as gaps between frame timestamps.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Frames that weren't dropped. Frames skipped on purpose by an image stream's frame interval still count here.
+     */
+    public long getDeliveredFrameCount() {
+        return Math.max(0, mFrameCount - mDroppedFrameCount);
+    }
+
+    /**
+     * Current camera frame rate, smoothed over the last several frames
+     */
+    public float getFps() {
+        return mFrameIntervalNanos == 0 ? 0 : 1e9f / mFrameIntervalNanos;
+    }
+
+    /**
+     * Frames that reached the listener per second, since streaming started or stats were reset
+     */
+    public float getDeliveredFps() {
+        return mElapsedNanos == 0 ? 0 : getDeliveredFrameCount() * 1e9f / mElapsedNanos;
+    }
+
+    /**
+     * Time from the first frame to the last
+     */
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    public Histogram getConversionHistogram() {
+        return mConversion;
+    }
+
+    public Histogram getListenerHistogram() {
+        return mListener;
+    }
+
+    @Override
+    public String toString() {
+        return "fps " + getFps() + ", delivered fps " + getDeliveredFps() + ", frames " + mFrameCount
+                + ", dropped " + mDroppedFrameCount
+                + ", conversion mean/p95/max us " + mConversion.getMeanNanos() / 1000 + "/"
+                + mConversion.getPercentileNanos(95) / 1000 + "/" + mConversion.getMaxNanos() / 1000
+                + ", listener mean/p95/max us " + mListener.getMeanNanos() / 1000 + "/"
+                + mListener.getPercentileNanos(95) / 1000 + "/" + mListener.getMaxNanos() / 1000;
+    }
+}
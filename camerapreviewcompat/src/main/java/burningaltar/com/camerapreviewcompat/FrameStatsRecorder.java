@@ -0,0 +1,177 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects {@link FrameStats} on the frame path. Every record call is a handful of atomic updates, with no locks and
+ * no allocation, so it's safe to call for every frame from the camera thread while another thread polls.
+ * <p/>
+ * Neither camera API reports frames it skipped because every buffer was checked out: camera1 just doesn't call back,
+ * and camera2's acquireLatestImage() closes the images in between. Those drops are estimated from gaps between frame
+ * timestamps, and only counted when the consumer was busy at the time, so a camera lowering its own frame rate, e.g.
+ * in the dark, isn't blamed on the consumer.
+ */
+class FrameStatsRecorder {
+    // Weight of each new frame interval in the smoothed interval, as a shift: 1/8
+    private static final int SMOOTHING_SHIFT = 3;
+
+    // A longer gap means the stream was stopped or switched cameras, not that frames were dropped
+    static final long MAX_INTERVAL_NANOS = 1000000000L;
+
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mFirstTimestamp = new AtomicLong();
+    private final AtomicLong mLastTimestamp = new AtomicLong();
+    private final AtomicLong mIntervalNanos = new AtomicLong();
+
+    // Time spent on conversions and listeners since the last frame, and whether the consumer ran out of buffers
+    private final AtomicLong mBusyNanos = new AtomicLong();
+    private final AtomicBoolean mIsStarved = new AtomicBoolean();
+
+    private final Histogram mConversion = new Histogram();
+    private final Histogram mListener = new Histogram();
+
+    /**
+     * A frame arrived from the camera
+     *
+     * @param timestampNanos the frame's timestamp, or arrival time if the camera doesn't give one
+     */
+    void onFrame(long timestampNanos) {
+        mFrameCount.incrementAndGet();
+
+        long busyNanos = mBusyNanos.getAndSet(0);
+        boolean isStarved = mIsStarved.getAndSet(false);
+
+        long last = mLastTimestamp.getAndSet(timestampNanos);
+
+        if (last == 0) {
+            mFirstTimestamp.compareAndSet(0, timestampNanos);
+            return;
+        }
+
+        long interval = timestampNanos - last;
+        if (interval <= 0 || interval > MAX_INTERVAL_NANOS) return;
+
+        long avg = mIntervalNanos.get();
+
+        if (avg == 0) {
+            mIntervalNanos.set(interval);
+            return;
+        }
+
+        // Round to the nearest whole number of frame intervals; more than one means frames went missing
+        long missed = (interval + avg / 2) / avg - 1;
+
+        if (missed > 0 && (isStarved || busyNanos > avg)) {
+            mFrameCount.addAndGet(missed);
+            mDroppedCount.addAndGet(missed);
+
+            // The camera kept its pace, only the consumer fell behind
+            interval /= missed + 1;
+        }
+
+        mIntervalNanos.set(avg + ((interval - avg) >> SMOOTHING_SHIFT));
+    }
+
+    /**
+     * A frame arrived but was thrown away because the consumer still had every buffer
+     */
+    void onDropped() {
+        mDroppedCount.incrementAndGet();
+    }
+
+    /**
+     * The consumer holds every buffer, so the camera will skip frames until one comes back
+     */
+    void onStarved() {
+        mIsStarved.set(true);
+    }
+
+    void recordConversion(long nanos) {
+        mConversion.record(nanos);
+        mBusyNanos.addAndGet(nanos);
+    }
+
+    void recordListener(long nanos) {
+        mListener.record(nanos);
+        mBusyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Copy the current counts into a snapshot. Counts from frames being recorded during the copy may or may not be
+     * included, but nothing is ever double counted.
+     */
+    FrameStats snapshot(FrameStats into) {
+        into.mFrameCount = mFrameCount.get();
+        into.mDroppedFrameCount = mDroppedCount.get();
+        into.mFrameIntervalNanos = mIntervalNanos.get();
+
+        long first = mFirstTimestamp.get();
+        long last = mLastTimestamp.get();
+        into.mElapsedNanos = first == 0 ? 0 : Math.max(0, last - first);
+
+        mConversion.copyTo(into.mConversion);
+        mListener.copyTo(into.mListener);
+
+        return into;
+    }
+
+    /**
+     * Start counting from scratch, e.g. when a new stream starts
+     */
+    void reset() {
+        mFrameCount.set(0);
+        mDroppedCount.set(0);
+        mFirstTimestamp.set(0);
+        mLastTimestamp.set(0);
+        mIntervalNanos.set(0);
+        mBusyNanos.set(0);
+        mIsStarved.set(false);
+        mConversion.reset();
+        mListener.reset();
+    }
+
+    private static class Histogram {
+        final AtomicLongArray mBuckets = new AtomicLongArray(FrameStats.Histogram.BUCKET_COUNT);
+        final AtomicLong mTotalNanos = new AtomicLong();
+        final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+
+            mBuckets.incrementAndGet(FrameStats.Histogram.bucketFor(nanos));
+            mTotalNanos.addAndGet(nanos);
+
+            long max = mMaxNanos.get();
+
+            while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+        }
+
+        void copyTo(FrameStats.Histogram into) {
+            long count = 0;
+
+            for (int i = 0; i < into.mBuckets.length; i++) {
+                into.mBuckets[i] = mBuckets.get(i);
+                count += into.mBuckets[i];
+            }
+
+            // The count is the sum of the buckets, so percentiles add up even mid-update
+            into.mCount = count;
+            into.mTotalNanos = mTotalNanos.get();
+            into.mMaxNanos = mMaxNanos.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < mBuckets.length(); i++) {
+                mBuckets.set(i, 0);
+            }
+
+            mTotalNanos.set(0);
+            mMaxNanos.set(0);
+        }
+    }
+}
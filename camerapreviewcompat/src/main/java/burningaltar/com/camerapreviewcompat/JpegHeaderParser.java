@@ -0,0 +1,213 @@
+package burningaltar.com.camerapreviewcompat;
+
+/**
+ * Reads a JPEG's dimensions and EXIF orientation straight from its bytes, by walking the marker segments up to the
+ * frame header. Only the headers are touched, so it takes microseconds where a BitmapFactory bounds decode goes
+ * through the native decoder.
+ */
+public final class JpegHeaderParser {
+    public static final int ORIENTATION_UNDEFINED = 0;
+    public static final int ORIENTATION_NORMAL = 1;
+
+    static final int MARKER_SOI = 0xd8;
+    static final int MARKER_EOI = 0xd9;
+    static final int MARKER_SOS = 0xda;
+    static final int MARKER_APP1 = 0xe1;
+
+    static final int TAG_ORIENTATION = 0x0112;
+    static final int TYPE_SHORT = 3;
+
+    // "Exif\0\0", which starts an EXIF APP1 segment's data
+    static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private JpegHeaderParser() {
+    }
+
+    public static final class Header {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mOrientation;
+
+        Header(int width, int height, int orientation) {
+            mWidth = width;
+            mHeight = height;
+            mOrientation = orientation;
+        }
+
+        /**
+         * As stored, before any EXIF rotation
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * The EXIF orientation, 1 to 8, or {@link #ORIENTATION_UNDEFINED} if there's no EXIF orientation tag
+         */
+        public int getOrientation() {
+            return mOrientation;
+        }
+
+        /**
+         * Degrees to rotate the image clockwise to show it upright, going by its EXIF orientation
+         */
+        public int getDegreesToRotate() {
+            return JpegHeaderParser.getDegreesToRotate(mOrientation);
+        }
+
+        /**
+         * Whether the image also needs flipping left to right, after rotating it
+         */
+        public boolean isMirrored() {
+            return JpegHeaderParser.isMirrored(mOrientation);
+        }
+    }
+
+    static int getDegreesToRotate(int orientation) {
+        switch (orientation) {
+            case 3:
+            case 4:
+                return 180;
+            case 6:
+            case 7:
+                return 90;
+            case 5:
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    static boolean isMirrored(int orientation) {
+        return orientation == 2 || orientation == 4 || orientation == 5 || orientation == 7;
+    }
+
+    public static Header parse(byte[] jpeg) {
+        return parse(jpeg, 0, jpeg.length);
+    }
+
+    /**
+     * @return the header, or null if the bytes aren't a JPEG or it has no frame header before its image data
+     */
+    public static Header parse(byte[] jpeg, int offset, int length) {
+        int end = Math.min(jpeg.length, offset + length);
+        if (end - offset < 4 || (jpeg[offset] & 0xff) != 0xff || (jpeg[offset + 1] & 0xff) != MARKER_SOI) return null;
+
+        int orientation = ORIENTATION_UNDEFINED;
+        int pos = offset + 2;
+
+        while (pos + 4 <= end) {
+            if ((jpeg[pos] & 0xff) != 0xff) return null;
+
+            int marker = jpeg[pos + 1] & 0xff;
+
+            // Fill bytes and markers without a length
+            if (marker == 0xff) {
+                pos++;
+                continue;
+            }
+
+            if (marker == MARKER_SOI || marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                pos += 2;
+                continue;
+            }
+
+            if (marker == MARKER_EOI || marker == MARKER_SOS) return null;
+
+            int segmentLength = readUnsignedShort(jpeg, pos + 2, false);
+            int data = pos + 4;
+            int dataEnd = pos + 2 + segmentLength;
+            if (segmentLength < 2 || dataEnd > end) return null;
+
+            if (marker == MARKER_APP1 && orientation == ORIENTATION_UNDEFINED) {
+                int valueOffset = findOrientation(jpeg, data, dataEnd);
+                if (valueOffset >= 0) {
+                    boolean isLittleEndian = isLittleEndian(jpeg, data + EXIF_HEADER.length);
+                    orientation = readUnsignedShort(jpeg, valueOffset, isLittleEndian);
+                }
+            } else if (isStartOfFrame(marker)) {
+                // Precision, then height and width
+                if (dataEnd - data < 5) return null;
+
+                int height = readUnsignedShort(jpeg, data + 1, false);
+                int width = readUnsignedShort(jpeg, data + 3, false);
+
+                // A zero height would only be given at the end of the scan, which isn't worth reading to
+                return width > 0 && height > 0 ? new Header(width, height, orientation) : null;
+            }
+
+            pos = dataEnd;
+        }
+
+        return null;
+    }
+
+    /**
+     * SOF0 to SOF15, leaving out DHT, JPG and DAC which share the range
+     */
+    static boolean isStartOfFrame(int marker) {
+        return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+    }
+
+    static boolean isExif(byte[] jpeg, int data, int dataEnd) {
+        if (dataEnd - data < EXIF_HEADER.length + 8) return false;
+
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (jpeg[data + i] != EXIF_HEADER[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * TIFF data starts with II for little endian, MM for big endian
+     */
+    static boolean isLittleEndian(byte[] jpeg, int tiff) {
+        return jpeg[tiff] == 'I';
+    }
+
+    /**
+     * Find the orientation tag in IFD0 of an APP1 segment's data
+     *
+     * @return the offset of its 2-byte value, or -1 if the segment isn't EXIF or has no orientation tag
+     */
+    static int findOrientation(byte[] jpeg, int data, int dataEnd) {
+        if (!isExif(jpeg, data, dataEnd)) return -1;
+
+        int tiff = data + EXIF_HEADER.length;
+        boolean isLittleEndian = isLittleEndian(jpeg, tiff);
+        int ifd0 = tiff + readInt(jpeg, tiff + 4, isLittleEndian);
+        if (ifd0 < tiff || ifd0 + 2 > dataEnd) return -1;
+
+        int entryCount = readUnsignedShort(jpeg, ifd0, isLittleEndian);
+
+        // 12-byte entries: tag, type, count, then the value itself if it fits in 4 bytes
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifd0 + 2 + i * 12;
+            if (entry + 12 > dataEnd) return -1;
+
+            if (readUnsignedShort(jpeg, entry, isLittleEndian) == TAG_ORIENTATION) {
+                return readUnsignedShort(jpeg, entry + 2, isLittleEndian) == TYPE_SHORT ? entry + 8 : -1;
+            }
+        }
+
+        return -1;
+    }
+
+    static int readUnsignedShort(byte[] bytes, int offset, boolean isLittleEndian) {
+        int b0 = bytes[offset] & 0xff;
+        int b1 = bytes[offset + 1] & 0xff;
+        return isLittleEndian ? b1 << 8 | b0 : b0 << 8 | b1;
+    }
+
+    static int readInt(byte[] bytes, int offset, boolean isLittleEndian) {
+        int first = readUnsignedShort(bytes, offset, isLittleEndian);
+        int second = readUnsignedShort(bytes, offset + 2, isLittleEndian);
+        return isLittleEndian ? second << 16 | first : first << 16 | second;
+    }
+}
@@ -0,0 +1,237 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The part of a camera-less {@link FrameSource} that behaves like a camera: a fixed set of preallocated frames, a
+ * thread that fills one per frame interval, and frames dropped rather than queued while the consumer holds every
+ * buffer. Subclasses only fill in pixels.
+ */
+public abstract class PacedFrameSource implements FrameSource {
+    // Unpaced sources produce frames as fast as they're released, for measuring throughput
+    public static final int UNPACED = 0;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final long mIntervalNanos;
+    private final long mMaxFrameCount;
+
+    private final ArrayDeque<CameraFrame> mFree;
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+
+    private volatile int mRotation = 0;
+    private volatile boolean mIsRunning = false;
+    private Thread mThread;
+
+    private final CameraFrame.Releaser mReleaser = new CameraFrame.Releaser() {
+        @Override
+        public void release(CameraFrame frame) {
+            synchronized (mFree) {
+                mFree.addLast(frame);
+                mFree.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * @param fps           the frame rate to pace at, or {@link #UNPACED}
+     * @param bufferCount   how many frames can be checked out at once
+     * @param maxFrameCount stop after this many frames, or 0 to run until stopped
+     */
+    PacedFrameSource(int width, int height, int format, int fps, int bufferCount, long maxFrameCount) {
+        if (width <= 0 || height <= 0 || bufferCount <= 0) {
+            throw new IllegalArgumentException("Invalid source " + width + "x" + height + " with " + bufferCount + " buffers");
+        }
+
+        if (format != CameraFrame.FORMAT_NV21 && format != CameraFrame.FORMAT_YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported format " + format);
+        }
+
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mIntervalNanos = fps > 0 ? 1000000000L / fps : 0;
+        mMaxFrameCount = maxFrameCount;
+
+        mFree = new ArrayDeque<>(bufferCount);
+        int bufferSize = SizeUtils.getPreviewBufferSize(width, height);
+
+        for (int i = 0; i < bufferCount; i++) {
+            byte[] buffer = new byte[bufferSize];
+            mFree.add(format == CameraFrame.FORMAT_NV21 ? CameraFrame.wrapNv21(buffer, width, height, mReleaser) :
+                    CameraFrame.wrapI420(buffer, width, height, mReleaser));
+        }
+    }
+
+    /**
+     * Fill the buffer with the next frame, on the source's thread
+     *
+     * @return false if there are no more frames
+     */
+    abstract boolean fill(byte[] buffer, long frameIndex);
+
+    /**
+     * Called on the source's thread after the last frame, e.g. to close files
+     */
+    void onStopped() {
+    }
+
+    @Override
+    public synchronized void start(final Callback callback) {
+        if (mIsRunning) return;
+
+        mIsRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    produce(callback);
+                } finally {
+                    mIsRunning = false;
+                    onStopped();
+                }
+            }
+        }, getClass().getSimpleName());
+        mThread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+
+        synchronized (this) {
+            mIsRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+
+        if (thread == null) return;
+
+        thread.interrupt();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void produce(Callback callback) {
+        long nextNanos = System.nanoTime();
+
+        for (long i = 0; mIsRunning && (mMaxFrameCount <= 0 || i < mMaxFrameCount); i++) {
+            CameraFrame frame;
+
+            if (mIntervalNanos > 0) {
+                if (!sleepUntil(nextNanos)) return;
+                nextNanos += mIntervalNanos;
+
+                // Like a camera, a frame that comes due with no free buffer is lost
+                synchronized (mFree) {
+                    frame = mFree.pollFirst();
+                }
+
+                if (frame == null) {
+                    mFrameCount.incrementAndGet();
+                    mDroppedFrameCount.incrementAndGet();
+                    continue;
+                }
+            } else {
+                frame = takeFree();
+                if (frame == null) return;
+            }
+
+            if (!fill(frame.getData(), i)) {
+                mReleaser.release(frame);
+                return;
+            }
+
+            mFrameCount.incrementAndGet();
+            frame.checkOut(mRotation, System.nanoTime());
+            callback.onFrame(frame);
+        }
+    }
+
+    /**
+     * @return false if interrupted by stop()
+     */
+    private boolean sleepUntil(long deadlineNanos) {
+        long remaining;
+
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait for a released frame
+     *
+     * @return null if interrupted by stop()
+     */
+    private CameraFrame takeFree() {
+        synchronized (mFree) {
+            while (mFree.isEmpty()) {
+                try {
+                    mFree.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+
+            return mFree.pollFirst();
+        }
+    }
+
+    /**
+     * Report frames as needing this many degrees of clockwise rotation, like a sideways camera sensor, e.g. to
+     * exercise upright conversion
+     */
+    public void setRotation(int degrees) {
+        mRotation = degrees;
+    }
+
+    /**
+     * False once stopped or out of frames
+     */
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Frames that came due, including dropped ones
+     */
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /**
+     * Frames that came due while the consumer held every buffer
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getFormat() {
+        return mFormat;
+    }
+}
@@ -0,0 +1,85 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collects the photos of one burst until every capture has either arrived or failed. Only touched from the camera
+ * thread.
+ */
+class PhotoBurst {
+    final int mCount;
+    final SimpleCameraPreview.PhotoBurstListener mListener;
+
+    static final int NO_SEQUENCE = -1;
+
+    // Whether the burst's requests have been submitted, as opposed to waiting for a session
+    boolean mIsCapturing = false;
+
+    // What camera2's captureBurst() returned, to tell this burst's abort from an earlier one's
+    int mSequenceId = NO_SEQUENCE;
+
+    private final List<CapturedPhoto> mPhotos;
+    private final List<Long> mStartedTimestamps = new ArrayList<>();
+    private int mFailures = 0;
+
+    PhotoBurst(int count, SimpleCameraPreview.PhotoBurstListener listener) {
+        mCount = count;
+        mListener = listener;
+        mPhotos = new ArrayList<>(count);
+    }
+
+    /**
+     * A capture in this burst started exposing at this sensor timestamp
+     */
+    void onStarted(long timestampNanos) {
+        mStartedTimestamps.add(timestampNanos);
+    }
+
+    /**
+     * Whether an image with this timestamp came from this burst rather than some other capture
+     */
+    boolean isFromBurst(long timestampNanos) {
+        return mStartedTimestamps.contains(timestampNanos);
+    }
+
+    /**
+     * @return true if that was the last capture
+     */
+    boolean add(CapturedPhoto photo) {
+        mPhotos.add(photo);
+        return isComplete();
+    }
+
+    /**
+     * @return true if that was the last capture
+     */
+    boolean onFailed() {
+        mFailures++;
+        return isComplete();
+    }
+
+    boolean isComplete() {
+        return mPhotos.size() + mFailures >= mCount;
+    }
+
+    /**
+     * The photos so far, oldest first
+     */
+    List<CapturedPhoto> getPhotos() {
+        List<CapturedPhoto> photos = new ArrayList<>(mPhotos);
+
+        // Images usually arrive in order, but nothing promises it
+        Collections.sort(photos, new Comparator<CapturedPhoto>() {
+            @Override
+            public int compare(CapturedPhoto a, CapturedPhoto b) {
+                return a.getTimestampNanos() < b.getTimestampNanos() ? -1 :
+                        (a.getTimestampNanos() == b.getTimestampNanos() ? 0 : 1);
+            }
+        });
+
+        return photos;
+    }
+}
@@ -0,0 +1,196 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Picks a preview size for a view. Unlike just taking the biggest size that fits, it prefers sizes with the view's
+ * aspect ratio, so the preview fills the view instead of being letterboxed.
+ * <p/>
+ * Candidates are scored in order of:
+ * <ol>
+ * <li>Hard limits: at most maxPixels, and at least minFps where the camera reports frame durations per size. If no
+ * size meets them, they're ignored rather than failing.</li>
+ * <li>Aspect ratio: closest to the view's, treating ratios within {@link #ASPECT_TOLERANCE} of the best as equal. Only
+ * sizes at least half as big as the biggest that fits compete, so a tiny size with the perfect ratio doesn't win over
+ * a much sharper one.</li>
+ * <li>Size: the largest that fits in the view, or if none fit, the smallest that doesn't.</li>
+ * </ol>
+ * Choices are remembered per camera, view size and orientation, and reused for as long as the camera offers the same
+ * sizes.
+ */
+public class PreviewSizeSelector {
+    public static final int NO_LIMIT = 0;
+
+    // Ratios within this of each other count as the same aspect, e.g. 16:9 and 1920x1088, as a fraction of the ratio
+    static final double ASPECT_TOLERANCE = 0.02;
+
+    private final int mMaxPixels;
+    private final int mMinFps;
+
+    private final ConcurrentMap<String, Choice> mChoices = new ConcurrentHashMap<>();
+
+    private static class Choice {
+        final FrameSize[] candidates;
+        final FrameSize size;
+
+        Choice(FrameSize[] candidates, FrameSize size) {
+            this.candidates = candidates;
+            this.size = size;
+        }
+    }
+
+    public PreviewSizeSelector() {
+        this(NO_LIMIT, NO_LIMIT);
+    }
+
+    /**
+     * @param maxPixels the largest width * height to pick, e.g. to keep analysis fast; {@link #NO_LIMIT} for any
+     * @param minFps    the lowest frame rate to accept; {@link #NO_LIMIT} for any
+     */
+    public PreviewSizeSelector(int maxPixels, int minFps) {
+        mMaxPixels = maxPixels;
+        mMinFps = minFps;
+    }
+
+    public int getMaxPixels() {
+        return mMaxPixels;
+    }
+
+    public int getMinFps() {
+        return mMinFps;
+    }
+
+    /**
+     * The best preview size for a view, remembered for the next call with the same camera, view size and orientation
+     *
+     * @param minFrameDurations each size's minimum frame duration in nanos, or null if the camera doesn't say
+     * @param isSideways        whether width and height should be swapped to compare with the camera's sizes
+     * @return null if there are no sizes
+     */
+    public FrameSize select(String cameraId, FrameSize[] sizes, Map<FrameSize, Long> minFrameDurations,
+                            int viewWidth, int viewHeight, boolean isSideways) {
+        if (sizes == null || sizes.length == 0) return null;
+
+        String key = getKey(cameraId, viewWidth, viewHeight, isSideways);
+        Choice choice = mChoices.get(key);
+
+        // Sizes can change, e.g. after one fails; the size cache hands out a new array when they do
+        if (choice != null && (choice.candidates == sizes || Arrays.equals(choice.candidates, sizes))) {
+            return choice.size;
+        }
+
+        FrameSize size = choose(sizes, minFrameDurations, isSideways ? viewHeight : viewWidth,
+                isSideways ? viewWidth : viewHeight, mMaxPixels, mMinFps);
+
+        mChoices.put(key, new Choice(sizes, size));
+        return size;
+    }
+
+    /**
+     * What a choice depends on besides the sizes: camera, view size, orientation and this selector's limits
+     */
+    String getKey(String cameraId, int viewWidth, int viewHeight, boolean isSideways) {
+        return cameraId + "/" + viewWidth + "x" + viewHeight + (isSideways ? "/sideways" : "") + "/" + mMaxPixels
+                + "px@" + mMinFps + "fps";
+    }
+
+    /**
+     * Forget remembered choices, e.g. after the camera's sizes were invalidated
+     */
+    public void clear() {
+        mChoices.clear();
+    }
+
+    /**
+     * Score every candidate against a view already in the camera's orientation. Doesn't allocate.
+     */
+    static FrameSize choose(FrameSize[] sizes, Map<FrameSize, Long> minFrameDurations, int width, int height,
+                            int maxPixels, int minFps) {
+        if (sizes == null || sizes.length == 0) return null;
+
+        boolean isAnyAllowed = false;
+
+        for (FrameSize size : sizes) {
+            if (isAllowed(size, minFrameDurations, maxPixels, minFps)) {
+                isAnyAllowed = true;
+                break;
+            }
+        }
+
+        // Limits are a preference; any preview beats no preview
+        if (!isAnyAllowed) {
+            maxPixels = NO_LIMIT;
+            minFps = NO_LIMIT;
+        }
+
+        long maxFitArea = 0;
+
+        for (FrameSize size : sizes) {
+            if (isAllowed(size, minFrameDurations, maxPixels, minFps) && isFit(size, width, height)) {
+                maxFitArea = Math.max(maxFitArea, size.getArea());
+            }
+        }
+
+        long minArea = maxFitArea / 2;
+        double viewAspect = width > 0 && height > 0 ? (double) width / height : 0;
+
+        // The closest any contender gets to the view's aspect ratio
+        double bestAspectDiff = Double.MAX_VALUE;
+
+        for (FrameSize size : sizes) {
+            if (size.getArea() >= minArea && isAllowed(size, minFrameDurations, maxPixels, minFps)) {
+                bestAspectDiff = Math.min(bestAspectDiff, aspectDiff(size, viewAspect));
+            }
+        }
+
+        FrameSize best = null;
+        boolean isBestFit = false;
+
+        for (FrameSize size : sizes) {
+            if (size.getArea() < minArea || !isAllowed(size, minFrameDurations, maxPixels, minFps)) continue;
+            if (aspectDiff(size, viewAspect) > bestAspectDiff + ASPECT_TOLERANCE) continue;
+
+            boolean isFit = isFit(size, width, height);
+
+            if (best == null) {
+                best = size;
+                isBestFit = isFit;
+            } else if (isFit && !isBestFit) {
+                best = size;
+                isBestFit = true;
+            } else if (isFit == isBestFit) {
+                // Biggest that fits, or smallest that doesn't
+                if (isFit ? size.getArea() > best.getArea() : size.getArea() < best.getArea()) best = size;
+            }
+        }
+
+        return best;
+    }
+
+    private static boolean isFit(FrameSize size, int width, int height) {
+        return size.getWidth() <= width && size.getHeight() <= height;
+    }
+
+    static boolean isAllowed(FrameSize size, Map<FrameSize, Long> minFrameDurations, int maxPixels, int minFps) {
+        if (maxPixels > 0 && size.getArea() > maxPixels) return false;
+        if (minFps <= 0 || minFrameDurations == null) return true;
+
+        Long duration = minFrameDurations.get(size);
+
+        // A size the camera gave no duration for is assumed to be fast enough
+        return duration == null || duration <= 0 || Math.round(1e9 / duration) >= minFps;
+    }
+
+    /**
+     * Relative difference between the size's aspect ratio and the view's, or 0 if the view has no size yet
+     */
+    static double aspectDiff(FrameSize size, double viewAspect) {
+        if (viewAspect <= 0 || size.getHeight() <= 0) return 0;
+
+        double aspect = (double) size.getWidth() / size.getHeight();
+        return Math.abs(aspect - viewAspect) / viewAspect;
+    }
+}
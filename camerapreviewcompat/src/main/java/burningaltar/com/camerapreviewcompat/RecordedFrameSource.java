@@ -0,0 +1,135 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.io.IOException;
+
+/**
+ * Replays a {@link FrameRecorder} file as a {@link FrameSource}, keeping the recorded timestamps and rotations.
+ * Frames wrap the reader's mapping, so none are copied or dropped; the timing between them can be kept, sped up, or
+ * skipped altogether to run analysis as fast as it can go.
+ */
+public class RecordedFrameSource implements FrameSource {
+    // Don't wait between frames
+    public static final float UNPACED = 0;
+
+    private final FrameFileReader mReader;
+    private final float mSpeed;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+
+    private volatile boolean mIsRunning = false;
+    private Thread mThread;
+    private volatile IOException mError = null;
+
+    /**
+     * @param speed how many times faster than recorded to replay, e.g. 1 for real time, or {@link #UNPACED}
+     */
+    public RecordedFrameSource(FrameFileReader reader, float speed) throws IOException {
+        mReader = reader;
+        mSpeed = speed;
+
+        CameraFrame first = reader.getFrameCount() > 0 ? reader.getFrame(0) : null;
+        mWidth = first == null ? 0 : first.getWidth();
+        mHeight = first == null ? 0 : first.getHeight();
+        mFormat = first == null ? 0 : first.getFormat();
+    }
+
+    @Override
+    public synchronized void start(final Callback callback) {
+        if (mIsRunning) return;
+
+        mIsRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay(callback);
+                } catch (IOException e) {
+                    mError = e;
+                } finally {
+                    mIsRunning = false;
+                }
+            }
+        }, getClass().getSimpleName());
+        mThread.start();
+    }
+
+    private void replay(Callback callback) throws IOException {
+        int count = mReader.getFrameCount();
+        if (count == 0) return;
+
+        long startNanos = System.nanoTime();
+        long firstTimestamp = mReader.getTimestampNanos(0);
+
+        for (int i = 0; i < count && mIsRunning; i++) {
+            if (mSpeed > 0) {
+                long due = startNanos + (long) ((mReader.getTimestampNanos(i) - firstTimestamp) / mSpeed);
+                long remaining;
+
+                while ((remaining = due - System.nanoTime()) > 0) {
+                    try {
+                        Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            callback.onFrame(mReader.getFrame(i));
+        }
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+
+        synchronized (this) {
+            mIsRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+
+        if (thread == null) return;
+
+        thread.interrupt();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * False once stopped or out of frames
+     */
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Why replay stopped early, or null if it didn't
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Size of the first frame; recordings made across a camera switch can change size partway through
+     */
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getFormat() {
+        return mFormat;
+    }
+}
@@ -0,0 +1,83 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Replays raw frames from a file: packed NV21 or I420 frames back to back, with no header, e.g. from
+ * {@code ffmpeg -i in.mp4 -pix_fmt nv21 -f rawvideo out.nv21}. Reads straight into the preallocated frame buffers,
+ * so replaying doesn't allocate. Timestamps are when each frame is handed out, not when it was recorded.
+ */
+public class ReplayFrameSource extends PacedFrameSource {
+    private final File mFile;
+    private final boolean mIsLooping;
+    private final int mFrameSize;
+
+    private RandomAccessFile mInput;
+    private volatile IOException mError = null;
+
+    /**
+     * @param format      {@link CameraFrame#FORMAT_NV21} or {@link CameraFrame#FORMAT_YUV_420_888} for packed I420
+     * @param fps         the frame rate to pace at, or {@link #UNPACED} to replay as fast as frames are released
+     * @param bufferCount how many frames can be checked out at once
+     * @param isLooping   whether to start over at the end of the file instead of stopping
+     */
+    public ReplayFrameSource(File file, int width, int height, int format, int fps, int bufferCount,
+                             boolean isLooping) {
+        super(width, height, format, fps, bufferCount, 0);
+
+        mFile = file;
+        mIsLooping = isLooping;
+        mFrameSize = SizeUtils.getPreviewBufferSize(width, height);
+    }
+
+    /**
+     * Number of whole frames in the file
+     */
+    public long getFileFrameCount() {
+        return mFile.length() / mFrameSize;
+    }
+
+    /**
+     * Why replay stopped early, or null if it didn't
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    @Override
+    boolean fill(byte[] buffer, long frameIndex) {
+        try {
+            if (mInput == null) mInput = new RandomAccessFile(mFile, "r");
+
+            if (mInput.length() - mInput.getFilePointer() < mFrameSize) {
+                // Ignore a partial frame at the end
+                if (!mIsLooping || mInput.length() < mFrameSize) return false;
+                mInput.seek(0);
+            }
+
+            mInput.readFully(buffer, 0, mFrameSize);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            mError = e;
+            return false;
+        }
+    }
+
+    @Override
+    void onStopped() {
+        if (mInput == null) return;
+
+        try {
+            mInput.close();
+        } catch (IOException e) {
+            // Nothing left to read anyway
+        }
+
+        mInput = null;
+    }
+}
@@ -0,0 +1,120 @@
+package burningaltar.com.camerapreviewcompat;
+
+/**
+ * A region of interest, kept as fractions of the upright preview so it holds across preview sizes, and mapped to
+ * each frame's own coordinates when it's needed. Frames come in the sensor's orientation, so mapping undoes the
+ * mirroring and rotation that make the preview upright.
+ * <p/>
+ * Frame rectangles come out as {left, top, right, bottom}, right and bottom exclusive, clamped to the frame and
+ * rounded out to even edges so they line up with 4:2:0 chroma.
+ */
+public final class RoiMapper {
+    private final float mLeft;
+    private final float mTop;
+    private final float mRight;
+    private final float mBottom;
+
+    /**
+     * @param left   0 to 1, as a fraction of the upright preview's width
+     * @param top    0 to 1, as a fraction of the upright preview's height
+     * @param right  0 to 1, greater than left
+     * @param bottom 0 to 1, greater than top
+     */
+    public RoiMapper(float left, float top, float right, float bottom) {
+        mLeft = clamp(Math.min(left, right));
+        mTop = clamp(Math.min(top, bottom));
+        mRight = clamp(Math.max(left, right));
+        mBottom = clamp(Math.max(top, bottom));
+    }
+
+    /**
+     * A region given in view coordinates, where the preview is drawn at (previewLeft, previewTop) with the given size.
+     * The preview can be bigger than the view, hanging off its edges, or smaller with margins around it.
+     */
+    public static RoiMapper fromView(int left, int top, int right, int bottom, int previewLeft, int previewTop,
+                                     int previewWidth, int previewHeight) {
+        float width = Math.max(1, previewWidth);
+        float height = Math.max(1, previewHeight);
+
+        return new RoiMapper((left - previewLeft) / width, (top - previewTop) / height, (right - previewLeft) / width,
+                (bottom - previewTop) / height);
+    }
+
+    private static float clamp(float fraction) {
+        return Math.max(0, Math.min(1, fraction));
+    }
+
+    public float getLeft() {
+        return mLeft;
+    }
+
+    public float getTop() {
+        return mTop;
+    }
+
+    public float getRight() {
+        return mRight;
+    }
+
+    public float getBottom() {
+        return mBottom;
+    }
+
+    /**
+     * The region in a frame of the given size
+     *
+     * @param rotation   degrees to rotate the frame clockwise to make it upright, as in {@link CameraFrame#getRotation()}
+     * @param isMirrored whether the upright preview is flipped left to right, as it is for the front camera
+     */
+    public int[] mapToFrame(int frameWidth, int frameHeight, int rotation, boolean isMirrored) {
+        int[] rect = new int[4];
+        mapToFrame(frameWidth, frameHeight, rotation, isMirrored, rect);
+        return rect;
+    }
+
+    /**
+     * Like {@link #mapToFrame(int, int, int, boolean)}, writing into rect so it can run per frame without allocating
+     */
+    public void mapToFrame(int frameWidth, int frameHeight, int rotation, boolean isMirrored, int[] rect) {
+        float left = isMirrored ? 1 - mRight : mLeft;
+        float right = isMirrored ? 1 - mLeft : mRight;
+
+        // Fractions of the frame, turning the upright region back the way the frame lies
+        float frameLeft;
+        float frameTop;
+        float frameRight;
+        float frameBottom;
+
+        switch (rotation) {
+            case 90:
+                frameLeft = mTop;
+                frameRight = mBottom;
+                frameTop = 1 - right;
+                frameBottom = 1 - left;
+                break;
+            case 180:
+                frameLeft = 1 - right;
+                frameRight = 1 - left;
+                frameTop = 1 - mBottom;
+                frameBottom = 1 - mTop;
+                break;
+            case 270:
+                frameLeft = 1 - mBottom;
+                frameRight = 1 - mTop;
+                frameTop = left;
+                frameBottom = right;
+                break;
+            default:
+                frameLeft = left;
+                frameRight = right;
+                frameTop = mTop;
+                frameBottom = mBottom;
+                break;
+        }
+
+        rect[0] = Math.max(0, (int) (frameLeft * frameWidth) & ~1);
+        rect[1] = Math.max(0, (int) (frameTop * frameHeight) & ~1);
+        rect[2] = Math.min(frameWidth, ((int) Math.ceil(frameRight * frameWidth) + 1) & ~1);
+        rect[3] = Math.min(frameHeight, ((int) Math.ceil(frameBottom * frameHeight) + 1) & ~1);
+    }
+}
@@ -0,0 +1,57 @@
+package burningaltar.com.camerapreviewcompat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Keeps the supported size cache in SharedPreferences. Everything is dropped when the OS build changes, since an
+ * update can change what the camera supports.
+ */
+class SharedPreferencesSizeStore implements SupportedSizeCache.Store {
+    static final String PREFS_NAME = "burningaltar.camerapreviewcompat.sizes";
+    private static final String KEY_BUILD = "build";
+
+    private final SharedPreferences mPrefs;
+
+    SharedPreferencesSizeStore(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        String build = Build.FINGERPRINT;
+
+        if (build != null && !build.equals(mPrefs.getString(KEY_BUILD, null))) {
+            mPrefs.edit().clear().putString(KEY_BUILD, build).apply();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return mPrefs.getString(key, null);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        mPrefs.edit().putString(key, value).apply();
+    }
+
+    @Override
+    public void remove(String key) {
+        mPrefs.edit().remove(key).apply();
+    }
+
+    @Override
+    public void removeAll(String prefix) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(prefix)) editor.remove(key);
+        }
+
+        editor.apply();
+    }
+
+    @Override
+    public void clear() {
+        mPrefs.edit().clear().putString(KEY_BUILD, Build.FINGERPRINT).apply();
+    }
+}
@@ -5,6 +5,8 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.TypedArray;
+import android.graphics.Rect;
+import android.media.Image;
 import android.os.Build;
 import androidx.core.content.ContextCompat;
 import android.util.AttributeSet;
@@ -14,6 +16,11 @@ import android.view.ViewGroup;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /**
  * TODO: document your custom view class.
  */
@@ -39,10 +46,61 @@ public class SimpleCameraPreview extends RelativeLayout {
         public void onPreview(byte[] previewData, int degreesToRotate);
     }
 
+    public interface PreviewPixelsListener {
+        // Packed ARGB pixels, row by row. The array is the one passed to getNextPreviewPixels() if it was big enough
+        public void onPreviewPixels(int[] argb, int width, int height, int degreesToRotate);
+    }
+
     public interface PhotoBitmapListener {
         public void onPhoto(byte[] photoData, int degreesToRotate);
     }
 
+    public interface CapturedPhotoListener {
+        // The JPEG with its size, so CameraUtils.decodeSampledBitmap() can skip reading its header
+        public void onPhoto(CapturedPhoto photo);
+    }
+
+    public interface PhotoBurstListener {
+        // In capture order. Fewer photos than asked for if some captures failed, none if the burst couldn't start
+        public void onPhotos(List<CapturedPhoto> photos);
+    }
+
+    public interface PreviewStreamListener {
+        // Called for every preview frame with a pooled NV21 buffer. Pass it to releasePreviewBuffer() when done,
+        // from any thread; frames are dropped while every buffer is checked out
+        public void onPreviewFrame(byte[] nv21, int width, int height, int degreesToRotate);
+    }
+
+    @TargetApi(21)
+    public interface ImageStreamListener {
+        // Called on the camera thread with a YUV_420_888 image, which is closed as soon as this returns
+        public void onImage(Image image, int degreesToRotate);
+    }
+
+    public interface CameraMetricsListener {
+        String PHASE_VIEW_INIT = "SimpleCameraPreview.viewInit";
+        String PHASE_SURFACE_AVAILABLE = "SimpleCameraPreview.surfaceAvailable";
+        String PHASE_CAMERA_OPEN = "SimpleCameraPreview.cameraOpen";
+        String PHASE_SESSION_CONFIGURED = "SimpleCameraPreview.sessionConfigured";
+        String PHASE_FIRST_FRAME = "SimpleCameraPreview.firstFrame";
+        String PHASE_CAMERA_SWITCH = "SimpleCameraPreview.cameraSwitch";
+
+        // Called on whichever thread finished the phase, so keep it quick
+        public void onPhase(String phase, long durationNanos);
+    }
+
+    public interface PreviewSizeListener {
+        // Called once a session is running at a preview size, with how many sizes were rejected by the device first
+        // and how long it took from choosing the first size
+        public void onPreviewSizeSelected(int width, int height, int retries, long elapsedNanos);
+    }
+
+    public interface FrameListener extends FrameSource.Callback {
+        // Called on the camera thread with a frame wrapping the camera's own buffers; call frame.release() when done,
+        // from any thread
+        public void onFrame(CameraFrame frame);
+    }
+
     private CameraApiLevel mCameraApiLevel = CameraApiLevel.one;
     private boolean mIsFrontFacing = false;
 
@@ -50,6 +108,30 @@ public class SimpleCameraPreview extends RelativeLayout {
 
     private boolean mSupportsCamera2 = false;
 
+    private PreviewStreamListener mPreviewStreamListener = null;
+    private int mStreamBufferCount = CameraPreviewTexture.DEFAULT_STREAM_BUFFER_COUNT;
+
+    private ImageStreamListener mImageStreamListener = null;
+    private int mStreamMaxImages = Camera2PreviewTexture.DEFAULT_STREAM_MAX_IMAGES;
+    private int mStreamFrameInterval = 1;
+
+    private FrameListener mFrameListener = null;
+
+    private StripedExecutor mConversionExecutor = null;
+    private Executor mCallbackExecutor = null;
+    private PreviewSizeListener mPreviewSizeListener = null;
+    private boolean mIsUprightFrames = false;
+    private boolean mIsLumaOnlyFrames = false;
+    private Rect mRoi = null;
+    private boolean mIsExifOrientation = false;
+    private int mAnalysisWidth = 0;
+    private int mAnalysisHeight = 0;
+    private int mMaxFrames = CameraPreviewTexture.DEFAULT_STREAM_BUFFER_COUNT;
+    private final FrameStatsRecorder mFrameStats = new FrameStatsRecorder();
+    private PreviewSizeSelector mSizeSelector = new PreviewSizeSelector();
+    private int mZslFrameCount = 0;
+    private FrameRecorder mRecorder = null;
+
     public SimpleCameraPreview(Context context) {
         super(context);
         init(null, 0);
@@ -66,37 +148,72 @@ public class SimpleCameraPreview extends RelativeLayout {
     }
 
     private void init(AttributeSet attrs, int defStyle) {
-        log("init");
+        long start = System.nanoTime();
+        CameraMetrics.beginSection(CameraMetricsListener.PHASE_VIEW_INIT);
 
-        setGravity(Gravity.CENTER);
+        try {
+            log("init");
 
-        mSupportsCamera2 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            setGravity(Gravity.CENTER);
 
-        // Load attributes
-        final TypedArray a = getContext().obtainStyledAttributes(
-                attrs, R.styleable.SimpleCameraPreview, defStyle, 0);
+            mSupportsCamera2 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
 
-        int apiVersion = a.getInt(R.styleable.SimpleCameraPreview_cameraApiLevel, -1);
-        mIsFrontFacing = a.getBoolean(R.styleable.SimpleCameraPreview_frontFacing, mIsFrontFacing);
+            // Load attributes
+            final TypedArray a = getContext().obtainStyledAttributes(
+                    attrs, R.styleable.SimpleCameraPreview, defStyle, 0);
 
-        log("Attrs api version " + apiVersion);
+            int apiVersion = a.getInt(R.styleable.SimpleCameraPreview_cameraApiLevel, -1);
+            mIsFrontFacing = a.getBoolean(R.styleable.SimpleCameraPreview_frontFacing, mIsFrontFacing);
 
-        if (apiVersion >= 0) {
-            mCameraApiLevel = CameraApiLevel.values()[apiVersion];
-        } else {
-            mCameraApiLevel = mSupportsCamera2 ? CameraApiLevel.two : CameraApiLevel.one;
-        }
+            log("Attrs api version " + apiVersion);
 
-        log("Using camera API " + mCameraApiLevel + " front facing? " + mIsFrontFacing);
+            if (apiVersion >= 0) {
+                mCameraApiLevel = CameraApiLevel.values()[apiVersion];
+            } else {
+                mCameraApiLevel = mSupportsCamera2 ? CameraApiLevel.two : CameraApiLevel.one;
+            }
+
+            log("Using camera API " + mCameraApiLevel + " front facing? " + mIsFrontFacing);
 
-        if (isInEditMode()) {
-            TextView tv = new TextView(getContext());
-            tv.setText("CameraPreviewViewCompat\nAPI: " + mCameraApiLevel + "\nFront facing: " + mIsFrontFacing);
-            addView(tv);
-            return;
+            if (isInEditMode()) {
+                TextView tv = new TextView(getContext());
+                tv.setText("CameraPreviewViewCompat\nAPI: " + mCameraApiLevel + "\nFront facing: " + mIsFrontFacing);
+                addView(tv);
+                return;
+            }
+
+            showPreview();
+        } finally {
+            CameraMetrics.endSection();
+            CameraMetrics.report(CameraMetricsListener.PHASE_VIEW_INIT, start);
         }
+    }
 
-        showPreview();
+    /**
+     * Load camera capabilities (facing, sensor orientation, output sizes, focus modes) on a background thread, e.g.
+     * from Application.onCreate(), so creating the preview later doesn't have to look them up. Only affects the
+     * camera2 API; safe to call more than once.
+     */
+    public static void prewarm(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            CameraCapabilities.prewarm(context);
+        }
+    }
+
+    /**
+     * Time startup phases (view init, surface available, camera open, session configured, first frame) and camera
+     * switches for every preview in the app. The same phases also show up as systrace sections.
+     */
+    public static void setMetricsListener(CameraMetricsListener listener) {
+        CameraMetrics.setListener(listener);
+    }
+
+    /**
+     * Remember supported preview sizes across launches, including which ones failed on this device, so later
+     * previews skip sizes that are known not to work. Forgotten when the OS is updated.
+     */
+    public static void setSizeCachePersistent(Context context, boolean isPersistent) {
+        SupportedSizeCache.getShared().setStore(isPersistent ? new SharedPreferencesSizeStore(context) : null);
     }
 
     public void showPreview() {
@@ -120,9 +237,40 @@ public class SimpleCameraPreview extends RelativeLayout {
 
         mPreviewTexture.setLayoutParams(new RelativeLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
 
+        mPreviewTexture.setConversionExecutor(mConversionExecutor);
+        mPreviewTexture.setCallbackExecutor(mCallbackExecutor);
+        mPreviewTexture.setPreviewSizeListener(mPreviewSizeListener);
+        mPreviewTexture.setUprightFrames(mIsUprightFrames);
+        mPreviewTexture.setLumaOnlyFrames(mIsLumaOnlyFrames);
+        mPreviewTexture.setRoi(mRoi);
+        mPreviewTexture.setExifOrientation(mIsExifOrientation);
+        mPreviewTexture.setAnalysisSize(mAnalysisWidth, mAnalysisHeight);
+        mPreviewTexture.setFrameStatsRecorder(mFrameStats);
+        mPreviewTexture.setPreviewSizeSelector(mSizeSelector);
+
         removeAllViews();
         addView(mPreviewTexture);
 
+        if (mZslFrameCount > 0) {
+            mPreviewTexture.setZeroShutterLag(mZslFrameCount);
+        }
+
+        if (mRecorder != null) {
+            mPreviewTexture.setFrameRecorder(mRecorder);
+        }
+
+        if (mPreviewStreamListener != null) {
+            mPreviewTexture.startPreviewStream(mPreviewStreamListener, mStreamBufferCount);
+        }
+
+        if (mImageStreamListener != null) {
+            mPreviewTexture.startImageStream(mImageStreamListener, mStreamMaxImages, mStreamFrameInterval);
+        }
+
+        if (mFrameListener != null) {
+            mPreviewTexture.startFrameStream(mFrameListener, mMaxFrames);
+        }
+
         mPreviewTexture.setCamera(mIsFrontFacing);
     }
 
@@ -161,6 +309,73 @@ public class SimpleCameraPreview extends RelativeLayout {
         }
     }
 
+    /**
+     * Like {@link #getPhoto(PhotoBitmapListener)}, calling back with the photo's size and timestamp as well
+     */
+    public void getPhoto(CapturedPhotoListener photoListener) {
+        getPhoto(new BaseCameraPreviewTexture.CapturedPhotoAdapter(photoListener));
+    }
+
+    /**
+     * Record every raw preview frame to a file, as the camera gives it: NV21 buffers from the legacy camera, YUV
+     * planes with their strides from camera2. Read it back with {@link FrameFileReader}, or replay it through frame
+     * analysis with {@link RecordedFrameSource}. Replaces any recording already running.
+     */
+    public FrameRecorder startRecording(File file) throws IOException {
+        stopRecording();
+
+        mRecorder = new FrameRecorder(file);
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setFrameRecorder(mRecorder);
+        }
+
+        return mRecorder;
+    }
+
+    /**
+     * Stop recording, flushing the file and writing its index
+     */
+    public void stopRecording() throws IOException {
+        FrameRecorder recorder = mRecorder;
+        if (recorder == null) return;
+
+        mRecorder = null;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setFrameRecorder(null);
+        }
+
+        // A frame being written on the camera thread finishes first; later ones are refused by the closed recorder
+        recorder.close();
+    }
+
+    /**
+     * Zero shutter lag: keep the last frameCount preview frames in a preallocated ring, and have getPhoto() return
+     * the one closest to when it was called instead of starting a new capture. The ring holds preview-sized frames,
+     * so photos are preview sized too, not the full capture resolution. Costs frameCount * width * height * 1.5
+     * bytes, plus a copy of every frame. 0 turns it off.
+     */
+    public void setZeroShutterLag(int frameCount) {
+        mZslFrameCount = Math.max(0, frameCount);
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setZeroShutterLag(mZslFrameCount);
+        }
+    }
+
+    /**
+     * Take several photos as fast as the camera can. With camera2 they're a single burst request, captured
+     * back to back without interrupting the preview. The legacy camera takes them one after another.
+     */
+    public void getPhotos(int count, PhotoBurstListener listener) {
+        if (mPreviewTexture != null) {
+            mPreviewTexture.getPhotos(count, listener);
+        } else {
+            log("Tried to get photos while camera isn't ready!");
+        }
+    }
+
     public void getNextPreviewFrame(PreviewBitmapListener previewBitmapListener) {
         if (mPreviewTexture != null) {
             mPreviewTexture.getNextPreviewFrame(previewBitmapListener);
@@ -169,6 +384,256 @@ public class SimpleCameraPreview extends RelativeLayout {
         }
     }
 
+    public void getNextPreviewPixels(PreviewPixelsListener listener) {
+        getNextPreviewPixels(null, listener);
+    }
+
+    /**
+     * Get the next preview frame as ARGB pixels, converted directly from YUV rather than encoded to a JPEG. With
+     * camera2 this needs a running image or frame stream, otherwise it falls back to decoding a JPEG capture.
+     *
+     * @param argb array to write the pixels into; a new one is allocated if it's null or too small
+     */
+    public void getNextPreviewPixels(int[] argb, PreviewPixelsListener listener) {
+        if (mPreviewTexture != null) {
+            mPreviewTexture.getNextPreviewPixels(argb, listener);
+        } else {
+            log("Tried to get preview while camera isn't ready!");
+        }
+    }
+
+    /**
+     * Choose where photos, previews and status callbacks are delivered, or null for the main thread. Stream listeners
+     * are always called on the camera thread, since their frames are only valid there or until released.
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setCallbackExecutor(executor);
+        }
+    }
+
+    /**
+     * Find out which preview size the camera settled on, and how many fallbacks that took. Only reported by the
+     * camera2 API, which retries rejected sizes on the open camera.
+     */
+    public void setPreviewSizeListener(PreviewSizeListener listener) {
+        mPreviewSizeListener = listener;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setPreviewSizeListener(listener);
+        }
+    }
+
+    /**
+     * Limit which preview sizes are picked, e.g. to keep frame analysis fast. Within the limits, the size that best
+     * matches the view's aspect ratio wins. Takes effect the next time the preview is shown.
+     *
+     * @param maxPixels the largest width * height to use, or {@link PreviewSizeSelector#NO_LIMIT}
+     * @param minFps    the lowest frame rate to accept, or {@link PreviewSizeSelector#NO_LIMIT}; only checked by the
+     *                  camera2 API, which reports frame rates per size
+     */
+    public void setPreviewSizeLimits(int maxPixels, int minFps) {
+        mSizeSelector = new PreviewSizeSelector(maxPixels, minFps);
+    }
+
+    /**
+     * Split frame conversions into row bands across all cores, using a shared pool. Small frames still convert on
+     * one thread.
+     */
+    public void setParallelConversion(boolean isParallel) {
+        setConversionExecutor(isParallel ? StripedExecutor.getShared() : null);
+    }
+
+    /**
+     * Use a specific pool for frame conversions, or null to convert on the camera callback thread
+     */
+    public void setConversionExecutor(StripedExecutor executor) {
+        mConversionExecutor = executor;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setConversionExecutor(executor);
+        }
+    }
+
+    public void startPreviewStream(PreviewStreamListener listener) {
+        startPreviewStream(listener, CameraPreviewTexture.DEFAULT_STREAM_BUFFER_COUNT);
+    }
+
+    /**
+     * Stream every preview frame to the listener, recycling a fixed pool of buffers sized for the chosen preview
+     * size. Only supported by the legacy camera API for now.
+     *
+     * @param bufferCount how many frames may be in flight at once, including any the listener is holding
+     */
+    public void startPreviewStream(PreviewStreamListener listener, int bufferCount) {
+        mFrameListener = null;
+        mPreviewStreamListener = listener;
+        mStreamBufferCount = bufferCount;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.startPreviewStream(listener, bufferCount);
+        }
+    }
+
+    public void stopPreviewStream() {
+        mPreviewStreamListener = null;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.stopPreviewStream();
+        }
+    }
+
+    public void startImageStream(ImageStreamListener listener) {
+        startImageStream(listener, Camera2PreviewTexture.DEFAULT_STREAM_MAX_IMAGES, 1);
+    }
+
+    /**
+     * Stream YUV_420_888 frames at the preview size without interrupting the preview. If the listener can't keep up,
+     * older frames are skipped. Only supported by the camera2 API.
+     *
+     * @param maxImages     how many images the reader can hold; at least 2
+     * @param frameInterval deliver every nth frame, e.g. 3 for a third of the frame rate
+     */
+    public void startImageStream(ImageStreamListener listener, int maxImages, int frameInterval) {
+        mFrameListener = null;
+        mImageStreamListener = listener;
+        mStreamMaxImages = maxImages;
+        mStreamFrameInterval = frameInterval;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.startImageStream(listener, maxImages, frameInterval);
+        }
+    }
+
+    public void stopImageStream() {
+        mImageStreamListener = null;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.stopImageStream();
+        }
+    }
+
+    public void startFrameStream(FrameListener listener) {
+        startFrameStream(listener, CameraPreviewTexture.DEFAULT_STREAM_BUFFER_COUNT);
+    }
+
+    /**
+     * Stream frames that wrap the camera's buffers directly, with no copy on either camera API: NV21 buffers with the
+     * legacy API, Image planes with camera2. Replaces any preview or image stream.
+     *
+     * @param maxFrames how many frames may be in flight at once, including any the listener hasn't released
+     */
+    public void startFrameStream(FrameListener listener, int maxFrames) {
+        mPreviewStreamListener = null;
+        mImageStreamListener = null;
+        mFrameListener = listener;
+        mMaxFrames = maxFrames;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.startFrameStream(listener, maxFrames);
+        }
+    }
+
+    /**
+     * Rotate streamed frames to upright, and mirror front camera frames to match the preview, before they're
+     * delivered. Frames then always report 0 degrees to rotate. The rotation is done on the YUV planes into pooled
+     * buffers, and the camera's buffer is released right away.
+     */
+    public void setUprightFrames(boolean isUpright) {
+        mIsUprightFrames = isUpright;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setUprightFrames(isUpright);
+        }
+    }
+
+    /**
+     * Stream frames as {@link CameraFrame#FORMAT_Y8}: only the Y plane and its row stride, for grayscale work like
+     * barcode scanning or sharpness checks. The plane is a view over the camera's NV21 buffer or the Image's first
+     * plane, so nothing is copied and the chroma is never touched. With upright frames, only the luma is rotated.
+     */
+    public void setLumaOnlyFrames(boolean isLumaOnly) {
+        mIsLumaOnlyFrames = isLumaOnly;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setLumaOnlyFrames(isLumaOnly);
+        }
+    }
+
+    /**
+     * Tag every photo's EXIF orientation with the rotation it still needs, so saving the JPEG as is gives an upright
+     * photo in galleries and viewers, with no decode, rotate and re-encode. Only the EXIF segment is written; the
+     * degreesToRotate passed with each photo is unchanged, since BitmapFactory ignores EXIF.
+     */
+    public void setExifOrientation(boolean isExifOrientation) {
+        mIsExifOrientation = isExifOrientation;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setExifOrientation(isExifOrientation);
+        }
+    }
+
+    /**
+     * Only deliver the part of each frame under roi, given in this view's coordinates, e.g. a scanner's viewfinder
+     * box. It's mapped to each frame through the preview's rotation, mirroring and margins, and cropped in the YUV
+     * planes with the chroma kept aligned, so nothing outside it is copied. Applies to frame streams, preview pixels,
+     * and legacy camera preview JPEGs, which encode only the region; camera2 preview JPEGs come from a full still
+     * capture and stay whole. Pass null for whole frames again.
+     */
+    public void setRoi(Rect roi) {
+        mRoi = roi == null ? null : new Rect(roi);
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setRoi(mRoi);
+        }
+    }
+
+    /**
+     * Scale streamed frames down to fit within maxWidth x maxHeight (as seen upright), keeping their aspect ratio, for
+     * analysis like ML models that only take a few hundred pixels. The preview itself stays full size. Frames are
+     * box filtered straight from the camera's YUV planes into pooled packed I420 buffers, or Y8 with luma-only frames,
+     * and the camera's buffer is released right away. Pass 0, 0 to stream full size frames again.
+     */
+    public void setAnalysisSize(int maxWidth, int maxHeight) {
+        mAnalysisWidth = maxWidth;
+        mAnalysisHeight = maxHeight;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setAnalysisSize(maxWidth, maxHeight);
+        }
+    }
+
+    /**
+     * Fill the snapshot with streaming throughput so far: fps, dropped frames, and how long conversions and stream
+     * listeners take. Reuse the same snapshot for every poll; this never allocates.
+     */
+    public FrameStats getFrameStats(FrameStats into) {
+        return mFrameStats.snapshot(into);
+    }
+
+    public void resetFrameStats() {
+        mFrameStats.reset();
+    }
+
+    public void stopFrameStream() {
+        mFrameListener = null;
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.stopFrameStream();
+        }
+    }
+
+    /**
+     * Give a buffer from {@link PreviewStreamListener#onPreviewFrame} back to the camera
+     */
+    public void releasePreviewBuffer(byte[] buffer) {
+        if (mPreviewTexture != null) {
+            mPreviewTexture.releasePreviewBuffer(buffer);
+        }
+    }
+
     public final void setListener(CameraPreviewStatusListener listener) {
         if (mPreviewTexture == null) return;
         mPreviewTexture.setListener(listener);
@@ -0,0 +1,164 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of reusable items, e.g. Bitmaps, bounded by their total size in bytes. Items are filed by size class, the
+ * power of two their size rounds up to, so a request only looks through items that could be about the right size.
+ * When the pool is over its limit, the least recently returned items are evicted first.
+ * <p/>
+ * Items are told apart by identity, so the same item can't be pooled twice. Subclasses decide what fits a request and
+ * what happens to evicted items.
+ */
+abstract class SizeClassPool<T> {
+    private static final int CLASS_COUNT = 32;
+
+    private final ArrayDeque<T>[] mClasses;
+
+    // Insertion order is return order, so the eldest entry is the least recently returned
+    private final LinkedHashMap<T, Integer> mLru = new LinkedHashMap<>();
+
+    private final long mMaxBytes;
+    private long mBytes = 0;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SizeClassPool(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("Invalid pool size " + maxBytes);
+
+        mMaxBytes = maxBytes;
+        mClasses = new ArrayDeque[CLASS_COUNT];
+    }
+
+    /**
+     * Bytes the item holds on to; must not change while it's in the pool
+     */
+    abstract int sizeOf(T item);
+
+    /**
+     * Whether the item can be reused for a width x height request needing the given bytes
+     */
+    abstract boolean fits(T item, int width, int height, int bytes);
+
+    /**
+     * Called without a lock held, after the item has left the pool for good
+     */
+    void onEvicted(T item) {
+    }
+
+    static int sizeClass(int bytes) {
+        return bytes <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(bytes - 1);
+    }
+
+    /**
+     * Take the most recently returned item that fits, from the request's size class or the one above it, so a reused
+     * item is never more than 4x too big
+     *
+     * @return the item, or null on a miss
+     */
+    T take(int width, int height, int bytes) {
+        int sizeClass = sizeClass(bytes);
+
+        synchronized (this) {
+            for (int c = sizeClass; c <= sizeClass + 1 && c < CLASS_COUNT; c++) {
+                ArrayDeque<T> items = mClasses[c];
+                if (items == null) continue;
+
+                for (Iterator<T> it = items.iterator(); it.hasNext(); ) {
+                    T item = it.next();
+                    if (!fits(item, width, height, bytes)) continue;
+
+                    it.remove();
+                    mBytes -= mLru.remove(item);
+                    mHits++;
+                    return item;
+                }
+            }
+
+            mMisses++;
+            return null;
+        }
+    }
+
+    /**
+     * Hand an item back to the pool, evicting older ones if that puts it over its limit
+     *
+     * @return false if the item was already pooled or is bigger than the whole pool
+     */
+    boolean put(T item) {
+        int size = sizeOf(item);
+        if (size > mMaxBytes) return false;
+
+        synchronized (this) {
+            if (mLru.containsKey(item)) return false;
+
+            int sizeClass = sizeClass(size);
+            if (mClasses[sizeClass] == null) mClasses[sizeClass] = new ArrayDeque<>();
+
+            mClasses[sizeClass].addFirst(item);
+            mLru.put(item, size);
+            mBytes += size;
+        }
+
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    /**
+     * Evict least recently returned items until the pool holds at most maxBytes
+     */
+    void trimToSize(long maxBytes) {
+        while (true) {
+            T evicted;
+
+            synchronized (this) {
+                if (mBytes <= maxBytes || mLru.isEmpty()) return;
+
+                Iterator<Map.Entry<T, Integer>> eldest = mLru.entrySet().iterator();
+                Map.Entry<T, Integer> entry = eldest.next();
+                eldest.remove();
+
+                evicted = entry.getKey();
+                mClasses[sizeClass(entry.getValue())].removeFirstOccurrence(evicted);
+                mBytes -= entry.getValue();
+                mEvictions++;
+            }
+
+            onEvicted(evicted);
+        }
+    }
+
+    void clear() {
+        trimToSize(0);
+    }
+
+    long getMaxSize() {
+        return mMaxBytes;
+    }
+
+    synchronized long getSize() {
+        return mBytes;
+    }
+
+    synchronized int getCount() {
+        return mLru.size();
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+}
@@ -0,0 +1,108 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The order to try preview sizes in when a device rejects the one it claims to support. Candidates are ranked once,
+ * up front, so each retry just steps to the next rung instead of searching the list again.
+ * <p/>
+ * Ranking: a size already known to work on this device first, then sizes that fit within the view from largest to
+ * smallest, then sizes that don't fit from smallest to largest.
+ */
+class SizeFallbackLadder {
+    private final FrameSize[] mRanked;
+    private final long mStartNanos;
+
+    private int mIdx = 0;
+
+    /**
+     * @param candidates sizes the camera reports for the stream
+     * @param isSideways whether width and height should be swapped to compare with the camera's sizes
+     * @param preferred  a size that worked before, tried first if it's still a candidate; may be null
+     */
+    SizeFallbackLadder(FrameSize[] candidates, int width, int height, boolean isSideways, FrameSize preferred) {
+        this(candidates, width, height, isSideways, preferred, System.nanoTime());
+    }
+
+    SizeFallbackLadder(FrameSize[] candidates, int width, int height, boolean isSideways, FrameSize preferred,
+                       long startNanos) {
+        mRanked = rank(candidates, isSideways ? height : width, isSideways ? width : height, preferred);
+        mStartNanos = startNanos;
+    }
+
+    static FrameSize[] rank(FrameSize[] candidates, final int maxWidth, final int maxHeight, FrameSize preferred) {
+        List<FrameSize> fits = new ArrayList<>();
+        List<FrameSize> tooBig = new ArrayList<>();
+        boolean hasPreferred = false;
+
+        for (FrameSize size : candidates) {
+            if (size.equals(preferred)) {
+                hasPreferred = true;
+            } else if (size.getWidth() <= maxWidth && size.getHeight() <= maxHeight) {
+                fits.add(size);
+            } else {
+                tooBig.add(size);
+            }
+        }
+
+        Comparator<FrameSize> byArea = new Comparator<FrameSize>() {
+            @Override
+            public int compare(FrameSize a, FrameSize b) {
+                return a.getArea() < b.getArea() ? -1 : (a.getArea() == b.getArea() ? 0 : 1);
+            }
+        };
+
+        // Stable sorts, so equal areas keep the camera's order
+        Collections.sort(fits, Collections.reverseOrder(byArea));
+        Collections.sort(tooBig, byArea);
+
+        FrameSize[] ranked = new FrameSize[fits.size() + tooBig.size() + (hasPreferred ? 1 : 0)];
+        int i = 0;
+
+        if (hasPreferred) ranked[i++] = preferred;
+        for (FrameSize size : fits) ranked[i++] = size;
+        for (FrameSize size : tooBig) ranked[i++] = size;
+
+        return ranked;
+    }
+
+    /**
+     * @return the size to try now, or null if every rung has failed
+     */
+    FrameSize current() {
+        return mIdx < mRanked.length ? mRanked[mIdx] : null;
+    }
+
+    /**
+     * The current size failed; move down a rung
+     *
+     * @return the next size to try, or null if there are none left
+     */
+    FrameSize next() {
+        if (mIdx < mRanked.length) mIdx++;
+        return current();
+    }
+
+    /**
+     * How many sizes failed before the current one
+     */
+    int getRetries() {
+        return mIdx;
+    }
+
+    long getElapsedNanos() {
+        return getElapsedNanos(System.nanoTime());
+    }
+
+    long getElapsedNanos(long nowNanos) {
+        return nowNanos - mStartNanos;
+    }
+
+    FrameSize[] getRanked() {
+        return Arrays.copyOf(mRanked, mRanked.length);
+    }
+}
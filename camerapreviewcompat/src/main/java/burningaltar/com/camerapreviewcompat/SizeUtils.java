@@ -0,0 +1,65 @@
+package burningaltar.com.camerapreviewcompat;
+
+/**
+ * The size math behind {@link CameraUtils}, without any Android types, so it can be unit tested and benchmarked on
+ * the JVM.
+ */
+public class SizeUtils {
+    /**
+     * Index of the largest size that fits within the bounds, or 0 if none fit
+     *
+     * @param isSideways whether width and height should be swapped to compare with the camera's sizes
+     */
+    public static int getBiggestSizeIdx(FrameSize[] sizes, int width, int height, boolean isSideways) {
+        if (sizes == null || width <= 0 || height <= 0) {
+            return 0;
+        }
+
+        if (isSideways) {
+            int temp = width;
+            width = height;
+            height = temp;
+        }
+
+        long biggestScore = 0;
+        int biggestIdx = 0;
+
+        for (int i = 0; i < sizes.length; i++) {
+            long score = sizes[i].getArea();
+
+            if (sizes[i].getWidth() <= width && sizes[i].getHeight() <= height && score > biggestScore) {
+                biggestScore = score;
+                biggestIdx = i;
+            }
+        }
+
+        return biggestIdx;
+    }
+
+    /**
+     * Size of an NV21 or I420 buffer: a full-res luma plane plus quarter-res chroma
+     */
+    public static int getPreviewBufferSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * The largest power of 2 to subsample an image by that keeps both sides larger than requested, for
+     * BitmapFactory.Options.inSampleSize
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+
+        if (height > reqHeight || width > reqWidth) {
+            final int halfHeight = height / 2;
+            final int halfWidth = width / 2;
+
+            while ((halfHeight / inSampleSize) > reqHeight
+                    && (halfWidth / inSampleSize) > reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+
+        return inSampleSize;
+    }
+}
@@ -0,0 +1,162 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits per-row frame work (conversion, rotation, scaling) into horizontal bands and runs them across a thread pool.
+ * Frames smaller than a threshold just run on the calling thread, where the hand-off would cost more than it saves.
+ * <p/>
+ * Bands start on even rows, so 4:2:0 chroma rows are never split between threads. Each band writes its own rows of
+ * the output, so results are identical to running the whole frame on one thread.
+ * <p/>
+ * The calling thread works on bands too, and pool threads only pick up bands nobody has claimed yet. That means a busy
+ * or single-thread pool can slow a frame down but never deadlock it, even when called from one of its own threads.
+ */
+public class StripedExecutor {
+    public interface RowTask {
+        void run(int rowStart, int rowEnd);
+    }
+
+    // Below about VGA, the hand-off costs more than splitting saves
+    public static final int DEFAULT_MIN_PIXELS = 640 * 480;
+
+    private static StripedExecutor sShared = null;
+
+    private final ExecutorService mExecutor;
+    private final int mParallelism;
+    private final int mMinPixels;
+
+    /**
+     * @param executor    a fixed thread pool or ForkJoinPool to run bands on
+     * @param parallelism the maximum number of bands per frame, usually the pool size plus one for the caller
+     * @param minPixels   frames with fewer pixels than this run sequentially on the caller
+     */
+    public StripedExecutor(ExecutorService executor, int parallelism, int minPixels) {
+        mExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+        mMinPixels = minPixels;
+    }
+
+    /**
+     * A shared executor with one band per core, backed by a fixed pool of daemon threads
+     */
+    public static synchronized StripedExecutor getShared() {
+        if (sShared == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            sShared = new StripedExecutor(newDaemonPool(Math.max(1, cores - 1)), cores, DEFAULT_MIN_PIXELS);
+        }
+
+        return sShared;
+    }
+
+    static ExecutorService newDaemonPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FrameWorker-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    public int getMinPixels() {
+        return mMinPixels;
+    }
+
+    /**
+     * Run the task over rows [0, rows), returning once every band is done. An exception from any band is rethrown here.
+     *
+     * @param width only used with rows to decide whether the frame is big enough to split
+     */
+    public void run(int rows, int width, RowTask task) {
+        int bands = Math.min(mParallelism, rows / 2);
+
+        if (bands <= 1 || (long) rows * width < mMinPixels) {
+            task.run(0, rows);
+            return;
+        }
+
+        Job job = new Job(task, rows, bands);
+
+        for (int i = 1; i < bands; i++) {
+            mExecutor.execute(job);
+        }
+
+        job.runBands();
+        job.await();
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    static int bandStart(int rows, int bands, int band) {
+        if (band >= bands) return rows;
+        return (int) ((long) rows * band / bands) & ~1;
+    }
+
+    private static class Job implements Runnable {
+        final RowTask mTask;
+        final int mRows;
+        final int mBands;
+
+        final AtomicInteger mNextBand = new AtomicInteger();
+        final CountDownLatch mDone;
+
+        volatile RuntimeException mError = null;
+
+        Job(RowTask task, int rows, int bands) {
+            mTask = task;
+            mRows = rows;
+            mBands = bands;
+            mDone = new CountDownLatch(bands);
+        }
+
+        @Override
+        public void run() {
+            runBands();
+        }
+
+        void runBands() {
+            int band;
+
+            while ((band = mNextBand.getAndIncrement()) < mBands) {
+                try {
+                    mTask.run(bandStart(mRows, mBands, band), bandStart(mRows, mBands, band + 1));
+                } catch (RuntimeException e) {
+                    mError = e;
+                } finally {
+                    mDone.countDown();
+                }
+            }
+        }
+
+        void await() {
+            boolean interrupted = false;
+
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) Thread.currentThread().interrupt();
+
+            if (mError != null) throw mError;
+        }
+    }
+}
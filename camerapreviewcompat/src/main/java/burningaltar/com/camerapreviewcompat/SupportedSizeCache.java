@@ -0,0 +1,239 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The sizes each camera supports for each kind of output, e.g. preview surfaces or JPEG readers, filled once from the
+ * camera's capabilities and narrowed as sizes turn out not to work on the device.
+ * <p/>
+ * Entries are per camera id and stream class, so a size that fails on one camera is still tried on the others. Size
+ * arrays handed out are never modified afterwards; removing a size swaps in a new array, so readers on other threads
+ * always see a consistent list without locking. Nothing is dropped implicitly: call {@link #invalidate(String)} or
+ * {@link #invalidateAll()} to start over from the camera's own list.
+ * <p/>
+ * It also remembers the size that last worked for each size selection, i.e. camera, view size, orientation and
+ * limits, so the next session making the same selection can start with it.
+ * <p/>
+ * With a {@link Store}, entries outlive the process, so later launches skip sizes already known to fail.
+ */
+class SupportedSizeCache {
+    /**
+     * Persistent string storage, e.g. SharedPreferences
+     */
+    interface Store {
+        String get(String key);
+
+        void put(String key, String value);
+
+        void remove(String key);
+
+        /**
+         * Remove every key that starts with the prefix
+         */
+        void removeAll(String prefix);
+
+        void clear();
+    }
+
+    private static final SupportedSizeCache sShared = new SupportedSizeCache();
+
+    private final ConcurrentMap<String, FrameSize[]> mSizes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FrameSize> mWorkingSizes = new ConcurrentHashMap<>();
+    private volatile Store mStore = null;
+
+    static SupportedSizeCache getShared() {
+        return sShared;
+    }
+
+    /**
+     * Persist entries to the store from now on, and use whatever it already has. Pass null to stop persisting.
+     */
+    void setStore(Store store) {
+        mStore = store;
+    }
+
+    static String key(String cameraId, Class<?> streamClass) {
+        return cameraId + "/" + streamClass.getName();
+    }
+
+    static String workingKey(String cameraId, Class<?> streamClass, String selection) {
+        return key(cameraId, streamClass) + "/ok/" + selection;
+    }
+
+    /**
+     * The cached sizes, filling the entry from the store or else from defaults the first time
+     *
+     * @param defaults the camera's full list of sizes for this stream class
+     */
+    FrameSize[] get(String cameraId, Class<?> streamClass, FrameSize[] defaults) {
+        String key = key(cameraId, streamClass);
+        FrameSize[] sizes = mSizes.get(key);
+        if (sizes != null) return sizes;
+
+        sizes = load(key);
+
+        if (sizes == null) {
+            sizes = defaults.clone();
+            persist(key, sizes);
+        }
+
+        FrameSize[] existing = mSizes.putIfAbsent(key, sizes);
+        return existing != null ? existing : sizes;
+    }
+
+    /**
+     * Stop offering a size for this camera and stream class, e.g. after a session failed to configure with it
+     *
+     * @return false if the size wasn't in the entry, e.g. another thread already removed it
+     */
+    boolean remove(String cameraId, Class<?> streamClass, FrameSize size) {
+        String key = key(cameraId, streamClass);
+
+        // Removals are rare, so they're serialized to keep the store in step; reads never wait
+        synchronized (this) {
+            FrameSize[] sizes = mSizes.get(key);
+            if (sizes == null) return false;
+
+            FrameSize[] remaining = without(sizes, size);
+            if (remaining == sizes) return false;
+
+            mSizes.put(key, remaining);
+            persist(key, remaining);
+            return true;
+        }
+    }
+
+    /**
+     * @param selection from {@link PreviewSizeSelector#getKey(String, int, int, boolean)}, so a different view size
+     *                  or limits don't get a size picked for something else
+     * @return the last size a session was configured with for this camera, stream class and selection, or null if
+     * there's none or it has since been removed
+     */
+    FrameSize getWorkingSize(String cameraId, Class<?> streamClass, String selection) {
+        String key = workingKey(cameraId, streamClass, selection);
+        FrameSize size = mWorkingSizes.get(key);
+        if (size != null) return isOffered(cameraId, streamClass, size) ? size : null;
+
+        Store store = mStore;
+        String value = store == null ? null : store.get(key);
+        if (value == null) return null;
+
+        try {
+            size = FrameSize.parse(value);
+        } catch (NumberFormatException e) {
+            store.remove(key);
+            return null;
+        }
+
+        FrameSize existing = mWorkingSizes.putIfAbsent(key, size);
+        if (existing != null) size = existing;
+        return isOffered(cameraId, streamClass, size) ? size : null;
+    }
+
+    void setWorkingSize(String cameraId, Class<?> streamClass, String selection, FrameSize size) {
+        String key = workingKey(cameraId, streamClass, selection);
+        if (size.equals(mWorkingSizes.put(key, size))) return;
+
+        Store store = mStore;
+        if (store != null) store.put(key, size.toString());
+    }
+
+    /**
+     * Forget everything cached for a camera, so its sizes are reloaded from its capabilities
+     */
+    void invalidate(String cameraId) {
+        String prefix = cameraId + "/";
+
+        for (String key : mSizes.keySet()) {
+            if (key.startsWith(prefix)) mSizes.remove(key);
+        }
+
+        for (String key : mWorkingSizes.keySet()) {
+            if (key.startsWith(prefix)) mWorkingSizes.remove(key);
+        }
+
+        // The store can hold entries this process never loaded, so match against its own keys
+        Store store = mStore;
+        if (store != null) store.removeAll(prefix);
+    }
+
+    void invalidateAll() {
+        mSizes.clear();
+        mWorkingSizes.clear();
+
+        Store store = mStore;
+        if (store != null) store.clear();
+    }
+
+    /**
+     * Whether a size is still in the entry, or there's no entry yet to have removed it from
+     */
+    private boolean isOffered(String cameraId, Class<?> streamClass, FrameSize size) {
+        FrameSize[] sizes = mSizes.get(key(cameraId, streamClass));
+        if (sizes == null) return true;
+
+        for (FrameSize offered : sizes) {
+            if (offered.equals(size)) return true;
+        }
+
+        return false;
+    }
+
+    private static FrameSize[] without(FrameSize[] sizes, FrameSize size) {
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i].equals(size)) {
+                FrameSize[] remaining = new FrameSize[sizes.length - 1];
+                System.arraycopy(sizes, 0, remaining, 0, i);
+                System.arraycopy(sizes, i + 1, remaining, i, sizes.length - i - 1);
+                return remaining;
+            }
+        }
+
+        return sizes;
+    }
+
+    private FrameSize[] load(String key) {
+        Store store = mStore;
+        if (store == null) return null;
+
+        String value = store.get(key);
+        if (value == null) return null;
+
+        try {
+            return parse(value);
+        } catch (NumberFormatException e) {
+            // Written by something else, or corrupted; start over from the defaults
+            store.remove(key);
+            return null;
+        }
+    }
+
+    private void persist(String key, FrameSize[] sizes) {
+        Store store = mStore;
+        if (store != null) store.put(key, format(sizes));
+    }
+
+    static String format(FrameSize[] sizes) {
+        StringBuilder sb = new StringBuilder();
+
+        for (FrameSize size : sizes) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(size);
+        }
+
+        return sb.toString();
+    }
+
+    static FrameSize[] parse(String value) {
+        List<FrameSize> sizes = new ArrayList<>();
+
+        for (String size : value.split(",")) {
+            if (!size.isEmpty()) sizes.add(FrameSize.parse(size));
+        }
+
+        return sizes.toArray(new FrameSize[sizes.size()]);
+    }
+}
@@ -0,0 +1,52 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.util.Arrays;
+
+/**
+ * Generates frames without a camera: a diagonal luma gradient that scrolls one pixel per frame over flat chroma, so
+ * consecutive frames differ and a stuck pipeline is easy to spot. Each frame is a few row copies, cheap enough that
+ * the source itself doesn't skew throughput measurements.
+ */
+public class SyntheticFrameSource extends PacedFrameSource {
+    private final byte[] mLumaPattern;
+    private final byte[] mChroma;
+
+    /**
+     * @param fps         the frame rate to pace at, or {@link #UNPACED} to produce frames as fast as they're released
+     * @param bufferCount how many frames can be checked out at once, like a camera's buffer count
+     */
+    public SyntheticFrameSource(int width, int height, int format, int fps, int bufferCount) {
+        this(width, height, format, fps, bufferCount, 0);
+    }
+
+    /**
+     * @param maxFrameCount stop after this many frames, or 0 to run until stopped
+     */
+    public SyntheticFrameSource(int width, int height, int format, int fps, int bufferCount, long maxFrameCount) {
+        super(width, height, format, fps, bufferCount, maxFrameCount);
+
+        // Two widths long, so any row can start anywhere in the first width
+        mLumaPattern = new byte[width * 2];
+
+        for (int i = 0; i < mLumaPattern.length; i++) {
+            mLumaPattern[i] = (byte) (i % width * 255 / width);
+        }
+
+        mChroma = new byte[SizeUtils.getPreviewBufferSize(width, height) - width * height];
+        Arrays.fill(mChroma, (byte) 128);
+    }
+
+    @Override
+    boolean fill(byte[] buffer, long frameIndex) {
+        int width = getWidth();
+        int height = getHeight();
+
+        for (int row = 0; row < height; row++) {
+            int start = (int) ((frameIndex + row) % width);
+            System.arraycopy(mLumaPattern, start, buffer, row * width, width);
+        }
+
+        System.arraycopy(mChroma, 0, buffer, width * height, mChroma.length);
+        return true;
+    }
+}
@@ -0,0 +1,334 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts camera YUV frames straight to packed ARGB or RGB pixels, skipping the YuvImage JPEG encode and the decode
+ * that has to follow it. Uses the BT.601 video-range integer math that the camera stack itself uses.
+ * <p/>
+ * Plain Java with no Android dependencies. Every method writes into the output array it's given when that's big
+ * enough, and only allocates when it isn't, so callers can reuse one array for every frame. Passing a
+ * {@link StripedExecutor} spreads a frame across cores, with output identical to the single-threaded path.
+ */
+public final class YuvConverter {
+
+    private YuvConverter() {
+    }
+
+    public static int[] nv21ToArgb(byte[] nv21, int width, int height, int[] out) {
+        return nv21ToArgb(nv21, width, height, out, null);
+    }
+
+    /**
+     * @param executor splits the frame into row bands across threads, or null to convert on this thread
+     */
+    public static int[] nv21ToArgb(byte[] nv21, int width, int height, int[] out, StripedExecutor executor) {
+        int lumaSize = width * height;
+        return argb(nv21, 0, width, lumaSize + 1, lumaSize, chromaWidth(width) * 2, 2, width, height, out, executor);
+    }
+
+    public static int[] i420ToArgb(byte[] i420, int width, int height, int[] out) {
+        return i420ToArgb(i420, width, height, out, null);
+    }
+
+    public static int[] i420ToArgb(byte[] i420, int width, int height, int[] out, StripedExecutor executor) {
+        int chromaStride = chromaWidth(width);
+        int uOffset = width * height;
+        int vOffset = uOffset + chromaStride * chromaHeight(height);
+
+        return argb(i420, 0, width, uOffset, vOffset, chromaStride, 1, width, height, out, executor);
+    }
+
+    /**
+     * @return packed RGB, 3 bytes per pixel
+     */
+    public static byte[] nv21ToRgb(byte[] nv21, int width, int height, byte[] out) {
+        return nv21ToRgb(nv21, width, height, out, null);
+    }
+
+    public static byte[] nv21ToRgb(byte[] nv21, int width, int height, byte[] out, StripedExecutor executor) {
+        int lumaSize = width * height;
+        return rgb(nv21, 0, width, lumaSize + 1, lumaSize, chromaWidth(width) * 2, 2, width, height, out, executor);
+    }
+
+    /**
+     * @return packed RGB, 3 bytes per pixel
+     */
+    public static byte[] i420ToRgb(byte[] i420, int width, int height, byte[] out) {
+        return i420ToRgb(i420, width, height, out, null);
+    }
+
+    public static byte[] i420ToRgb(byte[] i420, int width, int height, byte[] out, StripedExecutor executor) {
+        int chromaStride = chromaWidth(width);
+        int uOffset = width * height;
+        int vOffset = uOffset + chromaStride * chromaHeight(height);
+
+        return rgb(i420, 0, width, uOffset, vOffset, chromaStride, 1, width, height, out, executor);
+    }
+
+    /**
+     * Convert three YUV 4:2:0 planes with arbitrary strides, e.g. from an android.media.Image. Buffer positions are
+     * left untouched.
+     */
+    public static int[] planesToArgb(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                                     int uvPixelStride, int width, int height, int[] out) {
+        return planesToArgb(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, out, null);
+    }
+
+    public static int[] planesToArgb(final ByteBuffer y, final int yRowStride, final ByteBuffer u, final ByteBuffer v,
+                                     final int uvRowStride, final int uvPixelStride, final int width, int height,
+                                     int[] out, StripedExecutor executor) {
+        final int[] argb = ensureCapacity(out, width * height);
+
+        if (executor == null) {
+            argbRows(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, 0, height, argb);
+        } else {
+            executor.run(height, width, new StripedExecutor.RowTask() {
+                @Override
+                public void run(int rowStart, int rowEnd) {
+                    argbRows(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, rowStart, rowEnd, argb);
+                }
+            });
+        }
+
+        return argb;
+    }
+
+    public static byte[] planesToRgb(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                                     int uvPixelStride, int width, int height, byte[] out) {
+        return planesToRgb(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, out, null);
+    }
+
+    public static byte[] planesToRgb(final ByteBuffer y, final int yRowStride, final ByteBuffer u, final ByteBuffer v,
+                                     final int uvRowStride, final int uvPixelStride, final int width, int height,
+                                     byte[] out, StripedExecutor executor) {
+        final byte[] rgb = ensureCapacity(out, width * height * 3);
+
+        if (executor == null) {
+            rgbRows(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, 0, height, rgb);
+        } else {
+            executor.run(height, width, new StripedExecutor.RowTask() {
+                @Override
+                public void run(int rowStart, int rowEnd) {
+                    rgbRows(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, rowStart, rowEnd, rgb);
+                }
+            });
+        }
+
+        return rgb;
+    }
+
+    public static int[] toArgb(CameraFrame frame, int[] out) {
+        return toArgb(frame, out, null);
+    }
+
+    public static int[] toArgb(CameraFrame frame, int[] out, StripedExecutor executor) {
+        if (frame.getFormat() == CameraFrame.FORMAT_NV21 && frame.getData() != null) {
+            return nv21ToArgb(frame.getData(), frame.getWidth(), frame.getHeight(), out, executor);
+        }
+
+        // e.g. a cropped NV21 frame: not packed any more, but still one array underneath
+        byte[] array = getSharedArray(frame);
+
+        if (array != null) {
+            return argb(array, arrayOffset(frame.getPlane(0)), frame.getRowStride(0), arrayOffset(frame.getPlane(1)),
+                    arrayOffset(frame.getPlane(2)), frame.getRowStride(1), frame.getPixelStride(1), frame.getWidth(),
+                    frame.getHeight(), out, executor);
+        }
+
+        return planesToArgb(frame.getPlane(0), frame.getRowStride(0), frame.getPlane(1), frame.getPlane(2),
+                frame.getRowStride(1), frame.getPixelStride(1), frame.getWidth(), frame.getHeight(), out, executor);
+    }
+
+    public static byte[] toRgb(CameraFrame frame, byte[] out) {
+        return toRgb(frame, out, null);
+    }
+
+    public static byte[] toRgb(CameraFrame frame, byte[] out, StripedExecutor executor) {
+        if (frame.getFormat() == CameraFrame.FORMAT_NV21 && frame.getData() != null) {
+            return nv21ToRgb(frame.getData(), frame.getWidth(), frame.getHeight(), out, executor);
+        }
+
+        byte[] array = getSharedArray(frame);
+
+        if (array != null) {
+            return rgb(array, arrayOffset(frame.getPlane(0)), frame.getRowStride(0), arrayOffset(frame.getPlane(1)),
+                    arrayOffset(frame.getPlane(2)), frame.getRowStride(1), frame.getPixelStride(1), frame.getWidth(),
+                    frame.getHeight(), out, executor);
+        }
+
+        return planesToRgb(frame.getPlane(0), frame.getRowStride(0), frame.getPlane(1), frame.getPlane(2),
+                frame.getRowStride(1), frame.getPixelStride(1), frame.getWidth(), frame.getHeight(), out, executor);
+    }
+
+    /**
+     * The array behind all three planes, if they share one, so they can be read without ByteBuffer gets
+     */
+    private static byte[] getSharedArray(CameraFrame frame) {
+        if (frame.getPlaneCount() < 3) return null;
+
+        ByteBuffer y = frame.getPlane(0);
+        ByteBuffer u = frame.getPlane(1);
+        ByteBuffer v = frame.getPlane(2);
+
+        if (!y.hasArray() || !u.hasArray() || !v.hasArray()) return null;
+        if (y.array() != u.array() || y.array() != v.array()) return null;
+
+        return y.array();
+    }
+
+    private static int arrayOffset(ByteBuffer buffer) {
+        return buffer.arrayOffset() + buffer.position();
+    }
+
+    private static int[] argb(final byte[] src, final int yOffset, final int yRowStride, final int uOffset,
+                              final int vOffset, final int uvRowStride, final int uvPixelStride, final int width,
+                              int height, int[] out, StripedExecutor executor) {
+        final int[] argb = ensureCapacity(out, width * height);
+
+        if (executor == null) {
+            argbRows(src, yOffset, yRowStride, uOffset, vOffset, uvRowStride, uvPixelStride, width, 0, height, argb);
+        } else {
+            executor.run(height, width, new StripedExecutor.RowTask() {
+                @Override
+                public void run(int rowStart, int rowEnd) {
+                    argbRows(src, yOffset, yRowStride, uOffset, vOffset, uvRowStride, uvPixelStride, width, rowStart, rowEnd, argb);
+                }
+            });
+        }
+
+        return argb;
+    }
+
+    private static byte[] rgb(final byte[] src, final int yOffset, final int yRowStride, final int uOffset,
+                              final int vOffset, final int uvRowStride, final int uvPixelStride, final int width,
+                              int height, byte[] out, StripedExecutor executor) {
+        final byte[] rgb = ensureCapacity(out, width * height * 3);
+
+        if (executor == null) {
+            rgbRows(src, yOffset, yRowStride, uOffset, vOffset, uvRowStride, uvPixelStride, width, 0, height, rgb);
+        } else {
+            executor.run(height, width, new StripedExecutor.RowTask() {
+                @Override
+                public void run(int rowStart, int rowEnd) {
+                    rgbRows(src, yOffset, yRowStride, uOffset, vOffset, uvRowStride, uvPixelStride, width, rowStart, rowEnd, rgb);
+                }
+            });
+        }
+
+        return rgb;
+    }
+
+    static void argbRows(byte[] src, int yOffset, int yRowStride, int uOffset, int vOffset, int uvRowStride,
+                         int uvPixelStride, int width, int rowStart, int rowEnd, int[] out) {
+        for (int row = rowStart; row < rowEnd; row++) {
+            int yIdx = yOffset + row * yRowStride;
+            int uvRow = (row >> 1) * uvRowStride;
+            int outIdx = row * width;
+
+            for (int col = 0; col < width; col++) {
+                int uvIdx = uvRow + (col >> 1) * uvPixelStride;
+                out[outIdx++] = yuvToArgb(src[yIdx++] & 0xff, src[uOffset + uvIdx] & 0xff, src[vOffset + uvIdx] & 0xff);
+            }
+        }
+    }
+
+    static void rgbRows(byte[] src, int yOffset, int yRowStride, int uOffset, int vOffset, int uvRowStride,
+                        int uvPixelStride, int width, int rowStart, int rowEnd, byte[] out) {
+        for (int row = rowStart; row < rowEnd; row++) {
+            int yIdx = yOffset + row * yRowStride;
+            int uvRow = (row >> 1) * uvRowStride;
+            int outIdx = row * width * 3;
+
+            for (int col = 0; col < width; col++) {
+                int uvIdx = uvRow + (col >> 1) * uvPixelStride;
+                int argb = yuvToArgb(src[yIdx++] & 0xff, src[uOffset + uvIdx] & 0xff, src[vOffset + uvIdx] & 0xff);
+
+                out[outIdx++] = (byte) (argb >> 16);
+                out[outIdx++] = (byte) (argb >> 8);
+                out[outIdx++] = (byte) argb;
+            }
+        }
+    }
+
+    static void argbRows(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                         int uvPixelStride, int width, int rowStart, int rowEnd, int[] out) {
+        int yBase = y.position();
+        int uBase = u.position();
+        int vBase = v.position();
+
+        for (int row = rowStart; row < rowEnd; row++) {
+            int yIdx = yBase + row * yRowStride;
+            int uvRow = (row >> 1) * uvRowStride;
+            int outIdx = row * width;
+
+            for (int col = 0; col < width; col++) {
+                int uvIdx = uvRow + (col >> 1) * uvPixelStride;
+                out[outIdx++] = yuvToArgb(y.get(yIdx++) & 0xff, u.get(uBase + uvIdx) & 0xff, v.get(vBase + uvIdx) & 0xff);
+            }
+        }
+    }
+
+    static void rgbRows(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                        int uvPixelStride, int width, int rowStart, int rowEnd, byte[] out) {
+        int yBase = y.position();
+        int uBase = u.position();
+        int vBase = v.position();
+
+        for (int row = rowStart; row < rowEnd; row++) {
+            int yIdx = yBase + row * yRowStride;
+            int uvRow = (row >> 1) * uvRowStride;
+            int outIdx = row * width * 3;
+
+            for (int col = 0; col < width; col++) {
+                int uvIdx = uvRow + (col >> 1) * uvPixelStride;
+                int argb = yuvToArgb(y.get(yIdx++) & 0xff, u.get(uBase + uvIdx) & 0xff, v.get(vBase + uvIdx) & 0xff);
+
+                out[outIdx++] = (byte) (argb >> 16);
+                out[outIdx++] = (byte) (argb >> 8);
+                out[outIdx++] = (byte) argb;
+            }
+        }
+    }
+
+    /**
+     * BT.601 video range, in 10-bit fixed point
+     */
+    static int yuvToArgb(int y, int u, int v) {
+        y -= 16;
+        if (y < 0) y = 0;
+
+        u -= 128;
+        v -= 128;
+
+        int y1192 = 1192 * y;
+        int r = y1192 + 1634 * v;
+        int g = y1192 - 833 * v - 400 * u;
+        int b = y1192 + 2066 * u;
+
+        if (r < 0) r = 0;
+        else if (r > 262143) r = 262143;
+        if (g < 0) g = 0;
+        else if (g > 262143) g = 262143;
+        if (b < 0) b = 0;
+        else if (b > 262143) b = 262143;
+
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    static int chromaWidth(int width) {
+        return (width + 1) / 2;
+    }
+
+    static int chromaHeight(int height) {
+        return (height + 1) / 2;
+    }
+
+    static int[] ensureCapacity(int[] out, int size) {
+        return out != null && out.length >= size ? out : new int[size];
+    }
+
+    static byte[] ensureCapacity(byte[] out, int size) {
+        return out != null && out.length >= size ? out : new byte[size];
+    }
+}
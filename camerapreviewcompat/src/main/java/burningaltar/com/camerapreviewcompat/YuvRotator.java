@@ -0,0 +1,256 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rotates and mirrors YUV 4:2:0 frames plane by plane, so consumers get upright frames without going through a
+ * Bitmap and Matrix. Works on NV21, I420 or strided planes, and writes into a caller-supplied buffer.
+ * <p/>
+ * Rotation is clockwise. Mirroring flips the upright result left to right, which is how the front camera's preview
+ * looks on screen. Widths and heights are expected to be even, as camera sizes are.
+ */
+public final class YuvRotator {
+
+    private YuvRotator() {
+    }
+
+    /**
+     * @return whether a rotation swaps width and height
+     */
+    public static boolean isSideways(int degrees) {
+        return degrees == 90 || degrees == 270;
+    }
+
+    public static byte[] rotateNv21(byte[] src, int width, int height, int degrees, boolean mirror, byte[] dst) {
+        return rotateNv21(src, width, height, degrees, mirror, dst, null);
+    }
+
+    /**
+     * @return the rotated NV21 frame, which is dst if it was big enough
+     */
+    public static byte[] rotateNv21(final byte[] src, final int width, final int height, final int degrees,
+                                    final boolean mirror, byte[] dst, StripedExecutor executor) {
+        final byte[] out = YuvConverter.ensureCapacity(dst, SizeUtils.getPreviewBufferSize(width, height));
+        final int outWidth = isSideways(degrees) ? height : width;
+        final int outHeight = isSideways(degrees) ? width : height;
+
+        final int lumaSize = width * height;
+
+        run(outHeight, outWidth, executor, new StripedExecutor.RowTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                rotatePlane(src, 0, width, 1, width, height, out, 0, outWidth, 1, degrees, mirror, rowStart, rowEnd);
+
+                // V and U are interleaved; rotate each as its own plane with a pixel stride of 2
+                int chromaStart = rowStart / 2;
+                int chromaEnd = (rowEnd + 1) / 2;
+
+                rotatePlane(src, lumaSize, width, 2, width / 2, height / 2, out, lumaSize, outWidth, 2,
+                        degrees, mirror, chromaStart, chromaEnd);
+                rotatePlane(src, lumaSize + 1, width, 2, width / 2, height / 2, out, lumaSize + 1, outWidth, 2,
+                        degrees, mirror, chromaStart, chromaEnd);
+            }
+        });
+
+        return out;
+    }
+
+    public static byte[] rotateI420(byte[] src, int width, int height, int degrees, boolean mirror, byte[] dst) {
+        return rotateI420(src, width, height, degrees, mirror, dst, null);
+    }
+
+    /**
+     * @return the rotated I420 frame, which is dst if it was big enough
+     */
+    public static byte[] rotateI420(final byte[] src, final int width, final int height, final int degrees,
+                                    final boolean mirror, byte[] dst, StripedExecutor executor) {
+        final byte[] out = YuvConverter.ensureCapacity(dst, SizeUtils.getPreviewBufferSize(width, height));
+        final int outWidth = isSideways(degrees) ? height : width;
+        final int outHeight = isSideways(degrees) ? width : height;
+
+        final int lumaSize = width * height;
+        final int chromaSize = lumaSize / 4;
+
+        run(outHeight, outWidth, executor, new StripedExecutor.RowTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                rotatePlane(src, 0, width, 1, width, height, out, 0, outWidth, 1, degrees, mirror, rowStart, rowEnd);
+
+                int chromaStart = rowStart / 2;
+                int chromaEnd = (rowEnd + 1) / 2;
+
+                rotatePlane(src, lumaSize, width / 2, 1, width / 2, height / 2, out, lumaSize, outWidth / 2, 1,
+                        degrees, mirror, chromaStart, chromaEnd);
+                rotatePlane(src, lumaSize + chromaSize, width / 2, 1, width / 2, height / 2, out, lumaSize + chromaSize,
+                        outWidth / 2, 1, degrees, mirror, chromaStart, chromaEnd);
+            }
+        });
+
+        return out;
+    }
+
+    /**
+     * Rotate strided planes, e.g. from an android.media.Image, into packed I420
+     */
+    public static byte[] rotatePlanesToI420(final ByteBuffer y, final int yRowStride, final ByteBuffer u,
+                                            final ByteBuffer v, final int uvRowStride, final int uvPixelStride,
+                                            final int width, final int height, final int degrees,
+                                            final boolean mirror, byte[] dst, StripedExecutor executor) {
+        final byte[] out = YuvConverter.ensureCapacity(dst, SizeUtils.getPreviewBufferSize(width, height));
+        final int outWidth = isSideways(degrees) ? height : width;
+        final int outHeight = isSideways(degrees) ? width : height;
+
+        final int lumaSize = width * height;
+        final int chromaSize = lumaSize / 4;
+
+        run(outHeight, outWidth, executor, new StripedExecutor.RowTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                rotatePlane(y, yRowStride, 1, width, height, out, 0, outWidth, 1, degrees, mirror, rowStart, rowEnd);
+
+                int chromaStart = rowStart / 2;
+                int chromaEnd = (rowEnd + 1) / 2;
+
+                rotatePlane(u, uvRowStride, uvPixelStride, width / 2, height / 2, out, lumaSize, outWidth / 2, 1,
+                        degrees, mirror, chromaStart, chromaEnd);
+                rotatePlane(v, uvRowStride, uvPixelStride, width / 2, height / 2, out, lumaSize + chromaSize,
+                        outWidth / 2, 1, degrees, mirror, chromaStart, chromaEnd);
+            }
+        });
+
+        return out;
+    }
+
+    /**
+     * Rotate a frame into dst: NV21 frames stay NV21, anything else comes out as packed I420
+     */
+    public static byte[] rotate(CameraFrame frame, int degrees, boolean mirror, byte[] dst, StripedExecutor executor) {
+        if (frame.getFormat() == CameraFrame.FORMAT_NV21 && frame.getData() != null) {
+            return rotateNv21(frame.getData(), frame.getWidth(), frame.getHeight(), degrees, mirror, dst, executor);
+        }
+
+        return rotatePlanesToI420(frame.getPlane(0), frame.getRowStride(0), frame.getPlane(1), frame.getPlane(2),
+                frame.getRowStride(1), frame.getPixelStride(1), frame.getWidth(), frame.getHeight(), degrees, mirror,
+                dst, executor);
+    }
+
+    /**
+     * Rotate just a frame's Y plane into dst as packed {@link CameraFrame#FORMAT_Y8}, skipping the chroma entirely
+     *
+     * @return the rotated luma, which is dst if it was big enough
+     */
+    public static byte[] rotateLuma(CameraFrame frame, final int degrees, final boolean mirror, byte[] dst,
+                                    StripedExecutor executor) {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final byte[] out = YuvConverter.ensureCapacity(dst, width * height);
+        final int outWidth = isSideways(degrees) ? height : width;
+        final int outHeight = isSideways(degrees) ? width : height;
+
+        // Packed frames start with the luma, so read the array directly rather than through the buffer
+        final byte[] src = frame.getData();
+        final ByteBuffer y = frame.getPlane(0);
+        final int rowStride = frame.getRowStride(0);
+        final int pixelStride = frame.getPixelStride(0);
+
+        run(outHeight, outWidth, executor, new StripedExecutor.RowTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                if (src != null) {
+                    rotatePlane(src, 0, rowStride, pixelStride, width, height, out, 0, outWidth, 1, degrees, mirror,
+                            rowStart, rowEnd);
+                } else {
+                    rotatePlane(y, rowStride, pixelStride, width, height, out, 0, outWidth, 1, degrees, mirror,
+                            rowStart, rowEnd);
+                }
+            }
+        });
+
+        return out;
+    }
+
+    private static void run(int rows, int width, StripedExecutor executor, StripedExecutor.RowTask task) {
+        if (executor == null) {
+            task.run(0, rows);
+        } else {
+            executor.run(rows, width, task);
+        }
+    }
+
+    /**
+     * Index into a source plane for output pixel (dx, dy), undoing the mirror and then the rotation
+     */
+    static int sourceIndex(int dx, int dy, int width, int height, int degrees, boolean mirror, int rowStride, int pixelStride) {
+        int outWidth = isSideways(degrees) ? height : width;
+        if (mirror) dx = outWidth - 1 - dx;
+
+        int sx;
+        int sy;
+
+        switch (degrees) {
+            case 90:
+                sx = dy;
+                sy = height - 1 - dx;
+                break;
+            case 180:
+                sx = width - 1 - dx;
+                sy = height - 1 - dy;
+                break;
+            case 270:
+                sx = width - 1 - dy;
+                sy = dx;
+                break;
+            default:
+                sx = dx;
+                sy = dy;
+                break;
+        }
+
+        return sy * rowStride + sx * pixelStride;
+    }
+
+    /**
+     * Fill output rows [rowStart, rowEnd) of one plane. Along an output row the source index moves by a constant step,
+     * so only the first two pixels of each row need the full mapping.
+     */
+    static void rotatePlane(byte[] src, int srcOffset, int srcRowStride, int srcPixelStride, int width, int height,
+                            byte[] dst, int dstOffset, int dstRowStride, int dstPixelStride,
+                            int degrees, boolean mirror, int rowStart, int rowEnd) {
+        int outWidth = isSideways(degrees) ? height : width;
+        int outHeight = isSideways(degrees) ? width : height;
+        rowEnd = Math.min(rowEnd, outHeight);
+
+        for (int dy = rowStart; dy < rowEnd; dy++) {
+            int srcIdx = srcOffset + sourceIndex(0, dy, width, height, degrees, mirror, srcRowStride, srcPixelStride);
+            int step = outWidth > 1 ? srcOffset + sourceIndex(1, dy, width, height, degrees, mirror, srcRowStride, srcPixelStride) - srcIdx : 0;
+            int dstIdx = dstOffset + dy * dstRowStride;
+
+            for (int dx = 0; dx < outWidth; dx++) {
+                dst[dstIdx] = src[srcIdx];
+                srcIdx += step;
+                dstIdx += dstPixelStride;
+            }
+        }
+    }
+
+    static void rotatePlane(ByteBuffer src, int srcRowStride, int srcPixelStride, int width, int height,
+                            byte[] dst, int dstOffset, int dstRowStride, int dstPixelStride,
+                            int degrees, boolean mirror, int rowStart, int rowEnd) {
+        int outWidth = isSideways(degrees) ? height : width;
+        int outHeight = isSideways(degrees) ? width : height;
+        int base = src.position();
+        rowEnd = Math.min(rowEnd, outHeight);
+
+        for (int dy = rowStart; dy < rowEnd; dy++) {
+            int srcIdx = base + sourceIndex(0, dy, width, height, degrees, mirror, srcRowStride, srcPixelStride);
+            int step = outWidth > 1 ? base + sourceIndex(1, dy, width, height, degrees, mirror, srcRowStride, srcPixelStride) - srcIdx : 0;
+            int dstIdx = dstOffset + dy * dstRowStride;
+
+            for (int dx = 0; dx < outWidth; dx++) {
+                dst[dstIdx] = src.get(srcIdx);
+                srcIdx += step;
+                dstIdx += dstPixelStride;
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package burningaltar.com.camerapreviewcompat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Downscales YUV 4:2:0 frames straight from their planes with a box filter, for analysis that only needs a few hundred
+ * pixels across. Each output pixel averages the block of source pixels it covers, so every source pixel is read once
+ * and there's no full-resolution intermediate, unlike converting to RGB first and scaling that.
+ * <p/>
+ * Output is packed I420, or packed luma for the luma-only variant, written into a caller-supplied buffer. Target sizes
+ * are expected to be even, as camera sizes are. Scaling up works too, but just repeats pixels.
+ */
+public final class YuvScaler {
+
+    private YuvScaler() {
+    }
+
+    /**
+     * The biggest even size with the frame's aspect ratio that fits in maxWidth x maxHeight, never bigger than the
+     * frame itself
+     *
+     * @return {width, height}
+     */
+    public static int[] fitWithin(int width, int height, int maxWidth, int maxHeight) {
+        return new int[]{fitWidth(width, height, maxWidth, maxHeight), fitHeight(width, height, maxWidth, maxHeight)};
+    }
+
+    // fitWithin() one side at a time, for per-frame callers that shouldn't allocate
+    static int fitWidth(int width, int height, int maxWidth, int maxHeight) {
+        if (width <= maxWidth && height <= maxHeight) return width;
+        return isWidthLimited(width, height, maxWidth, maxHeight) ? even(maxWidth) :
+                even((int) ((long) width * maxHeight / height));
+    }
+
+    static int fitHeight(int width, int height, int maxWidth, int maxHeight) {
+        if (width <= maxWidth && height <= maxHeight) return height;
+        return isWidthLimited(width, height, maxWidth, maxHeight) ? even((int) ((long) height * maxWidth / width)) :
+                even(maxHeight);
+    }
+
+    // Integer math, so e.g. an exact 224 doesn't come out as 223.99 and round down
+    private static boolean isWidthLimited(int width, int height, int maxWidth, int maxHeight) {
+        return (long) width * maxHeight >= (long) height * maxWidth;
+    }
+
+    private static int even(int length) {
+        return Math.max(2, length & ~1);
+    }
+
+    /**
+     * Scale any YUV 4:2:0 frame, NV21, I420 or strided planes, to packed I420
+     *
+     * @return the scaled frame, which is dst if it was big enough
+     */
+    public static byte[] scaleToI420(CameraFrame frame, final int dstWidth, final int dstHeight, byte[] dst,
+                                     StripedExecutor executor) {
+        if (frame.getPlaneCount() < 3) {
+            throw new IllegalArgumentException("Frame has no chroma planes, use scaleLuma()");
+        }
+
+        final byte[] out = YuvConverter.ensureCapacity(dst, SizeUtils.getPreviewBufferSize(dstWidth, dstHeight));
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+
+        final int lumaSize = dstWidth * dstHeight;
+        final int chromaSize = lumaSize / 4;
+
+        final PlaneReader y = new PlaneReader(frame, 0, width, height);
+        final PlaneReader u = new PlaneReader(frame, 1, width / 2, height / 2);
+        final PlaneReader v = new PlaneReader(frame, 2, width / 2, height / 2);
+
+        run(dstHeight, width * height, executor, new StripedExecutor.RowTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                y.scale(out, 0, dstWidth, dstHeight, rowStart, rowEnd);
+
+                int chromaStart = rowStart / 2;
+                int chromaEnd = (rowEnd + 1) / 2;
+
+                u.scale(out, lumaSize, dstWidth / 2, dstHeight / 2, chromaStart, chromaEnd);
+                v.scale(out, lumaSize + chromaSize, dstWidth / 2, dstHeight / 2, chromaStart, chromaEnd);
+            }
+        });
+
+        return out;
+    }
+
+    /**
+     * Scale just a frame's Y plane to packed {@link CameraFrame#FORMAT_Y8}, never reading the chroma
+     *
+     * @return the scaled luma, which is dst if it was big enough
+     */
+    public static byte[] scaleLuma(CameraFrame frame, final int dstWidth, final int dstHeight, byte[] dst,
+                                   StripedExecutor executor) {
+        final byte[] out = YuvConverter.ensureCapacity(dst, dstWidth * dstHeight);
+        final PlaneReader y = new PlaneReader(frame, 0, frame.getWidth(), frame.getHeight());
+
+        run(dstHeight, frame.getWidth() * frame.getHeight(), executor, new StripedExecutor.RowTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                y.scale(out, 0, dstWidth, dstHeight, rowStart, rowEnd);
+            }
+        });
+
+        return out;
+    }
+
+    /**
+     * Split by output rows, but decide whether to split at all by how many source pixels there are to read
+     */
+    private static void run(int dstRows, int srcPixels, StripedExecutor executor, StripedExecutor.RowTask task) {
+        if (executor == null) {
+            task.run(0, dstRows);
+        } else {
+            executor.run(dstRows, srcPixels / Math.max(1, dstRows), task);
+        }
+    }
+
+    /**
+     * One source plane, read through its backing array when it has one, since that's much faster than ByteBuffer
+     * gets. Buffer positions are left untouched.
+     */
+    private static class PlaneReader {
+        final byte[] mArray;
+        final int mOffset;
+        final ByteBuffer mBuffer;
+        final int mRowStride;
+        final int mPixelStride;
+        final int mWidth;
+        final int mHeight;
+
+        PlaneReader(CameraFrame frame, int plane, int width, int height) {
+            ByteBuffer buffer = frame.getPlane(plane);
+
+            if (buffer.hasArray()) {
+                mArray = buffer.array();
+                mOffset = buffer.arrayOffset() + buffer.position();
+                mBuffer = null;
+            } else {
+                mArray = null;
+                mOffset = buffer.position();
+                mBuffer = buffer;
+            }
+
+            mRowStride = frame.getRowStride(plane);
+            mPixelStride = frame.getPixelStride(plane);
+            mWidth = width;
+            mHeight = height;
+        }
+
+        void scale(byte[] dst, int dstOffset, int dstWidth, int dstHeight, int rowStart, int rowEnd) {
+            if (mArray != null) {
+                scalePlane(mArray, mOffset, mRowStride, mPixelStride, mWidth, mHeight, dst, dstOffset, dstWidth,
+                        dstHeight, rowStart, rowEnd);
+            } else {
+                scalePlane(mBuffer, mOffset, mRowStride, mPixelStride, mWidth, mHeight, dst, dstOffset, dstWidth,
+                        dstHeight, rowStart, rowEnd);
+            }
+        }
+    }
+
+    /**
+     * Fill output rows [rowStart, rowEnd) of one plane. Box edges come from integer division, so the boxes tile the
+     * source exactly and differ in size by at most a pixel.
+     */
+    static void scalePlane(byte[] src, int srcOffset, int srcRowStride, int srcPixelStride, int width, int height,
+                           byte[] dst, int dstOffset, int dstWidth, int dstHeight, int rowStart, int rowEnd) {
+        rowEnd = Math.min(rowEnd, dstHeight);
+
+        for (int dy = rowStart; dy < rowEnd; dy++) {
+            int sy0 = dy * height / dstHeight;
+            int sy1 = Math.max(sy0 + 1, (dy + 1) * height / dstHeight);
+            int dstIdx = dstOffset + dy * dstWidth;
+
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int sx0 = dx * width / dstWidth;
+                int sx1 = Math.max(sx0 + 1, (dx + 1) * width / dstWidth);
+                int sum = 0;
+
+                for (int sy = sy0; sy < sy1; sy++) {
+                    int srcIdx = srcOffset + sy * srcRowStride + sx0 * srcPixelStride;
+
+                    for (int sx = sx0; sx < sx1; sx++) {
+                        sum += src[srcIdx] & 0xff;
+                        srcIdx += srcPixelStride;
+                    }
+                }
+
+                int count = (sy1 - sy0) * (sx1 - sx0);
+                dst[dstIdx++] = (byte) ((sum + count / 2) / count);
+            }
+        }
+    }
+
+    static void scalePlane(ByteBuffer src, int srcOffset, int srcRowStride, int srcPixelStride, int width, int height,
+                           byte[] dst, int dstOffset, int dstWidth, int dstHeight, int rowStart, int rowEnd) {
+        rowEnd = Math.min(rowEnd, dstHeight);
+
+        for (int dy = rowStart; dy < rowEnd; dy++) {
+            int sy0 = dy * height / dstHeight;
+            int sy1 = Math.max(sy0 + 1, (dy + 1) * height / dstHeight);
+            int dstIdx = dstOffset + dy * dstWidth;
+
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int sx0 = dx * width / dstWidth;
+                int sx1 = Math.max(sx0 + 1, (dx + 1) * width / dstWidth);
+                int sum = 0;
+
+                for (int sy = sy0; sy < sy1; sy++) {
+                    int srcIdx = srcOffset + sy * srcRowStride + sx0 * srcPixelStride;
+
+                    for (int sx = sx0; sx < sx1; sx++) {
+                        sum += src.get(srcIdx) & 0xff;
+                        srcIdx += srcPixelStride;
+                    }
+                }
+
+                int count = (sy1 - sy0) * (sx1 - sx0);
+                dst[dstIdx++] = (byte) ((sum + count / 2) / count);
+            }
+        }
+    }
+}
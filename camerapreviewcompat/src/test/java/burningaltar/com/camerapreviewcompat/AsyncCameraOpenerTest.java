@@ -0,0 +1,157 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncCameraOpenerTest {
+    // About what Camera.open() plus parameters and startPreview() cost on a low-end device
+    static final long FAKE_OPEN_MS = 300;
+
+    ExecutorService mWorker;
+
+    // Stands in for the UI thread's queue
+    LinkedBlockingQueue<Runnable> mMainQueue;
+
+    AsyncCameraOpener mOpener;
+
+    @Before
+    public void setUp() {
+        mWorker = Executors.newSingleThreadExecutor();
+        mMainQueue = new LinkedBlockingQueue<>();
+        mOpener = new AsyncCameraOpener(mWorker, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mMainQueue.add(runnable);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mWorker.shutdownNow();
+    }
+
+    /**
+     * A camera that takes a while to open and records what was opened and delivered
+     */
+    static class FakeCamera implements AsyncCameraOpener.Task<String> {
+        final String mName;
+        final List<String> mDelivered;
+        volatile boolean mIsOpened = false;
+
+        FakeCamera(String name, List<String> delivered) {
+            mName = name;
+            mDelivered = delivered;
+        }
+
+        @Override
+        public String open() {
+            try {
+                Thread.sleep(FAKE_OPEN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            mIsOpened = true;
+            return mName;
+        }
+
+        @Override
+        public void onOpened(String result) {
+            mDelivered.add(result);
+        }
+    }
+
+    private void drainMainQueue(int expected) throws InterruptedException {
+        for (int i = 0; i < expected; i++) {
+            Runnable runnable = mMainQueue.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Result never came back", runnable);
+            runnable.run();
+        }
+    }
+
+    @Test
+    public void openDoesNotBlockCaller() throws Exception {
+        List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        FakeCamera camera = new FakeCamera("rear", delivered);
+
+        long start = System.nanoTime();
+        mOpener.open(camera);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Caller blocked for " + elapsedMs + "ms", elapsedMs < FAKE_OPEN_MS / 3);
+        assertFalse(camera.mIsOpened);
+        assertTrue(delivered.isEmpty());
+
+        drainMainQueue(1);
+
+        assertTrue(camera.mIsOpened);
+        assertEquals(Collections.singletonList("rear"), delivered);
+    }
+
+    @Test
+    public void onlyLatestOpenIsDelivered() throws Exception {
+        List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        FakeCamera rear = new FakeCamera("rear", delivered);
+        FakeCamera front = new FakeCamera("front", delivered);
+
+        mOpener.open(rear);
+
+        // Switched cameras while the first was still opening
+        Thread.sleep(FAKE_OPEN_MS / 3);
+        int generation = mOpener.open(front);
+
+        drainMainQueue(2);
+
+        assertTrue(rear.mIsOpened);
+        assertTrue(mOpener.isCurrent(generation));
+        assertEquals(Collections.singletonList("front"), delivered);
+    }
+
+    @Test
+    public void cancelDropsResult() throws Exception {
+        List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        mOpener.open(new FakeCamera("rear", delivered));
+        mOpener.cancel();
+
+        final CountDownLatch released = new CountDownLatch(1);
+        assertTrue(mOpener.executeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                released.countDown();
+            }
+        }, 5000));
+
+        // The release ran on the worker, and the canceled open never reported back
+        assertEquals(0, released.getCount());
+
+        Runnable runnable;
+        while ((runnable = mMainQueue.poll()) != null) runnable.run();
+
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void executeAndWaitTimesOut() throws Exception {
+        mOpener.open(new FakeCamera("rear", new ArrayList<String>()));
+
+        assertFalse(mOpener.executeAndWait(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, FAKE_OPEN_MS / 10));
+    }
+}
@@ -0,0 +1,129 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class ExifOrientationWriterTest {
+    /**
+     * EXIF whose IFD0 has Make, pointing at "Acme\0" after the IFD, and Software, but no orientation
+     */
+    static byte[] exifWithoutOrientation(boolean isLittleEndian) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegHeaderParserTest.write(out, false, 0xffe1, 2 + 6 + 8 + 2 + 24 + 4 + 6);
+        out.write(JpegHeaderParser.EXIF_HEADER, 0, 6);
+        out.write(isLittleEndian ? 'I' : 'M');
+        out.write(isLittleEndian ? 'I' : 'M');
+        JpegHeaderParserTest.write(out, isLittleEndian, 42);
+        JpegHeaderParserTest.writeInt(out, isLittleEndian, 8);
+
+        // Make, ASCII, 5 chars at offset 8 + 2 + 24 + 4 = 38
+        JpegHeaderParserTest.write(out, isLittleEndian, 2, 0x010f, 2);
+        JpegHeaderParserTest.writeInt(out, isLittleEndian, 5);
+        JpegHeaderParserTest.writeInt(out, isLittleEndian, 38);
+
+        // Software, ASCII, 4 chars inline
+        JpegHeaderParserTest.write(out, isLittleEndian, 0x0131, 2);
+        JpegHeaderParserTest.writeInt(out, isLittleEndian, 4);
+        out.write(new byte[]{'v', '1', '.', 0}, 0, 4);
+
+        JpegHeaderParserTest.writeInt(out, isLittleEndian, 0);
+        out.write(new byte[]{'A', 'c', 'm', 'e', 0, 0}, 0, 6);
+
+        return out.toByteArray();
+    }
+
+    @Test
+    public void overwritesAnExistingTagInPlace() throws Exception {
+        for (boolean isLittleEndian : new boolean[]{true, false}) {
+            byte[] jpeg = JpegHeaderParserTest.insertAfterSoi(JpegHeaderParserTest.encodeJpeg(32, 16),
+                    JpegHeaderParserTest.exifSegment(1, isLittleEndian));
+
+            assertSame(jpeg, ExifOrientationWriter.setOrientation(jpeg, 8));
+            assertEquals(270, JpegHeaderParser.parse(jpeg).getDegreesToRotate());
+        }
+    }
+
+    @Test
+    public void insertsExifAfterJfif() throws Exception {
+        byte[] jpeg = JpegHeaderParserTest.encodeJpeg(32, 16);
+        byte[] tagged = ExifOrientationWriter.setOrientation(jpeg, ExifOrientationWriter.toOrientation(90, false));
+
+        JpegHeaderParser.Header header = JpegHeaderParser.parse(tagged);
+        assertEquals(6, header.getOrientation());
+        assertEquals(32, header.getWidth());
+
+        // JFIF's APP0 still comes first, and the image data is untouched
+        assertEquals(JpegHeaderParser.MARKER_SOI, tagged[1] & 0xff);
+        assertEquals(ExifOrientationWriter.MARKER_APP0, tagged[3] & 0xff);
+        assertArrayEquals(Arrays.copyOfRange(jpeg, jpeg.length - 100, jpeg.length),
+                Arrays.copyOfRange(tagged, tagged.length - 100, tagged.length));
+        assertEquals(32, ImageIO.read(new ByteArrayInputStream(tagged)).getWidth());
+    }
+
+    @Test
+    public void addsTheTagToExistingExif() throws Exception {
+        for (boolean isLittleEndian : new boolean[]{true, false}) {
+            byte[] jpeg = JpegHeaderParserTest.insertAfterSoi(JpegHeaderParserTest.encodeJpeg(32, 16),
+                    exifWithoutOrientation(isLittleEndian));
+            assertEquals(JpegHeaderParser.ORIENTATION_UNDEFINED, JpegHeaderParser.parse(jpeg).getOrientation());
+
+            byte[] tagged = ExifOrientationWriter.setOrientation(jpeg, 3);
+            assertEquals(180, JpegHeaderParser.parse(tagged).getDegreesToRotate());
+
+            // The new IFD0 keeps tags in order, and Make's offset still finds its string
+            int tiff = 2 + 4 + 6;
+            int ifd0 = tiff + JpegHeaderParser.readInt(tagged, tiff + 4, isLittleEndian);
+            int[] tags = new int[3];
+
+            for (int i = 0; i < 3; i++) {
+                tags[i] = JpegHeaderParser.readUnsignedShort(tagged, ifd0 + 2 + i * 12, isLittleEndian);
+            }
+
+            assertArrayEquals(new int[]{0x010f, 0x0112, 0x0131}, tags);
+
+            int make = tiff + JpegHeaderParser.readInt(tagged, ifd0 + 2 + 8, isLittleEndian);
+            assertEquals("Acme", new String(tagged, make, 4, "US-ASCII"));
+            assertEquals(16, ImageIO.read(new ByteArrayInputStream(tagged)).getHeight());
+        }
+    }
+
+    @Test
+    public void keepsATagThatAlreadyHolds() throws Exception {
+        // A front camera that tagged a mirrored 90 degrees
+        byte[] jpeg = JpegHeaderParserTest.insertAfterSoi(JpegHeaderParserTest.encodeJpeg(32, 16),
+                JpegHeaderParserTest.exifSegment(7, false));
+        byte[] before = jpeg.clone();
+
+        assertSame(jpeg, ExifOrientationWriter.updateOrientation(jpeg, 7));
+        assertSame(jpeg, ExifOrientationWriter.updateOrientation(jpeg, JpegHeaderParser.ORIENTATION_NORMAL));
+        assertArrayEquals(before, jpeg);
+
+        ExifOrientationWriter.updateOrientation(jpeg, 6);
+        assertEquals(6, JpegHeaderParser.parse(jpeg).getOrientation());
+
+        // Nothing to add to an upright JPEG without EXIF either
+        byte[] plain = JpegHeaderParserTest.encodeJpeg(8, 8);
+        assertSame(plain, ExifOrientationWriter.updateOrientation(plain, JpegHeaderParser.ORIENTATION_NORMAL));
+    }
+
+    @Test
+    public void mapsRotationToOrientation() throws Exception {
+        for (int degrees : YuvRotatorTest.DEGREES) {
+            for (boolean isMirrored : new boolean[]{false, true}) {
+                byte[] tagged = ExifOrientationWriter.setOrientation(JpegHeaderParserTest.encodeJpeg(8, 8),
+                        ExifOrientationWriter.toOrientation(degrees, isMirrored));
+                JpegHeaderParser.Header header = JpegHeaderParser.parse(tagged);
+
+                assertEquals(degrees, header.getDegreesToRotate());
+                assertEquals(isMirrored, header.isMirrored());
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameRecorderTest {
+    static final int WIDTH = 8;
+    static final int HEIGHT = 4;
+
+    @Test
+    public void packedFramesReadBackAsRecorded() throws Exception {
+        File file = tempFile();
+        FrameRecorder recorder = new FrameRecorder(file);
+
+        for (int i = 0; i < 3; i++) {
+            recorder.record(nv21(i), CameraFrame.FORMAT_NV21, WIDTH, HEIGHT, 90, 1000 * (i + 1));
+        }
+
+        recorder.close();
+        assertEquals(file.length(), recorder.getSize());
+
+        FrameFileReader reader = new FrameFileReader(file);
+        assertEquals(3, reader.getFrameCount());
+
+        CameraFrame frame = reader.getFrame(2);
+        assertEquals(CameraFrame.FORMAT_NV21, frame.getFormat());
+        assertEquals(WIDTH, frame.getWidth());
+        assertEquals(HEIGHT, frame.getHeight());
+        assertEquals(90, frame.getRotation());
+        assertEquals(3000, frame.getTimestampNanos());
+
+        // Laid out like CameraFrame.wrapNv21(): V first in the interleaved chroma
+        byte[] expected = nv21(2);
+        int lumaSize = WIDTH * HEIGHT;
+        assertEquals(expected[5], frame.getPlane(0).get(5));
+        assertEquals(expected[lumaSize], frame.getPlane(2).get(0));
+        assertEquals(expected[lumaSize + 1], frame.getPlane(1).get(0));
+        assertEquals(2, frame.getPixelStride(1));
+
+        assertEquals(0, reader.findFrame(500));
+        assertEquals(1, reader.findFrame(2000));
+        assertEquals(1, reader.findFrame(2999));
+        assertEquals(2, reader.findFrame(10000));
+
+        reader.close();
+    }
+
+    @Test
+    public void planesKeepTheirStrides() throws Exception {
+        File file = tempFile();
+        FrameRecorder recorder = new FrameRecorder(file);
+
+        // Camera2-style planes: padded luma rows and semi-planar chroma
+        int rowStride = WIDTH + 4;
+        ByteBuffer y = filled(rowStride * HEIGHT, 10);
+        ByteBuffer u = filled(rowStride * HEIGHT / 2 - 1, 50);
+        ByteBuffer v = filled(rowStride * HEIGHT / 2 - 1, 90);
+        y.position(3);
+
+        CameraFrame source = new CameraFrame();
+        source.setFormat(CameraFrame.FORMAT_YUV_420_888, WIDTH, HEIGHT);
+        source.setPlane(0, y, rowStride, 1);
+        source.setPlane(1, u, rowStride, 2);
+        source.setPlane(2, v, rowStride, 2);
+        source.setPlaneCount(3);
+        source.checkOut(270, 42);
+
+        recorder.record(source);
+        recorder.close();
+
+        // Recording doesn't disturb the camera's buffers
+        assertEquals(3, y.position());
+
+        FrameFileReader reader = new FrameFileReader(file);
+        CameraFrame frame = reader.getFrame(0);
+
+        assertEquals(3, frame.getPlaneCount());
+        assertEquals(270, frame.getRotation());
+        assertEquals(42, frame.getTimestampNanos());
+        assertEquals(rowStride, frame.getRowStride(0));
+        assertEquals(2, frame.getPixelStride(2));
+        assertEquals(v.capacity(), frame.getPlane(2).remaining());
+        assertEquals(10 + 7, frame.getPlane(0).get(7));
+        assertEquals(90 + 3, frame.getPlane(2).get(3));
+
+        reader.close();
+    }
+
+    @Test
+    public void missingIndexIsRebuiltFromHeaders() throws Exception {
+        File file = tempFile();
+        FrameRecorder recorder = new FrameRecorder(file);
+
+        for (int i = 0; i < 5; i++) {
+            recorder.record(nv21(i), CameraFrame.FORMAT_NV21, WIDTH, HEIGHT, 0, 100 * i);
+        }
+
+        recorder.close();
+        assertTrue(FrameFileFormat.getIndexFile(file).delete());
+
+        FrameFileReader reader = new FrameFileReader(file);
+        assertEquals(5, reader.getFrameCount());
+        assertEquals(400, reader.getTimestampNanos(4));
+        assertEquals(nv21(3)[0], reader.getFrame(3).getPlane(0).get(0));
+
+        reader.close();
+    }
+
+    @Test
+    public void recordingReplaysAsAFrameSource() throws Exception {
+        File file = tempFile();
+        FrameRecorder recorder = new FrameRecorder(file);
+
+        for (int i = 0; i < 10; i++) {
+            // A second apart, which an unpaced replay ignores
+            recorder.record(nv21(i), CameraFrame.FORMAT_NV21, WIDTH, HEIGHT, 0, i * 1000000000L);
+        }
+
+        recorder.close();
+
+        FrameFileReader reader = new FrameFileReader(file);
+        RecordedFrameSource source = new RecordedFrameSource(reader, RecordedFrameSource.UNPACED);
+        assertEquals(WIDTH, source.getWidth());
+        assertEquals(HEIGHT, source.getHeight());
+
+        final List<Long> timestamps = new ArrayList<>();
+
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(CameraFrame frame) {
+                timestamps.add(frame.getTimestampNanos());
+                frame.release();
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        source.stop();
+        assertNull(source.getError());
+        assertEquals(10, timestamps.size());
+        assertEquals(9000000000L, (long) timestamps.get(9));
+
+        reader.close();
+    }
+
+    static File tempFile() throws Exception {
+        File file = File.createTempFile("frames", ".raw");
+        file.deleteOnExit();
+        FrameFileFormat.getIndexFile(file).deleteOnExit();
+        return file;
+    }
+
+    static byte[] nv21(int seed) {
+        byte[] data = new byte[SizeUtils.getPreviewBufferSize(WIDTH, HEIGHT)];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+
+        return data;
+    }
+
+    static ByteBuffer filled(int size, int start) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) (start + i));
+        }
+
+        return buffer;
+    }
+}
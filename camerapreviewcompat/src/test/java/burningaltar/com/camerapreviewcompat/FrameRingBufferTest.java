@@ -0,0 +1,72 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameRingBufferTest {
+    static final long INTERVAL = 33333333;
+
+    @Test
+    public void keepsOnlyTheLastFrames() throws Exception {
+        FrameRingBuffer ring = new FrameRingBuffer(3, 4, 2);
+        assertEquals(-1, ring.findClosest(0));
+
+        for (int i = 1; i <= 5; i++) {
+            ring.write(frame(4, 2, (byte) i), i * INTERVAL);
+        }
+
+        assertEquals(3, ring.size());
+
+        // Frames 1 and 2 were overwritten, so 3 is the closest left
+        int slot = ring.findClosest(INTERVAL);
+        assertEquals(3 * INTERVAL, ring.getTimestampNanos(slot));
+        assertEquals(3, ring.getData(slot)[0]);
+    }
+
+    @Test
+    public void findsFrameClosestToPress() throws Exception {
+        FrameRingBuffer ring = new FrameRingBuffer(4, 4, 2);
+        for (int i = 1; i <= 4; i++) ring.write(frame(4, 2, (byte) i), i * INTERVAL);
+
+        assertEquals(2, ring.getData(ring.findClosest(2 * INTERVAL + INTERVAL / 3))[0]);
+        assertEquals(3, ring.getData(ring.findClosest(3 * INTERVAL - INTERVAL / 3))[0]);
+
+        // A press after the newest frame gets the newest
+        assertEquals(4, ring.getData(ring.findClosest(10 * INTERVAL))[0]);
+
+        ring.clear();
+        assertEquals(-1, ring.findClosest(INTERVAL));
+    }
+
+    @Test
+    public void packsPlanesAsNv21() throws Exception {
+        int width = 4;
+        int height = 2;
+
+        // Row strides wider than the frame, and semi-planar chroma with a pixel stride of 2
+        byte[] y = new byte[8 * height];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) y[row * 8 + col] = (byte) (row * width + col);
+        }
+
+        byte[] u = {10, 0, 11, 0, 0, 0, 0, 0};
+        byte[] v = {20, 0, 21, 0, 0, 0, 0, 0};
+        ByteBuffer yBuffer = ByteBuffer.wrap(y);
+
+        FrameRingBuffer ring = new FrameRingBuffer(1, width, height);
+        ring.write(yBuffer, 8, ByteBuffer.wrap(u), ByteBuffer.wrap(v), 8, 2, INTERVAL);
+
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 20, 10, 21, 11}, ring.getData(0));
+        assertEquals(0, yBuffer.position());
+    }
+
+    static byte[] frame(int width, int height, byte value) {
+        byte[] nv21 = new byte[SizeUtils.getPreviewBufferSize(width, height)];
+        Arrays.fill(nv21, value);
+        return nv21;
+    }
+}
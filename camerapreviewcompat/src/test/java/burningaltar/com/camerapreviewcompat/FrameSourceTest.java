@@ -0,0 +1,162 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameSourceTest {
+    @Test
+    public void syntheticFramesGoThroughUprightDelivery() throws Exception {
+        final int count = 50;
+        final CountDownLatch done = new CountDownLatch(count);
+        final int[] size = new int[2];
+
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        dispatcher.setUprightFrames(true);
+
+        // Unpaced with two buffers, so the source waits on releases instead of dropping
+        SyntheticFrameSource source = new SyntheticFrameSource(64, 48, CameraFrame.FORMAT_NV21,
+                PacedFrameSource.UNPACED, 2, count);
+        source.setRotation(90);
+
+        dispatcher.start(source, new FrameSource.Callback() {
+            @Override
+            public void onFrame(CameraFrame frame) {
+                size[0] = frame.getWidth();
+                size[1] = frame.getHeight();
+                frame.release();
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        source.stop();
+
+        // Sideways frames come out upright
+        assertEquals(48, size[0]);
+        assertEquals(64, size[1]);
+
+        // Frame counts can include drops guessed from timestamp gaps, but every frame was converted and delivered
+        FrameStats stats = dispatcher.getFrameStats(new FrameStats());
+        assertEquals(count, stats.getConversionHistogram().getCount());
+        assertEquals(count, stats.getListenerHistogram().getCount());
+        assertEquals(0, source.getDroppedFrameCount());
+    }
+
+    @Test
+    public void pacedSourceDropsWhileBuffersAreHeld() throws Exception {
+        final List<CameraFrame> held = new ArrayList<>();
+
+        SyntheticFrameSource source = new SyntheticFrameSource(16, 16, CameraFrame.FORMAT_NV21, 1000, 1, 5);
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(CameraFrame frame) {
+                held.add(frame);
+            }
+        });
+
+        waitUntilStopped(source);
+
+        assertEquals(1, held.size());
+        assertEquals(5, source.getFrameCount());
+        assertEquals(4, source.getDroppedFrameCount());
+    }
+
+    @Test
+    public void replaysFramesInOrder() throws Exception {
+        int frameSize = SizeUtils.getPreviewBufferSize(4, 2);
+        File file = File.createTempFile("frames", ".nv21");
+        file.deleteOnExit();
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        for (int i = 1; i <= 3; i++) {
+            byte[] frame = new byte[frameSize];
+            Arrays.fill(frame, (byte) i);
+            out.write(frame);
+        }
+
+        // A partial frame at the end is ignored
+        out.write(new byte[frameSize / 2]);
+        out.close();
+
+        final List<Byte> values = new ArrayList<>();
+        ReplayFrameSource source = new ReplayFrameSource(file, 4, 2, CameraFrame.FORMAT_NV21,
+                PacedFrameSource.UNPACED, 2, false);
+        assertEquals(3, source.getFileFrameCount());
+
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(CameraFrame frame) {
+                values.add(frame.getData()[0]);
+                frame.release();
+            }
+        });
+
+        waitUntilStopped(source);
+
+        assertEquals(Arrays.asList((byte) 1, (byte) 2, (byte) 3), values);
+        assertNull(source.getError());
+    }
+
+    @Test
+    public void lumaOnlyFramesAreViewsOfTheLuma() throws Exception {
+        final List<CameraFrame> delivered = new ArrayList<>();
+        FrameSource.Callback listener = new FrameSource.Callback() {
+            @Override
+            public void onFrame(CameraFrame frame) {
+                delivered.add(frame);
+            }
+        };
+
+        byte[] nv21 = new byte[SizeUtils.getPreviewBufferSize(4, 2)];
+        CameraFrame frame = CameraFrame.wrapNv21(nv21, 4, 2, null);
+
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        dispatcher.setLumaOnly(true);
+
+        frame.checkOut(0, 1);
+        dispatcher.deliver(frame, false, listener);
+
+        // Same frame and buffer, with the chroma hidden
+        assertSame(frame, delivered.get(0));
+        assertEquals(CameraFrame.FORMAT_Y8, frame.getFormat());
+        assertEquals(1, frame.getPlaneCount());
+        assertEquals(8, frame.getPlane(0).remaining());
+        assertSame(nv21, frame.getData());
+
+        // Upright luma is rotated into a luma-sized buffer
+        dispatcher.setUprightFrames(true);
+        frame.checkOut(90, 2);
+        dispatcher.deliver(frame, false, listener);
+
+        CameraFrame upright = delivered.get(1);
+        assertEquals(CameraFrame.FORMAT_Y8, upright.getFormat());
+        assertEquals(2, upright.getWidth());
+        assertEquals(4, upright.getHeight());
+        assertEquals(8, upright.getData().length);
+
+        // The camera's frame goes back to full YUV on its next delivery
+        dispatcher.setLumaOnly(false);
+        dispatcher.setUprightFrames(false);
+        frame.checkOut(0, 3);
+        dispatcher.deliver(frame, false, listener);
+
+        assertEquals(CameraFrame.FORMAT_NV21, frame.getFormat());
+        assertEquals(3, frame.getPlaneCount());
+    }
+
+    static void waitUntilStopped(PacedFrameSource source) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (source.isRunning() && System.nanoTime() < deadline) Thread.sleep(5);
+        assertFalse(source.isRunning());
+    }
+}
@@ -0,0 +1,108 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameStatsRecorderTest {
+    static final long INTERVAL = 33333333;
+
+    @Test
+    public void measuresFps() throws Exception {
+        FrameStatsRecorder recorder = new FrameStatsRecorder();
+        for (int i = 1; i <= 31; i++) recorder.onFrame(i * INTERVAL);
+
+        FrameStats stats = recorder.snapshot(new FrameStats());
+        assertEquals(31, stats.getFrameCount());
+        assertEquals(0, stats.getDroppedFrameCount());
+        assertEquals(30, stats.getFps(), 0.1);
+        assertEquals(31, stats.getDeliveredFps(), 0.1);
+    }
+
+    @Test
+    public void gapsOnlyCountWhenConsumerWasBusy() throws Exception {
+        FrameStatsRecorder recorder = new FrameStatsRecorder();
+        long t = INTERVAL;
+        for (int i = 0; i < 10; i++, t += INTERVAL) recorder.onFrame(t);
+
+        // A listener that takes longer than a frame
+        recorder.recordListener(3 * INTERVAL);
+        t += 2 * INTERVAL;
+        recorder.onFrame(t);
+
+        // Starved of buffers, with no time spent on the camera thread
+        recorder.onStarved();
+        t += 2 * INTERVAL;
+        recorder.onFrame(t);
+
+        FrameStats stats = recorder.snapshot(new FrameStats());
+        assertEquals(3, stats.getDroppedFrameCount());
+        assertEquals(stats.getFrameCount() - 3, stats.getDeliveredFrameCount());
+
+        // Drops don't slow down the camera's own fps
+        assertEquals(30, stats.getFps(), 0.1);
+
+        // The camera skipped two frames on its own, e.g. exposure got longer
+        t += 3 * INTERVAL;
+        recorder.onFrame(t);
+        assertEquals(3, recorder.snapshot(stats).getDroppedFrameCount());
+    }
+
+    @Test
+    public void longPauseIsNotADrop() throws Exception {
+        FrameStatsRecorder recorder = new FrameStatsRecorder();
+        recorder.onFrame(INTERVAL);
+        recorder.onFrame(2 * INTERVAL);
+        recorder.onStarved();
+        recorder.onFrame(2 * INTERVAL + 5 * FrameStatsRecorder.MAX_INTERVAL_NANOS);
+
+        FrameStats stats = recorder.snapshot(new FrameStats());
+        assertEquals(0, stats.getDroppedFrameCount());
+        assertEquals(30, stats.getFps(), 0.1);
+    }
+
+    @Test
+    public void histogramPercentiles() throws Exception {
+        FrameStatsRecorder recorder = new FrameStatsRecorder();
+
+        // 90 fast conversions, 10 slow ones
+        for (int i = 0; i < 90; i++) recorder.recordConversion(1500000);
+        for (int i = 0; i < 10; i++) recorder.recordConversion(20000000);
+
+        FrameStats.Histogram histogram = recorder.snapshot(new FrameStats()).getConversionHistogram();
+        assertEquals(100, histogram.getCount());
+        assertEquals(20000000, histogram.getMaxNanos());
+        assertEquals((90 * 1500000L + 10 * 20000000L) / 100, histogram.getMeanNanos());
+
+        // Bucket bounds, so within 2x above the real value
+        assertTrue(histogram.getPercentileNanos(50) >= 1500000 && histogram.getPercentileNanos(50) < 3000000);
+        assertEquals(20000000, histogram.getPercentileNanos(99));
+        assertEquals(0, recorder.snapshot(new FrameStats()).getListenerHistogram().getCount());
+    }
+
+    @Test
+    public void snapshotIsReusedAndResetClears() throws Exception {
+        FrameStatsRecorder recorder = new FrameStatsRecorder();
+        FrameStats stats = new FrameStats();
+
+        recorder.onFrame(INTERVAL);
+        recorder.recordListener(1000);
+        assertSame(stats, recorder.snapshot(stats));
+        assertEquals(1, stats.getFrameCount());
+
+        recorder.reset();
+        recorder.snapshot(stats);
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(0, stats.getListenerHistogram().getCount());
+        assertEquals(0, stats.getFps(), 0);
+    }
+
+    @Test
+    public void bucketBoundaries() throws Exception {
+        assertEquals(0, FrameStats.Histogram.bucketFor(999));
+        assertEquals(1, FrameStats.Histogram.bucketFor(1000));
+        assertEquals(2, FrameStats.Histogram.bucketFor(2000));
+        assertEquals(FrameStats.Histogram.BUCKET_COUNT - 1, FrameStats.Histogram.bucketFor(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, FrameStats.Histogram.getBucketUpperNanos(FrameStats.Histogram.BUCKET_COUNT - 1));
+    }
+}
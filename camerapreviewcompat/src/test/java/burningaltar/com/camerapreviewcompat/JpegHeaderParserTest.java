@@ -0,0 +1,112 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class JpegHeaderParserTest {
+    /**
+     * A real JPEG from the JDK's encoder, JFIF and no EXIF
+     */
+    static byte[] encodeJpeg(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * An EXIF APP1 segment, marker included, whose IFD0 has an orientation tag after a dummy tag
+     */
+    static byte[] exifSegment(int orientation, boolean isLittleEndian) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Length, then "Exif\0\0", byte order, 42 and IFD0 at 8
+        write(out, false, 0xffe1, 2 + 6 + 8 + 2 + 24 + 4);
+        out.write(JpegHeaderParser.EXIF_HEADER, 0, 6);
+        out.write(isLittleEndian ? 'I' : 'M');
+        out.write(isLittleEndian ? 'I' : 'M');
+        write(out, isLittleEndian, 42);
+        writeInt(out, isLittleEndian, 8);
+
+        // Two entries, an ImageWidth LONG and the orientation SHORT, then no next IFD
+        write(out, isLittleEndian, 2, 0x0100, 4);
+        writeInt(out, isLittleEndian, 1);
+        writeInt(out, isLittleEndian, 640);
+        write(out, isLittleEndian, JpegHeaderParser.TAG_ORIENTATION, 3);
+        writeInt(out, isLittleEndian, 1);
+        write(out, isLittleEndian, orientation, 0);
+        writeInt(out, isLittleEndian, 0);
+
+        return out.toByteArray();
+    }
+
+    static void write(ByteArrayOutputStream out, boolean isLittleEndian, int... shorts) {
+        for (int value : shorts) {
+            out.write(isLittleEndian ? value : value >> 8);
+            out.write(isLittleEndian ? value >> 8 : value);
+        }
+    }
+
+    static void writeInt(ByteArrayOutputStream out, boolean isLittleEndian, int value) {
+        if (isLittleEndian) {
+            write(out, true, value & 0xffff, value >>> 16);
+        } else {
+            write(out, false, value >>> 16, value & 0xffff);
+        }
+    }
+
+    /**
+     * Splice a segment in right after SOI
+     */
+    static byte[] insertAfterSoi(byte[] jpeg, byte[] segment) {
+        byte[] out = new byte[jpeg.length + segment.length];
+        System.arraycopy(jpeg, 0, out, 0, 2);
+        System.arraycopy(segment, 0, out, 2, segment.length);
+        System.arraycopy(jpeg, 2, out, 2 + segment.length, jpeg.length - 2);
+        return out;
+    }
+
+    @Test
+    public void readsFrameSize() throws Exception {
+        JpegHeaderParser.Header header = JpegHeaderParser.parse(encodeJpeg(37, 21));
+
+        assertEquals(37, header.getWidth());
+        assertEquals(21, header.getHeight());
+        assertEquals(JpegHeaderParser.ORIENTATION_UNDEFINED, header.getOrientation());
+        assertEquals(0, header.getDegreesToRotate());
+    }
+
+    @Test
+    public void readsExifOrientationInEitherByteOrder() throws Exception {
+        byte[] jpeg = encodeJpeg(64, 48);
+
+        for (boolean isLittleEndian : new boolean[]{true, false}) {
+            JpegHeaderParser.Header header = JpegHeaderParser.parse(insertAfterSoi(jpeg,
+                    exifSegment(6, isLittleEndian)));
+
+            assertEquals(64, header.getWidth());
+            assertEquals(6, header.getOrientation());
+            assertEquals(90, header.getDegreesToRotate());
+            assertFalse(header.isMirrored());
+        }
+
+        JpegHeaderParser.Header transposed = JpegHeaderParser.parse(insertAfterSoi(jpeg, exifSegment(5, false)));
+        assertEquals(270, transposed.getDegreesToRotate());
+        assertTrue(transposed.isMirrored());
+    }
+
+    @Test
+    public void rejectsWhatIsntAJpeg() throws Exception {
+        byte[] jpeg = encodeJpeg(16, 16);
+
+        assertNull(JpegHeaderParser.parse(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0, 0}));
+
+        // Cut off before the frame header
+        assertNull(JpegHeaderParser.parse(jpeg, 0, 20));
+    }
+}
@@ -0,0 +1,44 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PhotoBurstTest {
+    @Test
+    public void deliversInTimestampOrder() throws Exception {
+        PhotoBurst burst = new PhotoBurst(3, null);
+        burst.onStarted(100);
+        burst.onStarted(200);
+        burst.onStarted(300);
+
+        assertTrue(burst.isFromBurst(200));
+        assertFalse(burst.isFromBurst(250));
+
+        assertFalse(burst.add(new CapturedPhoto(new byte[1], 0, 300, 0, 0)));
+        assertFalse(burst.add(new CapturedPhoto(new byte[1], 0, 100, 0, 0)));
+        assertTrue(burst.add(new CapturedPhoto(new byte[1], 0, 200, 0, 0)));
+
+        List<CapturedPhoto> photos = burst.getPhotos();
+        assertEquals(3, photos.size());
+        assertEquals(100, photos.get(0).getTimestampNanos());
+        assertEquals(200, photos.get(1).getTimestampNanos());
+        assertEquals(300, photos.get(2).getTimestampNanos());
+    }
+
+    @Test
+    public void failuresCountTowardsCompletion() throws Exception {
+        PhotoBurst burst = new PhotoBurst(3, null);
+
+        assertFalse(burst.add(new CapturedPhoto(new byte[1], 90, 100, 0, 0)));
+        assertFalse(burst.onFailed());
+        assertTrue(burst.onFailed());
+        assertTrue(burst.isComplete());
+
+        // Only what actually arrived
+        assertEquals(1, burst.getPhotos().size());
+        assertEquals(90, burst.getPhotos().get(0).getDegreesToRotate());
+    }
+}
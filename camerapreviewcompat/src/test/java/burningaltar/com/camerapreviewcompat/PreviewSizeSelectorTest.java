@@ -0,0 +1,121 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PreviewSizeSelectorTest {
+    // Preview sizes as reported by real devices, in the order the camera lists them
+
+    // Pixel 2 rear camera, camera2 SurfaceHolder sizes
+    static final FrameSize[] PIXEL_2 = {
+            new FrameSize(4032, 3024), new FrameSize(4000, 3000), new FrameSize(3840, 2160),
+            new FrameSize(3264, 2448), new FrameSize(3200, 2400), new FrameSize(2976, 2976),
+            new FrameSize(2592, 1944), new FrameSize(2688, 1512), new FrameSize(2048, 1536),
+            new FrameSize(1920, 1080), new FrameSize(1600, 1200), new FrameSize(1440, 1080),
+            new FrameSize(1280, 960), new FrameSize(1280, 768), new FrameSize(1280, 720),
+            new FrameSize(1024, 768), new FrameSize(800, 600), new FrameSize(864, 480),
+            new FrameSize(800, 480), new FrameSize(720, 480), new FrameSize(640, 480),
+            new FrameSize(640, 360), new FrameSize(352, 288), new FrameSize(320, 240),
+            new FrameSize(176, 144)};
+
+    // Galaxy S7 rear camera, legacy getSupportedPreviewSizes()
+    static final FrameSize[] GALAXY_S7 = {
+            new FrameSize(1920, 1080), new FrameSize(1440, 1080), new FrameSize(1088, 1088),
+            new FrameSize(1280, 720), new FrameSize(1056, 704), new FrameSize(1024, 768),
+            new FrameSize(960, 720), new FrameSize(800, 450), new FrameSize(720, 720),
+            new FrameSize(720, 480), new FrameSize(640, 480), new FrameSize(352, 288),
+            new FrameSize(320, 240), new FrameSize(256, 144), new FrameSize(176, 144)};
+
+    // Nexus 5 rear camera, legacy getSupportedPreviewSizes()
+    static final FrameSize[] NEXUS_5 = {
+            new FrameSize(1920, 1080), new FrameSize(1280, 960), new FrameSize(1280, 720),
+            new FrameSize(800, 480), new FrameSize(768, 432), new FrameSize(720, 480),
+            new FrameSize(640, 480), new FrameSize(576, 432), new FrameSize(480, 320),
+            new FrameSize(384, 288), new FrameSize(352, 288), new FrameSize(320, 240),
+            new FrameSize(240, 160), new FrameSize(176, 144)};
+
+    @Test
+    public void matchesViewAspectInsteadOfLetterboxing() throws Exception {
+        PreviewSizeSelector selector = new PreviewSizeSelector();
+
+        // Full screen portrait 1080x1920, sideways to the sensor; the biggest that fits would be 1440x1080 at 4:3
+        assertEquals(new FrameSize(1920, 1080), selector.select("0", PIXEL_2, null, 1080, 1920, true));
+
+        // A 4:3 view gets a 4:3 size
+        assertEquals(new FrameSize(1440, 1080), selector.select("0", GALAXY_S7, null, 1080, 1440, true));
+
+        // A square view on a camera that offers square sizes
+        assertEquals(new FrameSize(1088, 1088), selector.select("0", GALAXY_S7, null, 1200, 1200, false));
+    }
+
+    @Test
+    public void smallPerfectMatchDoesNotBeatSharperSize() throws Exception {
+        PreviewSizeSelector selector = new PreviewSizeSelector();
+
+        // 16:10; 800x480 is closest at 5:3, but 1920x1080 is far sharper
+        assertEquals(new FrameSize(1920, 1080), selector.select("0", NEXUS_5, null, 1920, 1200, false));
+    }
+
+    @Test
+    public void pixelBudgetCapsSize() throws Exception {
+        PreviewSizeSelector selector = new PreviewSizeSelector(640 * 480, PreviewSizeSelector.NO_LIMIT);
+
+        assertEquals(new FrameSize(640, 360), selector.select("0", PIXEL_2, null, 1080, 1920, true));
+        assertEquals(new FrameSize(640, 480), selector.select("0", NEXUS_5, null, 1536, 2048, true));
+
+        // Nothing is under budget; the limit is dropped rather than failing
+        selector = new PreviewSizeSelector(100, PreviewSizeSelector.NO_LIMIT);
+        assertEquals(new FrameSize(1920, 1080), selector.select("0", NEXUS_5, null, 1080, 1920, true));
+    }
+
+    @Test
+    public void minFpsSkipsSlowSizes() throws Exception {
+        Map<FrameSize, Long> durations = new HashMap<>();
+        for (FrameSize size : PIXEL_2) durations.put(size, 33333333L);
+
+        // The full-res 16:9 size only runs at 15fps
+        durations.put(new FrameSize(3840, 2160), 66666666L);
+
+        PreviewSizeSelector selector = new PreviewSizeSelector(PreviewSizeSelector.NO_LIMIT, 30);
+        assertEquals(new FrameSize(2688, 1512), selector.select("0", PIXEL_2, durations, 2160, 3840, true));
+
+        // Without the limit, it's the sharpest one
+        assertEquals(new FrameSize(3840, 2160), new PreviewSizeSelector().select("0", PIXEL_2, durations, 2160, 3840, true));
+    }
+
+    @Test
+    public void viewSmallerThanEverySize() throws Exception {
+        // Nothing fits, so the smallest size over the view
+        assertEquals(new FrameSize(176, 144), new PreviewSizeSelector().select("0", NEXUS_5, null, 100, 80, false));
+    }
+
+    @Test
+    public void remembersChoiceUntilSizesChange() throws Exception {
+        PreviewSizeSelector selector = new PreviewSizeSelector();
+        FrameSize first = selector.select("0", PIXEL_2, null, 1080, 1920, true);
+
+        // Same camera, view and sizes: the exact same answer, from the cache
+        assertSame(first, selector.select("0", PIXEL_2.clone(), null, 1080, 1920, true));
+
+        // 1920x1080 failed and was dropped; choose again
+        List<FrameSize> remaining = new ArrayList<>(Arrays.asList(PIXEL_2));
+        remaining.remove(new FrameSize(1920, 1080));
+        assertEquals(new FrameSize(1280, 720), selector.select("0", remaining.toArray(new FrameSize[0]), null, 1080, 1920, true));
+
+        // Other cameras and orientations are chosen separately
+        assertEquals(new FrameSize(1440, 1080), selector.select("1", GALAXY_S7, null, 1080, 1440, true));
+        assertEquals(new FrameSize(1920, 1080), selector.select("0", PIXEL_2, null, 1920, 1080, false));
+    }
+
+    @Test
+    public void noSizes() throws Exception {
+        assertNull(new PreviewSizeSelector().select("0", new FrameSize[0], null, 1080, 1920, true));
+    }
+}
@@ -0,0 +1,93 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RoiMapperTest {
+    static final int WIDTH = 16;
+    static final int HEIGHT = 12;
+
+    @Test
+    public void mapsViewCoordinatesThroughMargins() throws Exception {
+        // A 200x100 preview drawn 50px down in a 200x200 view; the region covers its middle half
+        RoiMapper roi = RoiMapper.fromView(50, 75, 150, 125, 0, 50, 200, 100);
+
+        assertEquals(0.25f, roi.getLeft(), 0.001f);
+        assertEquals(0.25f, roi.getTop(), 0.001f);
+        assertEquals(0.75f, roi.getRight(), 0.001f);
+        assertEquals(0.75f, roi.getBottom(), 0.001f);
+
+        // Anything over the margins is clamped to the preview
+        assertEquals(0, RoiMapper.fromView(0, 0, 200, 200, 0, 50, 200, 100).getTop(), 0);
+    }
+
+    @Test
+    public void alignsToChroma() throws Exception {
+        int[] rect = new RoiMapper(0.1f, 0.1f, 0.5f, 0.5f).mapToFrame(WIDTH, HEIGHT, 0, false);
+
+        // 1.6 -> 0, 1.2 -> 0, 8 -> 8, 6 -> 6
+        assertArrayEquals(new int[]{0, 0, 8, 6}, rect);
+
+        for (int edge : new RoiMapper(0.13f, 0.27f, 0.71f, 0.93f).mapToFrame(WIDTH, HEIGHT, 90, true)) {
+            assertEquals(0, edge % 2);
+        }
+    }
+
+    @Test
+    public void cropThenRotateMatchesRotateThenCrop() throws Exception {
+        byte[] i420 = YuvRotatorTest.labeledI420(WIDTH, HEIGHT);
+        byte[] nv21 = YuvConverterTest.i420ToNv21(i420, WIDTH, HEIGHT);
+        RoiMapper roi = new RoiMapper(0.25f, 0.5f, 0.75f, 1);
+
+        for (int degrees : YuvRotatorTest.DEGREES) {
+            for (boolean mirror : new boolean[]{false, true}) {
+                int uprightWidth = YuvRotator.isSideways(degrees) ? HEIGHT : WIDTH;
+                int uprightHeight = YuvRotator.isSideways(degrees) ? WIDTH : HEIGHT;
+
+                // The region of the upright frame, the way the user sees it
+                CameraFrame upright = CameraFrame.wrapI420(
+                        YuvRotator.rotateI420(i420, WIDTH, HEIGHT, degrees, mirror, null), uprightWidth,
+                        uprightHeight, null);
+                upright.setCrop(uprightWidth / 4, uprightHeight / 2, uprightWidth * 3 / 4, uprightHeight);
+                byte[] expected = YuvRotator.rotate(upright, 0, false, null, null);
+
+                // The region cropped from the sensor frame, then turned upright
+                CameraFrame frame = CameraFrame.wrapNv21(nv21, WIDTH, HEIGHT, null);
+                int[] rect = roi.mapToFrame(WIDTH, HEIGHT, degrees, mirror);
+                frame.setCrop(rect[0], rect[1], rect[2], rect[3]);
+                byte[] actual = YuvRotator.rotate(frame, degrees, mirror, null, null);
+
+                assertArrayEquals(degrees + (mirror ? " mirrored" : ""), expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void croppedFramesConvertLikeTheWholeFrame() throws Exception {
+        byte[] i420 = YuvConverterTest.randomI420(WIDTH, HEIGHT, 9);
+        byte[] nv21 = YuvConverterTest.i420ToNv21(i420, WIDTH, HEIGHT);
+        int[] whole = YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, null);
+
+        CameraFrame frame = CameraFrame.wrapNv21(nv21, WIDTH, HEIGHT, null);
+        frame.checkOut(0, 0);
+        frame.setCrop(4, 2, 10, 8);
+
+        assertNull(frame.getData());
+        assertEquals(6, frame.getWidth());
+
+        int[] cropped = YuvConverter.toArgb(frame, null);
+
+        for (int y = 0; y < 6; y++) {
+            assertArrayEquals(Arrays.copyOfRange(whole, (y + 2) * WIDTH + 4, (y + 2) * WIDTH + 10),
+                    Arrays.copyOfRange(cropped, y * 6, y * 6 + 6));
+        }
+
+        // Released frames go back to whole
+        frame.release();
+        assertSame(nv21, frame.getData());
+        assertEquals(WIDTH, frame.getWidth());
+    }
+}
@@ -0,0 +1,101 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SizeClassPoolTest {
+    static class Item {
+        final int mBytes;
+
+        Item(int bytes) {
+            mBytes = bytes;
+        }
+    }
+
+    static class ItemPool extends SizeClassPool<Item> {
+        final List<Item> mEvicted = new ArrayList<>();
+
+        ItemPool(long maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        int sizeOf(Item item) {
+            return item.mBytes;
+        }
+
+        @Override
+        boolean fits(Item item, int width, int height, int bytes) {
+            return item.mBytes >= bytes;
+        }
+
+        @Override
+        void onEvicted(Item item) {
+            mEvicted.add(item);
+        }
+    }
+
+    @Test
+    public void sizeClassesArePowersOfTwo() throws Exception {
+        assertEquals(0, SizeClassPool.sizeClass(1));
+        assertEquals(10, SizeClassPool.sizeClass(1024));
+        assertEquals(11, SizeClassPool.sizeClass(1025));
+    }
+
+    @Test
+    public void reusesOnlyWhatFitsAndIsntTooBig() throws Exception {
+        ItemPool pool = new ItemPool(100000);
+        Item small = new Item(1000);
+        Item medium = new Item(3000);
+        Item huge = new Item(50000);
+
+        pool.put(small);
+        pool.put(medium);
+        pool.put(huge);
+
+        // 2500 is in the 4096 class; medium fits there
+        assertSame(medium, pool.take(0, 0, 2500));
+
+        // Nothing left between 2500 and 8192, and huge is too big to hand out
+        assertNull(pool.take(0, 0, 2500));
+        assertSame(small, pool.take(0, 0, 1000));
+
+        assertEquals(2, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(50000, pool.getSize());
+    }
+
+    @Test
+    public void evictsLeastRecentlyReturned() throws Exception {
+        ItemPool pool = new ItemPool(3000);
+        Item first = new Item(1000);
+        Item second = new Item(1000);
+        Item third = new Item(1000);
+
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+        assertFalse(pool.put(third));
+
+        // A fourth pushes out the first one returned
+        pool.put(new Item(1000));
+        assertEquals(1, pool.getEvictionCount());
+        assertSame(first, pool.mEvicted.get(0));
+
+        // Too big for the whole pool, so it's turned away instead of emptying it
+        assertFalse(pool.put(new Item(4000)));
+
+        pool.trimToSize(1000);
+        assertEquals(1, pool.getCount());
+        assertSame(second, pool.mEvicted.get(1));
+        assertSame(third, pool.mEvicted.get(2));
+
+        pool.clear();
+        assertEquals(0, pool.getSize());
+        assertEquals(4, pool.getEvictionCount());
+    }
+}
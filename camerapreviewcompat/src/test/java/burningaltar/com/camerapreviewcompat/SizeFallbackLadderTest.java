@@ -0,0 +1,68 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SizeFallbackLadderTest {
+    static final FrameSize[] SIZES = {
+            new FrameSize(4032, 3024), new FrameSize(1920, 1080), new FrameSize(640, 480),
+            new FrameSize(1280, 720), new FrameSize(2560, 1440), new FrameSize(320, 240)};
+
+    @Test
+    public void ranksFittingSizesBeforeOversized() throws Exception {
+        SizeFallbackLadder ladder = new SizeFallbackLadder(SIZES, 1920, 1200, false, null);
+
+        assertArrayEquals(new FrameSize[]{
+                new FrameSize(1920, 1080), new FrameSize(1280, 720), new FrameSize(640, 480),
+                new FrameSize(320, 240), new FrameSize(2560, 1440), new FrameSize(4032, 3024)}, ladder.getRanked());
+    }
+
+    @Test
+    public void sidewaysSwapsBounds() throws Exception {
+        // A portrait view 1200 wide compares against landscape camera sizes as 1920x1200
+        SizeFallbackLadder ladder = new SizeFallbackLadder(SIZES, 1200, 1920, true, null);
+        assertEquals(new FrameSize(1920, 1080), ladder.current());
+    }
+
+    @Test
+    public void sizeThatWorkedBeforeGoesFirst() throws Exception {
+        FrameSize preferred = new FrameSize(640, 480);
+        SizeFallbackLadder ladder = new SizeFallbackLadder(SIZES, 1920, 1200, false, preferred);
+
+        FrameSize[] ranked = ladder.getRanked();
+        assertEquals(preferred, ranked[0]);
+        assertEquals(SIZES.length, ranked.length);
+        assertEquals(new FrameSize(1920, 1080), ranked[1]);
+
+        // A remembered size the camera no longer offers is ignored
+        ladder = new SizeFallbackLadder(SIZES, 1920, 1200, false, new FrameSize(800, 600));
+        assertEquals(new FrameSize(1920, 1080), ladder.current());
+        assertEquals(SIZES.length, ladder.getRanked().length);
+    }
+
+    @Test
+    public void stepsDownAndCountsRetries() throws Exception {
+        SizeFallbackLadder ladder = new SizeFallbackLadder(SIZES, 1920, 1200, false, null, 1000);
+
+        assertEquals(0, ladder.getRetries());
+        assertEquals(new FrameSize(1280, 720), ladder.next());
+        assertEquals(new FrameSize(640, 480), ladder.next());
+        assertEquals(2, ladder.getRetries());
+        assertEquals(new FrameSize(640, 480), ladder.current());
+        assertEquals(4000, ladder.getElapsedNanos(5000));
+
+        for (int i = 0; i < SIZES.length; i++) ladder.next();
+
+        assertNull(ladder.current());
+        assertNull(ladder.next());
+        assertEquals(SIZES.length, ladder.getRetries());
+    }
+
+    @Test
+    public void emptyLadder() throws Exception {
+        SizeFallbackLadder ladder = new SizeFallbackLadder(new FrameSize[0], 1920, 1080, false, null);
+        assertNull(ladder.current());
+        assertNull(ladder.next());
+    }
+}
@@ -0,0 +1,30 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SizeUtilsTest {
+    static final FrameSize[] SIZES = {
+            new FrameSize(4032, 3024), new FrameSize(1920, 1080), new FrameSize(1280, 720), new FrameSize(640, 480)};
+
+    @Test
+    public void biggestSizeThatFits() throws Exception {
+        assertEquals(1, SizeUtils.getBiggestSizeIdx(SIZES, 1920, 1200, false));
+        assertEquals(2, SizeUtils.getBiggestSizeIdx(SIZES, 1280, 1000, false));
+
+        // A portrait view compares against landscape camera sizes
+        assertEquals(1, SizeUtils.getBiggestSizeIdx(SIZES, 1200, 1920, true));
+
+        // Nothing fits
+        assertEquals(0, SizeUtils.getBiggestSizeIdx(SIZES, 100, 100, false));
+    }
+
+    @Test
+    public void inSampleSizeKeepsBothSidesLarger() throws Exception {
+        assertEquals(1, SizeUtils.calculateInSampleSize(640, 480, 640, 480));
+        assertEquals(4, SizeUtils.calculateInSampleSize(4032, 3024, 640, 480));
+        assertEquals(2, SizeUtils.calculateInSampleSize(4032, 3024, 1280, 720));
+        assertEquals(1, SizeUtils.calculateInSampleSize(4032, 3024, 3840, 2160));
+    }
+}
@@ -0,0 +1,109 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StripedExecutorTest {
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 722;
+
+    StripedExecutor mExecutor = new StripedExecutor(StripedExecutor.newDaemonPool(3), 4, 0);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    static byte[] randomYuv(long seed) {
+        byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(seed).nextBytes(yuv);
+        return yuv;
+    }
+
+    @Test
+    public void parallelArgbMatchesSequential() throws Exception {
+        byte[] nv21 = randomYuv(1);
+
+        assertArrayEquals(YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, null),
+                YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, null, mExecutor));
+        assertArrayEquals(YuvConverter.i420ToArgb(nv21, WIDTH, HEIGHT, null),
+                YuvConverter.i420ToArgb(nv21, WIDTH, HEIGHT, null, mExecutor));
+    }
+
+    @Test
+    public void parallelRgbMatchesSequential() throws Exception {
+        byte[] nv21 = randomYuv(2);
+
+        assertArrayEquals(YuvConverter.nv21ToRgb(nv21, WIDTH, HEIGHT, null),
+                YuvConverter.nv21ToRgb(nv21, WIDTH, HEIGHT, null, mExecutor));
+    }
+
+    @Test
+    public void bandsCoverEveryRowOnceOnEvenBoundaries() throws Exception {
+        final int[] hits = new int[HEIGHT];
+
+        mExecutor.run(HEIGHT, WIDTH, new StripedExecutor.RowTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                assertEquals(0, rowStart % 2);
+
+                for (int row = rowStart; row < rowEnd; row++) {
+                    synchronized (hits) {
+                        hits[row]++;
+                    }
+                }
+            }
+        });
+
+        for (int row = 0; row < HEIGHT; row++) {
+            assertEquals("row " + row, 1, hits[row]);
+        }
+    }
+
+    @Test
+    public void smallFramesRunOnCaller() throws Exception {
+        StripedExecutor executor = new StripedExecutor(StripedExecutor.newDaemonPool(2), 3, StripedExecutor.DEFAULT_MIN_PIXELS);
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger calls = new AtomicInteger();
+
+        executor.run(240, 320, new StripedExecutor.RowTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                assertSame(caller, Thread.currentThread());
+                assertEquals(0, rowStart);
+                assertEquals(240, rowEnd);
+                calls.incrementAndGet();
+            }
+        });
+
+        assertEquals(1, calls.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void callerFinishesWorkWhenPoolIsBusy() throws Exception {
+        // Splitting work from the pool's only thread would deadlock if the caller just waited on the pool
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        final StripedExecutor executor = new StripedExecutor(pool, 4, 0);
+        final int[] argb = new int[WIDTH * HEIGHT];
+        final byte[] nv21 = randomYuv(3);
+
+        pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, argb, executor);
+            }
+        }).get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals(YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, null), argb);
+        executor.shutdown();
+    }
+}
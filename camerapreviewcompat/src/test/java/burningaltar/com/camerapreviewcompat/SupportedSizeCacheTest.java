@@ -0,0 +1,259 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SupportedSizeCacheTest {
+    static final String REAR = "0";
+    static final String FRONT = "1";
+
+    // Stand-ins for the surface classes sizes are keyed by
+    static final Class<?> PREVIEW = Object.class;
+    static final Class<?> JPEG = String.class;
+
+    static final FrameSize[] REAR_SIZES = {
+            new FrameSize(1920, 1080), new FrameSize(1280, 720), new FrameSize(640, 480)};
+    static final FrameSize[] FRONT_SIZES = {
+            new FrameSize(1280, 720), new FrameSize(640, 480), new FrameSize(320, 240)};
+
+    static class MapStore implements SupportedSizeCache.Store {
+        final Map<String, String> mValues = new HashMap<>();
+
+        @Override
+        public synchronized String get(String key) {
+            return mValues.get(key);
+        }
+
+        @Override
+        public synchronized void put(String key, String value) {
+            mValues.put(key, value);
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            mValues.remove(key);
+        }
+
+        @Override
+        public synchronized void removeAll(String prefix) {
+            Iterator<String> keys = mValues.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().startsWith(prefix)) keys.remove();
+            }
+        }
+
+        @Override
+        public synchronized void clear() {
+            mValues.clear();
+        }
+    }
+
+    SupportedSizeCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new SupportedSizeCache();
+    }
+
+    @Test
+    public void switchingCamerasUsesEachCamerasOwnSizes() throws Exception {
+        assertArrayEquals(REAR_SIZES, mCache.get(REAR, PREVIEW, REAR_SIZES));
+        assertArrayEquals(FRONT_SIZES, mCache.get(FRONT, PREVIEW, FRONT_SIZES));
+
+        // Back to the rear camera: still its own list, not the front's
+        assertArrayEquals(REAR_SIZES, mCache.get(REAR, PREVIEW, FRONT_SIZES));
+    }
+
+    @Test
+    public void failedSizeOnlyRemovedForThatCamera() throws Exception {
+        mCache.get(REAR, PREVIEW, REAR_SIZES);
+        mCache.get(FRONT, PREVIEW, FRONT_SIZES);
+        mCache.get(REAR, JPEG, REAR_SIZES);
+
+        assertTrue(mCache.remove(REAR, PREVIEW, new FrameSize(1280, 720)));
+        assertFalse(mCache.remove(REAR, PREVIEW, new FrameSize(1280, 720)));
+
+        assertArrayEquals(new FrameSize[]{new FrameSize(1920, 1080), new FrameSize(640, 480)},
+                mCache.get(REAR, PREVIEW, REAR_SIZES));
+        assertArrayEquals(FRONT_SIZES, mCache.get(FRONT, PREVIEW, FRONT_SIZES));
+        assertArrayEquals(REAR_SIZES, mCache.get(REAR, JPEG, REAR_SIZES));
+    }
+
+    @Test
+    public void handedOutArraysNeverChange() throws Exception {
+        FrameSize[] sizes = mCache.get(REAR, PREVIEW, REAR_SIZES);
+        mCache.remove(REAR, PREVIEW, new FrameSize(1920, 1080));
+
+        assertEquals(3, sizes.length);
+        assertEquals(new FrameSize(1920, 1080), sizes[0]);
+    }
+
+    @Test
+    public void invalidateOnlyResetsThatCamera() throws Exception {
+        mCache.get(REAR, PREVIEW, REAR_SIZES);
+        mCache.get(FRONT, PREVIEW, FRONT_SIZES);
+        mCache.remove(REAR, PREVIEW, new FrameSize(1920, 1080));
+        mCache.remove(FRONT, PREVIEW, new FrameSize(1280, 720));
+
+        mCache.invalidate(REAR);
+
+        assertArrayEquals(REAR_SIZES, mCache.get(REAR, PREVIEW, REAR_SIZES));
+        assertEquals(2, mCache.get(FRONT, PREVIEW, FRONT_SIZES).length);
+
+        mCache.invalidateAll();
+        assertArrayEquals(FRONT_SIZES, mCache.get(FRONT, PREVIEW, FRONT_SIZES));
+    }
+
+    @Test
+    public void storeCarriesFailuresToTheNextLaunch() throws Exception {
+        MapStore store = new MapStore();
+        mCache.setStore(store);
+        mCache.get(REAR, PREVIEW, REAR_SIZES);
+        mCache.remove(REAR, PREVIEW, new FrameSize(1920, 1080));
+
+        SupportedSizeCache nextLaunch = new SupportedSizeCache();
+        nextLaunch.setStore(store);
+
+        assertArrayEquals(new FrameSize[]{new FrameSize(1280, 720), new FrameSize(640, 480)},
+                nextLaunch.get(REAR, PREVIEW, REAR_SIZES));
+        assertArrayEquals(FRONT_SIZES, nextLaunch.get(FRONT, PREVIEW, FRONT_SIZES));
+
+        nextLaunch.invalidate(REAR);
+        assertNull(store.get(SupportedSizeCache.key(REAR, PREVIEW)));
+    }
+
+    @Test
+    public void corruptStoreFallsBackToDefaults() throws Exception {
+        MapStore store = new MapStore();
+        store.put(SupportedSizeCache.key(REAR, PREVIEW), "not a size");
+        mCache.setStore(store);
+
+        assertArrayEquals(REAR_SIZES, mCache.get(REAR, PREVIEW, REAR_SIZES));
+        assertEquals(SupportedSizeCache.format(REAR_SIZES), store.get(SupportedSizeCache.key(REAR, PREVIEW)));
+    }
+
+    @Test
+    public void concurrentRemovalsAllLand() throws Exception {
+        int count = 64;
+        final FrameSize[] sizes = new FrameSize[count];
+        for (int i = 0; i < count; i++) sizes[i] = new FrameSize(i + 1, i + 1);
+
+        mCache.get(REAR, PREVIEW, sizes);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger removed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    // Every thread tries to remove every even size; each should be removed exactly once
+                    for (int i = 0; i < sizes.length; i += 2) {
+                        if (mCache.remove(REAR, PREVIEW, sizes[i])) removed.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(count / 2, removed.get());
+
+        FrameSize[] remaining = mCache.get(REAR, PREVIEW, sizes);
+        assertEquals(count / 2, remaining.length);
+
+        for (FrameSize size : remaining) {
+            assertEquals(0, size.getWidth() % 2);
+        }
+    }
+
+    @Test
+    public void remembersWorkingSizePerCamera() throws Exception {
+        MapStore store = new MapStore();
+        mCache.setStore(store);
+
+        mCache.setWorkingSize(REAR, PREVIEW, "view", new FrameSize(1280, 720));
+        assertEquals(new FrameSize(1280, 720), mCache.getWorkingSize(REAR, PREVIEW, "view"));
+        assertNull(mCache.getWorkingSize(FRONT, PREVIEW, "view"));
+
+        SupportedSizeCache nextLaunch = new SupportedSizeCache();
+        nextLaunch.setStore(store);
+        assertEquals(new FrameSize(1280, 720), nextLaunch.getWorkingSize(REAR, PREVIEW, "view"));
+
+        nextLaunch.invalidate(REAR);
+        assertNull(nextLaunch.getWorkingSize(REAR, PREVIEW, "view"));
+    }
+
+    @Test
+    public void invalidateDropsStoredEntriesThatWereNeverLoaded() throws Exception {
+        MapStore store = new MapStore();
+        mCache.setStore(store);
+        mCache.get(REAR, PREVIEW, REAR_SIZES);
+        mCache.get(REAR, JPEG, REAR_SIZES);
+        mCache.setWorkingSize(REAR, PREVIEW, "view", new FrameSize(1280, 720));
+        mCache.get(FRONT, PREVIEW, FRONT_SIZES);
+
+        SupportedSizeCache nextLaunch = new SupportedSizeCache();
+        nextLaunch.setStore(store);
+        nextLaunch.invalidate(REAR);
+
+        assertNull(store.get(SupportedSizeCache.key(REAR, PREVIEW)));
+        assertNull(store.get(SupportedSizeCache.key(REAR, JPEG)));
+        assertNull(store.get(SupportedSizeCache.workingKey(REAR, PREVIEW, "view")));
+        assertNull(nextLaunch.getWorkingSize(REAR, PREVIEW, "view"));
+        assertEquals(SupportedSizeCache.format(FRONT_SIZES), store.get(SupportedSizeCache.key(FRONT, PREVIEW)));
+    }
+
+    /**
+     * The first size to try, the same way the camera2 preview picks it
+     */
+    FrameSize selectFirst(PreviewSizeSelector selector, int viewWidth, int viewHeight) {
+        FrameSize[] sizes = mCache.get(REAR, PREVIEW, REAR_SIZES);
+        FrameSize working = mCache.getWorkingSize(REAR, PREVIEW,
+                selector.getKey(REAR, viewWidth, viewHeight, false));
+        return working != null ? working : selector.select(REAR, sizes, null, viewWidth, viewHeight, false);
+    }
+
+    @Test
+    public void workingSizeDoesntOverrideADifferentSelection() throws Exception {
+        PreviewSizeSelector selector = new PreviewSizeSelector();
+        assertEquals(new FrameSize(1920, 1080), selectFirst(selector, 1920, 1080));
+
+        // 1920x1080 failed to configure, and the ladder landed on 1280x720
+        mCache.remove(REAR, PREVIEW, new FrameSize(1920, 1080));
+        mCache.setWorkingSize(REAR, PREVIEW, selector.getKey(REAR, 1920, 1080, false), new FrameSize(1280, 720));
+        assertEquals(new FrameSize(1280, 720), selectFirst(selector, 1920, 1080));
+
+        // A smaller view, or a pixel budget, picks again rather than reusing it
+        assertEquals(new FrameSize(640, 480), selectFirst(selector, 640, 480));
+        assertEquals(new FrameSize(640, 480), selectFirst(new PreviewSizeSelector(640 * 480, 0), 1920, 1080));
+
+        // Nor is it reused once it fails too
+        mCache.remove(REAR, PREVIEW, new FrameSize(1280, 720));
+        assertEquals(new FrameSize(640, 480), selectFirst(selector, 1920, 1080));
+    }
+
+    @Test
+    public void frameSizeRoundTrips() throws Exception {
+        assertArrayEquals(REAR_SIZES, SupportedSizeCache.parse(SupportedSizeCache.format(REAR_SIZES)));
+        assertEquals(0, SupportedSizeCache.parse("").length);
+        assertEquals(new FrameSize(640, 480), FrameSize.parse("640x480"));
+    }
+}
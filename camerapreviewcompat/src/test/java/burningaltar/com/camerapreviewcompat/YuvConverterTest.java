@@ -0,0 +1,147 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest {
+    static final int WIDTH = 6;
+    static final int HEIGHT = 4;
+
+    static byte[] randomI420(int width, int height, long seed) {
+        byte[] i420 = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(i420);
+        return i420;
+    }
+
+    static byte[] i420ToNv21(byte[] i420, int width, int height) {
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 4;
+
+        byte[] nv21 = new byte[i420.length];
+        System.arraycopy(i420, 0, nv21, 0, lumaSize);
+
+        for (int i = 0; i < chromaSize; i++) {
+            nv21[lumaSize + i * 2] = i420[lumaSize + chromaSize + i];
+            nv21[lumaSize + i * 2 + 1] = i420[lumaSize + i];
+        }
+
+        return nv21;
+    }
+
+    @Test
+    public void blackAndGray() throws Exception {
+        assertEquals(0xff000000, YuvConverter.yuvToArgb(16, 128, 128));
+        assertEquals(0xff000000, YuvConverter.yuvToArgb(0, 128, 128));
+
+        int gray = YuvConverter.yuvToArgb(128, 128, 128);
+        assertEquals(gray & 0xff, (gray >> 8) & 0xff);
+        assertEquals(gray & 0xff, (gray >> 16) & 0xff);
+    }
+
+    @Test
+    public void nv21MatchesI420() throws Exception {
+        byte[] i420 = randomI420(WIDTH, HEIGHT, 1);
+        byte[] nv21 = i420ToNv21(i420, WIDTH, HEIGHT);
+
+        int[] fromI420 = YuvConverter.i420ToArgb(i420, WIDTH, HEIGHT, null);
+        int[] fromNv21 = YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, null);
+
+        assertArrayEquals(fromI420, fromNv21);
+    }
+
+    @Test
+    public void chromaIsSharedPer2x2Block() throws Exception {
+        byte[] i420 = randomI420(WIDTH, HEIGHT, 2);
+        int[] argb = YuvConverter.i420ToArgb(i420, WIDTH, HEIGHT, null);
+
+        int lumaSize = WIDTH * HEIGHT;
+        int chromaSize = lumaSize / 4;
+
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                int uvIdx = (row / 2) * (WIDTH / 2) + col / 2;
+                int expected = YuvConverter.yuvToArgb(i420[row * WIDTH + col] & 0xff,
+                        i420[lumaSize + uvIdx] & 0xff, i420[lumaSize + chromaSize + uvIdx] & 0xff);
+
+                assertEquals("pixel " + col + ", " + row, expected, argb[row * WIDTH + col]);
+            }
+        }
+    }
+
+    @Test
+    public void rgbMatchesArgb() throws Exception {
+        byte[] nv21 = i420ToNv21(randomI420(WIDTH, HEIGHT, 3), WIDTH, HEIGHT);
+
+        int[] argb = YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, null);
+        byte[] rgb = YuvConverter.nv21ToRgb(nv21, WIDTH, HEIGHT, null);
+
+        assertEquals(argb.length * 3, rgb.length);
+
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals((argb[i] >> 16) & 0xff, rgb[i * 3] & 0xff);
+            assertEquals((argb[i] >> 8) & 0xff, rgb[i * 3 + 1] & 0xff);
+            assertEquals(argb[i] & 0xff, rgb[i * 3 + 2] & 0xff);
+        }
+    }
+
+    @Test
+    public void paddedPlanesMatchPacked() throws Exception {
+        byte[] i420 = randomI420(WIDTH, HEIGHT, 4);
+        int lumaSize = WIDTH * HEIGHT;
+        int chromaSize = lumaSize / 4;
+
+        // Semi-planar UV with 2 bytes of row padding, like many camera2 devices
+        int yStride = WIDTH + 2;
+        int uvStride = WIDTH + 2;
+
+        ByteBuffer y = ByteBuffer.allocate(yStride * HEIGHT);
+        ByteBuffer uv = ByteBuffer.allocate(uvStride * HEIGHT / 2);
+
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                y.put(row * yStride + col, i420[row * WIDTH + col]);
+            }
+        }
+
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int col = 0; col < WIDTH / 2; col++) {
+                uv.put(row * uvStride + col * 2, i420[lumaSize + row * WIDTH / 2 + col]);
+                uv.put(row * uvStride + col * 2 + 1, i420[lumaSize + chromaSize + row * WIDTH / 2 + col]);
+            }
+        }
+
+        uv.position(1);
+        ByteBuffer v = uv.slice();
+        uv.position(0);
+
+        int[] fromPlanes = YuvConverter.planesToArgb(y, yStride, uv, v, uvStride, 2, WIDTH, HEIGHT, null);
+
+        assertArrayEquals(YuvConverter.i420ToArgb(i420, WIDTH, HEIGHT, null), fromPlanes);
+        assertEquals(0, y.position());
+    }
+
+    @Test
+    public void frameMatchesNv21() throws Exception {
+        byte[] nv21 = i420ToNv21(randomI420(WIDTH, HEIGHT, 5), WIDTH, HEIGHT);
+        CameraFrame frame = CameraFrame.wrapNv21(nv21, WIDTH, HEIGHT, null);
+
+        int[] expected = YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, null);
+
+        assertArrayEquals(expected, YuvConverter.toArgb(frame, null));
+        assertArrayEquals(expected, YuvConverter.planesToArgb(frame.getPlane(0), frame.getRowStride(0), frame.getPlane(1),
+                frame.getPlane(2), frame.getRowStride(1), frame.getPixelStride(1), WIDTH, HEIGHT, null));
+    }
+
+    @Test
+    public void reusesOutputBuffer() throws Exception {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 2 * 3 / 2];
+        int[] out = new int[WIDTH * HEIGHT + 10];
+
+        assertSame(out, YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, out));
+        assertNotSame(out, YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT * 2, out));
+    }
+}
@@ -0,0 +1,204 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class YuvRotatorTest {
+    static final int WIDTH = 6;
+    static final int HEIGHT = 4;
+    static final int[] DEGREES = {0, 90, 180, 270};
+
+    /**
+     * Each source pixel of a plane holds a value that encodes its own position
+     */
+    static byte[] labeledI420(int width, int height) {
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 4;
+        byte[] i420 = new byte[lumaSize + chromaSize * 2];
+
+        for (int i = 0; i < lumaSize; i++) i420[i] = (byte) i;
+        for (int i = 0; i < chromaSize; i++) {
+            i420[lumaSize + i] = (byte) (100 + i);
+            i420[lumaSize + chromaSize + i] = (byte) (200 + i);
+        }
+
+        return i420;
+    }
+
+    /**
+     * Where the source pixel (x, y) should end up, worked out from the rotated corners
+     */
+    static int[] expectedPosition(int x, int y, int width, int height, int degrees, boolean mirror) {
+        int dx;
+        int dy;
+        int outWidth = YuvRotator.isSideways(degrees) ? height : width;
+
+        switch (degrees) {
+            case 90:
+                dx = height - 1 - y;
+                dy = x;
+                break;
+            case 180:
+                dx = width - 1 - x;
+                dy = height - 1 - y;
+                break;
+            case 270:
+                dx = y;
+                dy = width - 1 - x;
+                break;
+            default:
+                dx = x;
+                dy = y;
+        }
+
+        if (mirror) dx = outWidth - 1 - dx;
+        return new int[]{dx, dy};
+    }
+
+    static void assertRotatedI420(byte[] src, byte[] dst, int width, int height, int degrees, boolean mirror) {
+        int outWidth = YuvRotator.isSideways(degrees) ? height : width;
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 4;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int[] d = expectedPosition(x, y, width, height, degrees, mirror);
+                assertEquals("luma " + x + "," + y + " at " + degrees + (mirror ? " mirrored" : ""),
+                        src[y * width + x], dst[d[1] * outWidth + d[0]]);
+            }
+        }
+
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int[] d = expectedPosition(x, y, width / 2, height / 2, degrees, mirror);
+                int srcIdx = y * (width / 2) + x;
+                int dstIdx = d[1] * (outWidth / 2) + d[0];
+
+                assertEquals(src[lumaSize + srcIdx], dst[lumaSize + dstIdx]);
+                assertEquals(src[lumaSize + chromaSize + srcIdx], dst[lumaSize + chromaSize + dstIdx]);
+            }
+        }
+    }
+
+    @Test
+    public void rotatesI420() throws Exception {
+        byte[] src = labeledI420(WIDTH, HEIGHT);
+
+        for (int degrees : DEGREES) {
+            for (boolean mirror : new boolean[]{false, true}) {
+                byte[] dst = YuvRotator.rotateI420(src, WIDTH, HEIGHT, degrees, mirror, null);
+                assertRotatedI420(src, dst, WIDTH, HEIGHT, degrees, mirror);
+            }
+        }
+    }
+
+    @Test
+    public void rotatesNv21() throws Exception {
+        byte[] i420 = labeledI420(WIDTH, HEIGHT);
+        byte[] nv21 = YuvConverterTest.i420ToNv21(i420, WIDTH, HEIGHT);
+
+        for (int degrees : DEGREES) {
+            for (boolean mirror : new boolean[]{false, true}) {
+                int outWidth = YuvRotator.isSideways(degrees) ? HEIGHT : WIDTH;
+                int outHeight = YuvRotator.isSideways(degrees) ? WIDTH : HEIGHT;
+
+                byte[] expected = YuvRotator.rotateI420(i420, WIDTH, HEIGHT, degrees, mirror, null);
+                byte[] dst = YuvRotator.rotateNv21(nv21, WIDTH, HEIGHT, degrees, mirror, null);
+
+                assertArrayEquals(YuvConverterTest.i420ToNv21(expected, outWidth, outHeight), dst);
+            }
+        }
+    }
+
+    @Test
+    public void rotatesStridedPlanes() throws Exception {
+        byte[] i420 = labeledI420(WIDTH, HEIGHT);
+        byte[] nv21 = YuvConverterTest.i420ToNv21(i420, WIDTH, HEIGHT);
+        int lumaSize = WIDTH * HEIGHT;
+
+        // NV21 seen as Image-style planes: U and V interleaved with a pixel stride of 2
+        ByteBuffer y = ByteBuffer.wrap(nv21, 0, lumaSize).slice();
+        ByteBuffer u = ByteBuffer.wrap(nv21, lumaSize + 1, nv21.length - lumaSize - 1).slice();
+        ByteBuffer v = ByteBuffer.wrap(nv21, lumaSize, nv21.length - lumaSize).slice();
+
+        for (int degrees : DEGREES) {
+            for (boolean mirror : new boolean[]{false, true}) {
+                byte[] dst = YuvRotator.rotatePlanesToI420(y, WIDTH, u, v, WIDTH, 2, WIDTH, HEIGHT, degrees, mirror,
+                        null, null);
+                assertRotatedI420(i420, dst, WIDTH, HEIGHT, degrees, mirror);
+            }
+        }
+    }
+
+    @Test
+    public void rotatesFramesIntoTheGivenBuffer() throws Exception {
+        byte[] i420 = labeledI420(WIDTH, HEIGHT);
+        byte[] nv21 = YuvConverterTest.i420ToNv21(i420, WIDTH, HEIGHT);
+        byte[] buffer = new byte[nv21.length];
+
+        CameraFrame frame = CameraFrame.wrapNv21(nv21, WIDTH, HEIGHT, null);
+        assertSame(buffer, YuvRotator.rotate(frame, 90, false, buffer, null));
+
+        CameraFrame rotated = CameraFrame.wrapNv21(buffer, HEIGHT, WIDTH, null);
+        byte[] back = YuvRotator.rotate(rotated, 270, false, null, null);
+        assertArrayEquals(nv21, back);
+
+        // Planar frames come out as I420
+        CameraFrame planar = CameraFrame.wrapI420(i420, WIDTH, HEIGHT, null);
+        assertRotatedI420(i420, YuvRotator.rotate(planar, 180, true, buffer, null), WIDTH, HEIGHT, 180, true);
+    }
+
+    @Test
+    public void rotatesLumaOnly() throws Exception {
+        byte[] i420 = labeledI420(WIDTH, HEIGHT);
+        byte[] nv21 = YuvConverterTest.i420ToNv21(i420, WIDTH, HEIGHT);
+        int lumaSize = WIDTH * HEIGHT;
+
+        // Luma padded out to a wider row stride, as camera2 planes can be
+        int rowStride = WIDTH + 2;
+        ByteBuffer padded = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for (int i = 0; i < lumaSize; i++) padded.put((i / WIDTH) * rowStride + i % WIDTH, i420[i]);
+
+        CameraFrame strided = new CameraFrame();
+        strided.setFormat(CameraFrame.FORMAT_YUV_420_888, WIDTH, HEIGHT);
+        strided.setPlane(0, padded, rowStride, 1);
+        strided.setPlaneCount(1);
+
+        for (int degrees : DEGREES) {
+            for (boolean mirror : new boolean[]{false, true}) {
+                byte[] expected = YuvRotator.rotateI420(i420, WIDTH, HEIGHT, degrees, mirror, null);
+                byte[] packed = YuvRotator.rotateLuma(CameraFrame.wrapNv21(nv21, WIDTH, HEIGHT, null), degrees, mirror,
+                        null, null);
+
+                assertEquals(lumaSize, packed.length);
+                assertArrayEquals(Arrays.copyOf(expected, lumaSize), packed);
+                assertArrayEquals(packed, YuvRotator.rotateLuma(strided, degrees, mirror, null, null));
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        int width = 64;
+        int height = 48;
+        byte[] src = YuvConverterTest.randomI420(width, height, 7);
+        StripedExecutor executor = new StripedExecutor(StripedExecutor.newDaemonPool(3), 4, 0);
+
+        try {
+            for (int degrees : DEGREES) {
+                for (boolean mirror : new boolean[]{false, true}) {
+                    assertArrayEquals(YuvRotator.rotateNv21(src, width, height, degrees, mirror, null),
+                            YuvRotator.rotateNv21(src, width, height, degrees, mirror, null, executor));
+                    assertArrayEquals(YuvRotator.rotateI420(src, width, height, degrees, mirror, null),
+                            YuvRotator.rotateI420(src, width, height, degrees, mirror, null, executor));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
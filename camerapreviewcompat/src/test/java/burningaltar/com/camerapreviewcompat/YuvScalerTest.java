@@ -0,0 +1,114 @@
+package burningaltar.com.camerapreviewcompat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class YuvScalerTest {
+    @Test
+    public void averagesEachBox() throws Exception {
+        // 4x4 luma in 2x2 blocks of 10, 20, 30, 40, plus a 2x2 U and V plane
+        byte[] i420 = {
+                10, 10, 20, 20,
+                10, 10, 20, 20,
+                30, 30, 40, 40,
+                30, 30, 40, 41,
+                1, 2, 3, 5,
+                7, 9, 11, 13
+        };
+
+        byte[] dst = YuvScaler.scaleToI420(CameraFrame.wrapI420(i420, 4, 4, null), 2, 2, null, null);
+
+        // 40, 40, 40, 41 rounds to 40; chroma planes go from 2x2 to 1x1
+        assertArrayEquals(new byte[]{10, 20, 30, 40, 3, 10}, dst);
+    }
+
+    @Test
+    public void readsEveryLayoutTheSame() throws Exception {
+        int width = 64;
+        int height = 48;
+        byte[] i420 = YuvConverterTest.randomI420(width, height, 3);
+        byte[] nv21 = YuvConverterTest.i420ToNv21(i420, width, height);
+
+        byte[] expected = YuvScaler.scaleToI420(CameraFrame.wrapI420(i420, width, height, null), 20, 14, null, null);
+        byte[] buffer = new byte[expected.length];
+
+        assertSame(buffer, YuvScaler.scaleToI420(CameraFrame.wrapNv21(nv21, width, height, null), 20, 14, buffer,
+                null));
+        assertArrayEquals(expected, buffer);
+
+        // Camera2-style: direct buffers, so the ByteBuffer path is taken
+        ByteBuffer direct = ByteBuffer.allocateDirect(nv21.length);
+        direct.put(nv21);
+        int lumaSize = width * height;
+
+        CameraFrame planes = new CameraFrame();
+        planes.setFormat(CameraFrame.FORMAT_YUV_420_888, width, height);
+        planes.setPlane(0, slice(direct, 0, lumaSize), width, 1);
+        planes.setPlane(1, slice(direct, lumaSize + 1, nv21.length - lumaSize - 1), width, 2);
+        planes.setPlane(2, slice(direct, lumaSize, nv21.length - lumaSize), width, 2);
+        planes.setPlaneCount(3);
+
+        assertArrayEquals(expected, YuvScaler.scaleToI420(planes, 20, 14, null, null));
+        assertArrayEquals(Arrays.copyOf(expected, 20 * 14), YuvScaler.scaleLuma(planes, 20, 14, null, null));
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        int width = 640;
+        int height = 480;
+        CameraFrame frame = CameraFrame.wrapNv21(YuvConverterTest.randomI420(width, height, 11), width, height, null);
+        StripedExecutor executor = new StripedExecutor(StripedExecutor.newDaemonPool(3), 4, 0);
+
+        try {
+            assertArrayEquals(YuvScaler.scaleToI420(frame, 224, 168, null, null),
+                    YuvScaler.scaleToI420(frame, 224, 168, null, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void fitsWithinTheBox() throws Exception {
+        assertArrayEquals(new int[]{320, 180}, YuvScaler.fitWithin(1920, 1080, 320, 320));
+        assertArrayEquals(new int[]{224, 298}, YuvScaler.fitWithin(1080, 1440, 224, 320));
+
+        // Never scales up
+        assertArrayEquals(new int[]{160, 120}, YuvScaler.fitWithin(160, 120, 320, 320));
+    }
+
+    @Test
+    public void dispatcherScalesForTheUprightBox() throws Exception {
+        final CameraFrame[] delivered = new CameraFrame[1];
+        byte[] nv21 = YuvConverterTest.randomI420(640, 480, 5);
+        CameraFrame frame = CameraFrame.wrapNv21(nv21, 640, 480, null);
+
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        dispatcher.setAnalysisSize(240, 320);
+
+        frame.checkOut(90, 1);
+        dispatcher.deliver(frame, false, new FrameSource.Callback() {
+            @Override
+            public void onFrame(CameraFrame frame) {
+                delivered[0] = frame;
+            }
+        });
+
+        // A portrait box for a sideways landscape frame, still sideways
+        assertEquals(320, delivered[0].getWidth());
+        assertEquals(240, delivered[0].getHeight());
+        assertEquals(90, delivered[0].getRotation());
+        assertEquals(CameraFrame.FORMAT_YUV_420_888, delivered[0].getFormat());
+        assertTrue(frame.isReleased());
+    }
+
+    static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+}